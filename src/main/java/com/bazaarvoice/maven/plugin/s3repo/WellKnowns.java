@@ -7,6 +7,23 @@ public final class WellKnowns {
     /** Well-known names. */
     public static final String YUM_REPODATA_FOLDERNAME = "repodata";
     public static final String YUM_REPOMETADATA_FILENAME = "repomd.xml";
+    /** The package index that this plugin publishes in the repodata folder (see PackageIndex); not registered in repomd.xml. */
+    public static final String S3REPO_PACKAGE_INDEX_FILENAME = "s3repo-package-index.tsv.gz";
+    /** The file manifest that this plugin publishes in the repodata folder (see RepositoryManifest); not registered in repomd.xml. */
+    public static final String S3REPO_MANIFEST_FILENAME = "s3repo-manifest.tsv.gz";
     public static final String[] YUM_REPOMETADATA_FILE_TYPES = {"primary", "filelists", "other"};
+    /** Metadata types registered in repomd.xml by "createrepo_c --zck" (zchunk variants of the above). */
+    public static final String[] YUM_ZCHUNK_REPOMETADATA_FILE_TYPES = {"primary_zck", "filelists_zck", "other_zck"};
+    /** Metadata types registered in repomd.xml for the (compressed) sqlite databases that yum clients can use directly. */
+    public static final String[] YUM_DATABASE_REPOMETADATA_FILE_TYPES = {"primary_db", "filelists_db", "other_db"};
+
+    /** createrepo option that produces zchunk metadata (createrepo_c only). */
+    public static final String CREATEREPO_ZCHUNK_OPTION = "--zck";
+    /** createrepo options that enable or disable sqlite database generation. */
+    public static final String CREATEREPO_DATABASE_OPTION = "--database";
+    public static final String CREATEREPO_NO_DATABASE_OPTION = "--no-database";
+
+    /** S3 user metadata key under which uploads record the object's sha256 (hex), so it can be checked by a HEAD request. */
+    public static final String S3_SHA256_USER_METADATA_KEY = "sha256";
 
 }
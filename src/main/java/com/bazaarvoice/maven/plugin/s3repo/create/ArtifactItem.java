@@ -2,9 +2,12 @@ package com.bazaarvoice.maven.plugin.s3repo.create;
 
 import com.google.common.base.Objects;
 import org.apache.maven.plugins.annotations.Parameter;
+import org.eclipse.aether.repository.RemoteRepository;
 import org.eclipse.aether.resolution.ArtifactResult;
 import org.eclipse.aether.util.StringUtils;
 
+import java.util.List;
+
 public final class ArtifactItem {
 
     @Parameter(required = true)
@@ -34,6 +37,9 @@ public final class ArtifactItem {
     /** Will be set by resolution code. */
     private ArtifactResult resolvedArtifact;
 
+    /** The remote repositories of the project that configured this item; set before resolution. */
+    private List<RemoteRepository> remoteRepositories;
+
     public boolean isSnapshot() {
         return version.endsWith("-SNAPSHOT");
     }
@@ -118,6 +124,14 @@ public final class ArtifactItem {
         this.resolvedArtifact = resolvedArtifact;
     }
 
+    /*package*/ List<RemoteRepository> getRemoteRepositories() {
+        return remoteRepositories;
+    }
+
+    /*package*/ void setRemoteRepositories(List<RemoteRepository> remoteRepositories) {
+        this.remoteRepositories = remoteRepositories;
+    }
+
     @Override
     public String toString() {
         return Objects.toStringHelper(this).
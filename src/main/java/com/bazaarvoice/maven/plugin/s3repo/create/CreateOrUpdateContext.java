@@ -1,19 +1,35 @@
 package com.bazaarvoice.maven.plugin.s3repo.create;
 
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.util.MultiDigest;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 
 final class CreateOrUpdateContext {
 
     private AmazonS3 s3Session;
     private S3RepositoryPath s3RepositoryPath;
     private LocalYumRepoFacade localYumRepo;
+    private File stagingDirectory;
+    private List<ArtifactItem> artifactItems;
+    /** The ETag of the repomd.xml we pulled; null if the repository had none. */
+    private String repoMetadataETag;
     private final List<File> synthesizedFiles = new ArrayList<File>();
+    /** Size and ETag of each existing file declared by the metadata we pulled, keyed by repo-relative path. */
+    private List<S3ObjectSummary> existingFiles = new ArrayList<S3ObjectSummary>();
+    /** Digests of staged artifacts, computed once for all target repositories, so that uploads needn't read them again. */
+    private final Map<File, MultiDigest> fileDigests = new HashMap<File, MultiDigest>();
+    /** Repo-relative paths of the metadata files used by each repomd.xml we pulled (i.e., the one we replace). */
+    private final Set<String> previousRepoDataFiles = new TreeSet<String>();
 
     public AmazonS3 getS3Session() {
         return s3Session;
@@ -39,6 +55,32 @@ final class CreateOrUpdateContext {
         this.localYumRepo = localYumRepo;
     }
 
+    /** The local root of the repository being published. */
+    public File getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    public void setStagingDirectory(File stagingDirectory) {
+        this.stagingDirectory = stagingDirectory;
+    }
+
+    /** The artifact items to add to the repository. */
+    public List<ArtifactItem> getArtifactItems() {
+        return artifactItems;
+    }
+
+    public void setArtifactItems(List<ArtifactItem> artifactItems) {
+        this.artifactItems = artifactItems;
+    }
+
+    public String getRepoMetadataETag() {
+        return repoMetadataETag;
+    }
+
+    public void setRepoMetadataETag(String repoMetadataETag) {
+        this.repoMetadataETag = repoMetadataETag;
+    }
+
     public void addSynthesizedFile(File synthesizedFile) {
         synthesizedFiles.add(synthesizedFile);
     }
@@ -47,4 +89,43 @@ final class CreateOrUpdateContext {
         return synthesizedFiles;
     }
 
+    public void clearSynthesizedFiles() {
+        synthesizedFiles.clear();
+    }
+
+    public List<S3ObjectSummary> getExistingFiles() {
+        return existingFiles;
+    }
+
+    public void setExistingFiles(List<S3ObjectSummary> existingFiles) {
+        this.existingFiles = existingFiles;
+    }
+
+    /** The staged artifacts (i.e., the files with digests). */
+    public Set<File> getDigestedFiles() {
+        return fileDigests.keySet();
+    }
+
+    public void addFileDigests(File file, MultiDigest digests) {
+        fileDigests.put(file, digests);
+    }
+
+    /** Forget the staged artifacts (e.g., before staging them again). */
+    public void clearFileDigests() {
+        fileDigests.clear();
+    }
+
+    /** Digests computed before the file was staged, or null. */
+    public MultiDigest getFileDigests(File file) {
+        return fileDigests.get(file);
+    }
+
+    public Set<String> getPreviousRepoDataFiles() {
+        return previousRepoDataFiles;
+    }
+
+    public void addPreviousRepoDataFiles(Set<String> repoDataFiles) {
+        previousRepoDataFiles.addAll(repoDataFiles);
+    }
+
 }
@@ -1,24 +1,42 @@
 package com.bazaarvoice.maven.plugin.s3repo.create;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepositoryManifest;
+import com.bazaarvoice.maven.plugin.s3repo.support.StaleMetadataCollector;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraFileUtils;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataCompression;
+import com.bazaarvoice.maven.plugin.s3repo.util.MultiDigest;
+import com.bazaarvoice.maven.plugin.s3repo.util.ParallelTasks;
+import com.bazaarvoice.maven.plugin.s3repo.util.ProgressReporter;
 import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
+import com.google.common.base.Joiner;
+import com.google.common.base.Objects;
 import com.google.common.io.Files;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Plugin;
+import org.apache.maven.model.PluginExecution;
 import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecution;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugin.descriptor.PluginDescriptor;
 import org.apache.maven.plugins.annotations.Component;
 import org.apache.maven.plugins.annotations.LifecyclePhase;
 import org.apache.maven.plugins.annotations.Mojo;
@@ -31,21 +49,35 @@ import org.eclipse.aether.RepositorySystemSession;
 import org.eclipse.aether.artifact.DefaultArtifact;
 import org.eclipse.aether.resolution.ArtifactRequest;
 import org.eclipse.aether.resolution.ArtifactResolutionException;
+import org.eclipse.aether.resolution.ArtifactResult;
 import org.eclipse.aether.util.StringUtils;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Creates or updates a YUM repository in S3.
  */
-@Mojo(name = "create-update", defaultPhase = LifecyclePhase.DEPLOY)
+@Mojo(name = CreateOrUpdateS3RepoMojo.GOAL, defaultPhase = LifecyclePhase.DEPLOY)
 public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
 
+    static final String GOAL = "create-update";
+
     @Component
     private MavenProject project;
 
@@ -55,6 +87,18 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     @Parameter(property = "session.repositorySession", required = true, readonly = true)
     private RepositorySystemSession session;
 
+    @Parameter(defaultValue = "${reactorProjects}", required = true, readonly = true)
+    private List<MavenProject> reactorProjects;
+
+    @Parameter(defaultValue = "${plugin}", required = true, readonly = true)
+    private PluginDescriptor pluginDescriptor;
+
+    @Parameter(defaultValue = "${session}", required = true, readonly = true)
+    private MavenSession mavenSession;
+
+    @Parameter(defaultValue = "${mojoExecution}", required = true, readonly = true)
+    private MojoExecution mojoExecution;
+
     /** Staging directory. This is where we will generate *bucket-relative* files. */
     @Parameter(property = "s3repo.stagingDirectory", defaultValue = "${project.build.directory}/s3repo")
     private File stagingDirectory;
@@ -77,10 +121,17 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
      *      "/Bucket/Repo1"
      * This goal does not create buckets; the plugin goal execution will fail if the bucket does not exist in S3.
      * Note that {@link #artifactItems} can optionally specify a per-artifact repositoryPath-relative target subfolder.
+     * Either this or {@link #s3RepositoryPaths} (or both) must be given.
      */
-    @Parameter(property = "s3repo.repositoryPath", required = true)
+    @Parameter(property = "s3repo.repositoryPath")
     private String s3RepositoryPath;
 
+    /** Publish the same artifact items to each of these repositories (e.g., one per region), in addition to
+     * {@link #s3RepositoryPath}. Artifacts are resolved and hashed once; each repository then gets its own metadata
+     * update and upload, all in parallel. A failure to publish to one repository doesn't stop the others. */
+    @Parameter(property = "s3repo.repositoryPaths")
+    private List<String> s3RepositoryPaths;
+
     @Parameter(property = "s3repo.accessKey")
     private String s3AccessKey;
 
@@ -91,6 +142,27 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.doNotUpload", defaultValue = "false")
     private boolean doNotUpload;
 
+    /** In a multi-module build, only register this module's {@link #artifactItems}; once every execution of this goal in
+     * the reactor has run, the last one to finish publishes everything registered with one resolve, metadata update and
+     * upload per repository. Its configuration (createrepo, compression, credentials, upload options) applies to the
+     * combined publish. */
+    @Parameter(property = "s3repo.aggregate", defaultValue = "false")
+    private boolean aggregate;
+
+    /** Number of concurrent uploads. Packages are uploaded before metadata, and repomd.xml last. */
+    @Parameter(property = "s3repo.uploadThreads", defaultValue = "4")
+    private int uploadThreads;
+
+    /** How many times we merge with a concurrent publish to the same repository (detected by a changed repomd.xml
+     * ETag just before we upload our packages or our metadata) before giving up. */
+    @Parameter(property = "s3repo.metadataConflictRetries", defaultValue = "3")
+    private int metadataConflictRetries;
+
+    /** After a publish, metadata files used by neither the published repomd.xml nor the one it replaced are deleted
+     * from the repository once they are older than this many minutes. A negative value keeps them. */
+    @Parameter(property = "s3repo.staleMetadataGraceMinutes", defaultValue = "1440")
+    private int staleMetadataGraceMinutes;
+
     /** The createrepo executable. */
     @Parameter(property = "s3repo.createrepo", defaultValue = "createrepo")
     private String createrepo;
@@ -99,70 +171,461 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.createrepoOpts", defaultValue = "")
     private String createrepoOpts;
 
+    /** Also generate zchunk (.zck) metadata, registered in repomd.xml, so that dnf clients only download the chunks that
+     * changed. Requires createrepo_c (see {@link #createrepo}). */
+    @Parameter(property = "s3repo.zchunk", defaultValue = "false")
+    private boolean zchunk;
+
+    /** Generate compressed sqlite databases (primary_db, filelists_db, other_db), registered in repomd.xml, so that yum
+     * clients do not have to build them from the XML metadata on every host. This overrides any "--no-database" in
+     * {@link #createrepoOpts}. */
+    @Parameter(property = "s3repo.generateDatabase", defaultValue = "false")
+    private boolean generateDatabase;
+
+    /** Compression codec for the primary, filelists and other metadata files: "gz" (createrepo's output), "bz2" or "xz".
+     * Any codec other than gz means we recompress the files that createrepo wrote (and update repomd.xml). */
+    @Parameter(property = "s3repo.metadataCompression", defaultValue = "gz")
+    private String metadataCompression;
+
+    /** Compression level for {@link #metadataCompression}; the default (-1) uses the codec's default level. */
+    @Parameter(property = "s3repo.metadataCompressionLevel", defaultValue = "-1")
+    private int metadataCompressionLevel;
+
+    /** Number of threads used to compress large metadata files (e.g., filelists) in independent blocks. Zero means one
+     * per available processor. Only gz is compressed in parallel. */
+    @Parameter(property = "s3repo.compressionThreads", defaultValue = "0")
+    private int compressionThreads;
+
+    /** Optional file to which we write one line per object downloaded, uploaded or skipped. Per-object detail is
+     * otherwise only logged at DEBUG level; INFO level gets periodic aggregate progress lines. */
+    @Parameter(property = "s3repo.transferManifest")
+    private File transferManifest;
+
+    /** Will be non-null only if {@link #transferManifest} is configured. */
+    private PrintWriter transferManifestWriter;
+
+    /** Optional file to which we write a timeline of this execution (its phases, every S3 request and every createrepo
+     * run) in the Chrome trace event format; a summary, including S3 latency percentiles, is logged at the end. */
+    @Parameter(property = "s3repo.timeline")
+    private File timeline;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
+        transferManifestWriter = ExtraIOUtils.openWriterIfConfigured(transferManifest);
+        Timeline.startIfConfigured(timeline);
+        try {
+            internalExecute();
+        } finally {
+            ExtraIOUtils.closeQuietly(transferManifestWriter);
+            Timeline.stopIfConfigured(timeline, getLog());
+        }
+    }
+
+    private void internalExecute() throws MojoExecutionException {
+        for (ArtifactItem item : artifactItems) {
+            item.setRemoteRepositories(project.getRemoteProjectRepositories());
+        }
+        final Map<S3RepositoryPath, List<ArtifactItem>> itemsByRepository = new LinkedHashMap<S3RepositoryPath, List<ArtifactItem>>();
+        for (S3RepositoryPath target : parseS3RepositoryPaths()) {
+            itemsByRepository.put(target, artifactItems);
+        }
+        // every execution reports to the build's registry, so that the last one (whichever finishes last with -T)
+        // publishes what the aggregate executions registered
+        final ReactorPublishRegistry registry = ReactorPublishRegistry.forSession(mavenSession, determineExpectedExecutions());
+        Map<S3RepositoryPath, List<ArtifactItem>> registered = null;
+        try {
+            registered = registry.report(toExecutionKey(project, mojoExecution.getExecutionId()),
+                aggregate ? itemsByRepository : Collections.<S3RepositoryPath, List<ArtifactItem>>emptyMap());
+        } catch (IllegalStateException e) {
+            if (aggregate) {
+                throw new MojoExecutionException("s3repo.aggregate: " + e.getMessage() + "; its artifact items would never be published");
+            }
+            getLog().debug("Not taking part in an aggregated publish: " + e.getMessage());
+        }
+        if (!aggregate) {
+            publishAll(itemsByRepository);
+        } else if (registered == null) {
+            getLog().info("Registered " + artifactItems.size() + " artifact item(s); they will be published once every execution"
+                + " of " + GOAL + " in the reactor has run (" + registry.getPending().size() + " to go).");
+        }
+        if (registered != null && !registered.isEmpty()) {
+            getLog().info("Publishing the artifact items registered in the reactor...");
+            publishAll(registered);
+        } else if (registered == null) {
+            ensureNoRegistrationsLeftBehind(registry);
+        }
+    }
+
+    /**
+     * Every execution of this goal that the reactor is expected to run: the bound ones or, if the goal was invoked from
+     * the command line, one per project. Keys are as per {@link #toExecutionKey}, in reactor order.
+     */
+    private List<String> determineExpectedExecutions() {
+        final List<String> executions = new ArrayList<String>();
+        for (MavenProject reactorProject : reactorProjects) {
+            executions.addAll(determineExpectedExecutions(reactorProject));
+        }
+        return executions;
+    }
+
+    private List<String> determineExpectedExecutions(MavenProject reactorProject) {
+        final List<String> executions = new ArrayList<String>();
+        if (mojoExecution.getSource() == MojoExecution.Source.CLI) {
+            executions.add(toExecutionKey(reactorProject, mojoExecution.getExecutionId()));
+            return executions;
+        }
+        final Plugin plugin = reactorProject.getPlugin(pluginDescriptor.getPluginLookupKey());
+        if (plugin != null) {
+            for (PluginExecution execution : plugin.getExecutions()) {
+                if (execution.getGoals().contains(GOAL)) {
+                    executions.add(toExecutionKey(reactorProject, execution.getId()));
+                }
+            }
+        }
+        return executions;
+    }
+
+    private static String toExecutionKey(MavenProject project, String executionId) {
+        return project.getId() + "@" + executionId;
+    }
+
+    /**
+     * In a sequential build, projects run in reactor order, so executions of earlier projects that haven't reported by
+     * now never will (e.g., bound to a phase that this build doesn't reach), and nothing registered would be published.
+     */
+    private void ensureNoRegistrationsLeftBehind(ReactorPublishRegistry registry) throws MojoExecutionException {
+        if (mavenSession.isParallel() || !registry.hasRegistrations()) {
+            return;
+        }
+        final List<String> pending = registry.getPending();
+        final List<String> leftBehind = new ArrayList<String>();
+        for (MavenProject reactorProject : reactorProjects) {
+            if (reactorProject == project) {
+                break;
+            }
+            for (String execution : determineExpectedExecutions(reactorProject)) {
+                if (pending.contains(execution)) {
+                    leftBehind.add(execution);
+                }
+            }
+        }
+        if (!leftBehind.isEmpty()) {
+            throw new MojoExecutionException("s3repo.aggregate: executions of " + GOAL + " that the registered artifact items"
+                + " wait for didn't run: " + leftBehind + "; the registered artifact items would never be published");
+        }
+    }
+
+    /**
+     * Resolve and hash every distinct artifact item once, then publish to each repository. Several repositories are
+     * published in parallel, each with its own staging directory; every one is attempted and reported, and the goal
+     * fails afterwards if any of them failed.
+     */
+    private void publishAll(Map<S3RepositoryPath, List<ArtifactItem>> itemsByRepository) throws MojoExecutionException {
+        final Set<ArtifactItem> distinctItems = Collections.newSetFromMap(new IdentityHashMap<ArtifactItem, Boolean>());
+        for (List<ArtifactItem> items : itemsByRepository.values()) {
+            distinctItems.addAll(items);
+        }
+        final Timeline.Phases phases = Timeline.phases(GOAL);
+        phases.begin("resolveArtifactItems");
+        resolveArtifactItems(new ArrayList<ArtifactItem>(distinctItems));
+        phases.begin("digestArtifacts");
+        final Map<File, MultiDigest> artifactDigests = digestArtifacts(distinctItems);
+        phases.end();
+        if (itemsByRepository.size() == 1) {
+            final Map.Entry<S3RepositoryPath, List<ArtifactItem>> only = itemsByRepository.entrySet().iterator().next();
+            publish(only.getKey(), only.getValue(), stagingDirectory, artifactDigests);
+            return;
+        }
+        getLog().info("Publishing to " + itemsByRepository.size() + " repositories in parallel...");
+        final List<S3RepositoryPath> repositories = new ArrayList<S3RepositoryPath>(itemsByRepository.keySet());
+        List<Callable<String>> tasks = new ArrayList<Callable<String>>();
+        for (int i = 0; i < repositories.size(); ++i) {
+            final S3RepositoryPath repository = repositories.get(i);
+            final List<ArtifactItem> items = itemsByRepository.get(repository);
+            // each repository needs its own staging directory
+            final File repositoryStagingDirectory = new File(stagingDirectory, "repository-" + (i + 1));
+            tasks.add(new Callable<String>() {
+                @Override
+                public String call() {
+                    try {
+                        publish(repository, items, repositoryStagingDirectory, artifactDigests);
+                        return null;
+                    } catch (Exception e) {
+                        getLog().error("Failed to publish to " + repository, e);
+                        return String.valueOf(e.getMessage());
+                    }
+                }
+            });
+        }
+        final List<String> failures = ParallelTasks.invokeAll(tasks.size(), tasks);
+        List<String> failed = new ArrayList<String>();
+        for (int i = 0; i < repositories.size(); ++i) {
+            if (failures.get(i) == null) {
+                getLog().info("Published to " + repositories.get(i) + ".");
+            } else {
+                getLog().error("FAILED to publish to " + repositories.get(i) + ": " + failures.get(i));
+                failed.add(repositories.get(i).toString());
+            }
+        }
+        if (!failed.isEmpty()) {
+            throw new MojoExecutionException("Failed to publish to " + failed.size() + " of " + repositories.size()
+                + " repositories: " + failed + " (the others were published)");
+        }
+    }
+
+    /**
+     * The md5 and sha256 of each resolved artifact file, computed once for all target repositories. The digests are
+     * already finished (see {@link MultiDigest#ofFile}), as the repositories are published in parallel and share them.
+     */
+    private Map<File, MultiDigest> digestArtifacts(Set<ArtifactItem> items) throws MojoExecutionException {
+        final Map<File, MultiDigest> digests = new HashMap<File, MultiDigest>();
+        for (ArtifactItem item : items) {
+            final File file = item.getResolvedArtifact().getArtifact().getFile();
+            if (!digests.containsKey(file)) {
+                try {
+                    digests.put(file, MultiDigest.ofFile(file, MultiDigest.MD5, MultiDigest.SHA256));
+                } catch (IOException e) {
+                    throw new MojoExecutionException("Unable to calculate checksum for " + file.getPath(), e);
+                }
+            }
+        }
+        return digests;
+    }
+
+    /**
+     * Add the provided (resolved) artifact items to the provided repository, using the provided local staging
+     * directory. The artifact digests are keyed by resolved artifact file.
+     */
+    private void publish(S3RepositoryPath s3RepositoryPath, List<ArtifactItem> items, File repositoryStagingDirectory,
+                         Map<File, MultiDigest> artifactDigests) throws MojoExecutionException {
+        getLog().info("Publishing " + items.size() + " artifact item(s) to " + s3RepositoryPath + "...");
         CreateOrUpdateContext context = new CreateOrUpdateContext();
 
-        // parse s3 repository path and set bucketAndFolder field
         context.setS3Session(createS3Client());
-        context.setS3RepositoryPath(parseS3RepositoryPath());
-        context.setLocalYumRepo(determineLocalYumRepo());
+        context.setS3RepositoryPath(s3RepositoryPath);
+        context.setStagingDirectory(repositoryStagingDirectory);
+        context.setArtifactItems(items);
+        context.setLocalYumRepo(determineLocalYumRepo(repositoryStagingDirectory));
 
         // always clean the staging directory -- it never makes sense to start with existing staging directory
-        ExtraFileUtils.createOrCleanDirectory(stagingDirectory);
+        ExtraFileUtils.createOrCleanDirectory(repositoryStagingDirectory);
 
-        // require S3 bucket to exist before continuing
-        ensureS3BucketExists(context);
-        // download existing repository metadata
-        pullExistingRepositoryMetadata(context);
-        // require existing repository metadata if allowCreateRepository = false
-        maybeEnsureExistingRepositoryMetadata(context);
-        // synthesize/touch zero-size files to represent existing repository-managed files
-        synthesizeExistingRepositoryFiles(context);
+        final Timeline.Phases phases = Timeline.phases(s3RepositoryPath.toString());
+        try {
+            // require S3 bucket to exist before continuing
+            phases.begin("ensureS3BucketExists");
+            ensureS3BucketExists(context);
+            // download existing repository metadata
+            phases.begin("pullExistingRepositoryMetadata");
+            pullExistingRepositoryMetadata(context);
+            // require existing repository metadata if allowCreateRepository = false
+            maybeEnsureExistingRepositoryMetadata(context);
+            // synthesize/touch zero-size files to represent existing repository-managed files
+            phases.begin("synthesizeExistingRepositoryFiles");
+            synthesizeExistingRepositoryFiles(context);
+            // copy (resolved) artifacts to staging directory
+            phases.begin("copyArtifactItems");
+            copyArtifactItems(context, items, artifactDigests);
+            // run createrepo over the existing and new files
+            phases.begin("updateRepositoryMetadata");
+            updateRepositoryMetadata(context);
+            // push/upload staging directory to repository if doNotUpload = false
+            phases.begin("maybeUploadRepositoryUpdate");
+            maybeUploadRepositoryUpdate(context, artifactDigests);
+            // delete metadata files that earlier publishes left behind
+            phases.begin("maybeDeleteStaleMetadata");
+            maybeDeleteStaleMetadata(context);
+        } finally {
+            phases.end();
+        }
+    }
+
+    /** Generate metadata for the (synthesized) existing files plus the copied artifact items, and check it. */
+    private void updateRepositoryMetadata(CreateOrUpdateContext context) throws MojoExecutionException {
         // save some stats about the original repo
         final RepoStatistics originalRepoStatistics = RepoStatistics.createRepoStatisticsFromCreateOrUpdateContext(context);
-        // resolve artifacts, copy to staging directory
-        resolveAndCopyArtifactItems(context);
         // create the actual repository
         createRepo(context);
+        // recompress metadata if a codec or level other than createrepo's own was configured
+        maybeRecompressMetadata(context);
         // save some stats about the updated repo
         final RepoStatistics updatedRepoStatistics = RepoStatistics.createRepoStatisticsFromCreateOrUpdateContext(context);
         // pathologically delete files that we do not wish to push to target repository
         cleanupSynthesizedFiles(context);
         // verify that the repo we created is sane
-        verifyUpdatedRepo(originalRepoStatistics, updatedRepoStatistics);
-        // push/upload staging directory to repository if doNotUpload = false
-        maybeUploadRepositoryUpdate(context);
+        verifyUpdatedRepo(context, originalRepoStatistics, updatedRepoStatistics);
+        // index the packages for list-repo queries (published in repodata/ along with the metadata)
+        context.getLocalYumRepo().writePackageIndex();
+        // list every file for the next publish's existence checks (published in repodata/ along with the metadata)
+        writeRepositoryManifest(context);
+    }
+
+    /**
+     * Someone else published to the repository since we pulled its metadata, before we uploaded anything. Stage again
+     * on top of the new metadata, so that snapshots get a fresh name and any other path collision fails the publish
+     * before it writes to the repository.
+     */
+    private void restageOnConcurrentUpdate(CreateOrUpdateContext context, Map<File, MultiDigest> artifactDigests)
+            throws MojoExecutionException {
+        ExtraFileUtils.createOrCleanDirectory(context.getStagingDirectory());
+        context.clearSynthesizedFiles();
+        context.clearFileDigests();
+        pullExistingRepositoryMetadata(context);
+        synthesizeExistingRepositoryFiles(context);
+        copyArtifactItems(context, context.getArtifactItems(), artifactDigests);
+        updateRepositoryMetadata(context);
+    }
+
+    /**
+     * Someone else published to the repository since we checked its metadata. Our packages are already in staging (and
+     * uploaded), so pull the new metadata and run createrepo again; nothing but metadata is transferred.
+     */
+    private void mergeConcurrentUpdate(CreateOrUpdateContext context) throws MojoExecutionException {
+        ExtraFileUtils.createOrCleanDirectory(context.getLocalYumRepo().repoDataDirectory());
+        context.clearSynthesizedFiles();
+        pullExistingRepositoryMetadata(context);
+        synthesizeExistingRepositoryFiles(context);
+        updateRepositoryMetadata(context);
     }
 
     /** Create a {@link LocalYumRepoFacade} which will allow us to query and operate on a local (on-disk) yum repository. */
-    private LocalYumRepoFacade determineLocalYumRepo() {
-        return new LocalYumRepoFacade(stagingDirectory, createrepo, createrepoOpts, getLog());
+    private LocalYumRepoFacade determineLocalYumRepo(File repositoryStagingDirectory) {
+        return new LocalYumRepoFacade(repositoryStagingDirectory, createrepo, determineCreaterepoOpts(), getLog());
     }
 
-    private void maybeUploadRepositoryUpdate(CreateOrUpdateContext context) throws MojoExecutionException {
+    private void maybeRecompressMetadata(CreateOrUpdateContext context) throws MojoExecutionException {
+        final MetadataCompression compression;
+        try {
+            compression = MetadataCompression.parse(metadataCompression);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        if (compression == MetadataCompression.GZ && metadataCompressionLevel < 0) {
+            return; // createrepo already wrote gzip metadata
+        }
+        final int threads = ParallelTasks.determineThreads(compressionThreads);
+        context.getLocalYumRepo().recompressMetadata(compression, metadataCompressionLevel, threads);
+    }
+
+    private String determineCreaterepoOpts() {
+        String opts = createrepoOpts == null ? "" : createrepoOpts;
+        if (zchunk) {
+            opts += " " + WellKnowns.CREATEREPO_ZCHUNK_OPTION;
+        }
+        if (generateDatabase) {
+            opts = opts.replaceAll("(^|\\s)" + WellKnowns.CREATEREPO_NO_DATABASE_OPTION + "(?=\\s|$)", " ")
+                + " " + WellKnowns.CREATEREPO_DATABASE_OPTION;
+        }
+        return opts;
+    }
+
+    private void maybeUploadRepositoryUpdate(CreateOrUpdateContext context, Map<File, MultiDigest> artifactDigests)
+            throws MojoExecutionException {
         String logPrefix = "";
         if (doNotUpload) {
             getLog().info("Per configuration, we will NOTE perform any remote operations on the S3 repository.");
             logPrefix = "SKIPPING: ";
         }
-        final S3RepositoryPath targetRepository = context.getS3RepositoryPath();
-        final String targetBucket = targetRepository.getBucketName();
-        AmazonS3 s3Session = context.getS3Session();
-        for (File toUpload : ExtraIOUtils.listAllFiles(stagingDirectory)) {
-            String bucketKey = localFileToTargetS3BucketKey(toUpload, targetRepository);
-            getLog().info(logPrefix + "Uploading: " + toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
-            if (!doNotUpload) {
-                s3Session.putObject(new PutObjectRequest(targetBucket, bucketKey, toUpload));
+        // S3 has no conditional put, so we compare repomd.xml's ETag with the one we pulled before we write anything;
+        // on a mismatch, we stage again on top of the concurrent publish so that our packages never overwrite its own
+        int merges = 0;
+        while (!doNotUpload && !remoteRepoMetadataUnchanged(context)) {
+            ensureMayMerge(merges++);
+            restageOnConcurrentUpdate(context, artifactDigests);
+        }
+        // upload packages, then metadata, then repomd.xml so that clients never see metadata declaring files that
+        // haven't been uploaded yet
+        final File repoDataDirectory = context.getLocalYumRepo().repoDataDirectory();
+        List<File> packageFiles = new ArrayList<File>();
+        for (File toUpload : ExtraIOUtils.listAllFiles(context.getStagingDirectory())) {
+            if (!repoDataDirectory.equals(toUpload.getParentFile())) {
+                packageFiles.add(toUpload);
+            }
+        }
+        ProgressReporter progress = ProgressReporter.start(getLog(), logPrefix + "Uploading", packageFiles.size(),
+            ExtraIOUtils.totalLength(packageFiles), transferManifestWriter);
+        uploadAll(context, packageFiles, progress);
+        progress.finish();
+        // compare repomd.xml's ETag again right before each metadata upload; on a mismatch, we merge with the concurrent
+        // publish and try again
+        while (true) {
+            if (doNotUpload || remoteRepoMetadataUnchanged(context)) {
+                List<File> metadataFiles = new ArrayList<File>(ExtraIOUtils.listAllFiles(repoDataDirectory));
+                File repoMetadataFile = new File(repoDataDirectory, WellKnowns.YUM_REPOMETADATA_FILENAME);
+                metadataFiles.remove(repoMetadataFile);
+                progress = ProgressReporter.start(getLog(), logPrefix + "Uploading metadata", metadataFiles.size() + 1,
+                    ExtraIOUtils.totalLength(metadataFiles) + repoMetadataFile.length(), transferManifestWriter);
+                uploadAll(context, metadataFiles, progress);
+                if (doNotUpload || remoteRepoMetadataUnchanged(context)) {
+                    uploadAll(context, Collections.singletonList(repoMetadataFile), progress);
+                    progress.finish();
+                    return;
+                }
+            }
+            ensureMayMerge(merges++);
+            mergeConcurrentUpdate(context);
+        }
+    }
+
+    /** Fail if we've already merged with {@link #metadataConflictRetries} concurrent publishes. */
+    private void ensureMayMerge(int merges) throws MojoExecutionException {
+        if (merges >= metadataConflictRetries) {
+            throw new MojoExecutionException("Repository metadata kept changing while we were publishing; gave up after "
+                + merges + " merge(s)");
+        }
+        getLog().warn("Repository metadata was changed by a concurrent publish; merging (attempt " + (merges + 1)
+            + " of " + metadataConflictRetries + ")...");
+    }
+
+    /** True if the remote repomd.xml still has the ETag we pulled (or still doesn't exist, if it didn't). */
+    private boolean remoteRepoMetadataUnchanged(CreateOrUpdateContext context) {
+        final S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        String bucketKey = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME;
+        if (s3RepositoryPath.hasBucketRelativeFolder()) {
+            bucketKey = s3RepositoryPath.getBucketRelativeFolder() + "/" + bucketKey;
+        }
+        String remoteETag;
+        try {
+            remoteETag = context.getS3Session().getObjectMetadata(s3RepositoryPath.getBucketName(), bucketKey).getETag();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
             }
+            remoteETag = null;
+        }
+        getLog().debug("repomd.xml ETag: pulled " + context.getRepoMetadataETag() + ", now " + remoteETag);
+        return Objects.equal(remoteETag, context.getRepoMetadataETag());
+    }
+
+    /** Upload the provided files on up to {@link #uploadThreads} threads, returning when all are done. */
+    private void uploadAll(final CreateOrUpdateContext context, List<File> filesToUpload, final ProgressReporter progress)
+            throws MojoExecutionException {
+        final S3RepositoryPath targetRepository = context.getS3RepositoryPath();
+        final AmazonS3 s3Session = context.getS3Session();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final File toUpload : filesToUpload) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws MojoExecutionException {
+                    String bucketKey = localFileToTargetS3BucketKey(context, toUpload);
+                    if (!doNotUpload) {
+                        s3Session.putObject(S3Utils.newPutObjectRequest(targetRepository.getBucketName(), bucketKey, toUpload,
+                            context.getFileDigests(toUpload)));
+                    }
+                    progress.completed(toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey, toUpload.length());
+                    return null;
+                }
+            });
         }
+        ParallelTasks.invokeAll(uploadThreads, tasks);
     }
 
     /** Convert local file in staging directory to bucket key (in target s3 repository). */
-    private String localFileToTargetS3BucketKey(File toUpload, S3RepositoryPath repo) throws MojoExecutionException {
-        String relativizedPath = ExtraIOUtils.relativize(stagingDirectory, toUpload);
+    private String localFileToTargetS3BucketKey(CreateOrUpdateContext context, File toUpload) throws MojoExecutionException {
+        String relativizedPath = ExtraIOUtils.relativize(context.getStagingDirectory(), toUpload);
         // replace *other* file separators with S3-style file separators and strip first & last separator
         relativizedPath = relativizedPath.replaceAll("\\\\", "/").replaceAll("^/", "").replaceAll("/$", "");
+        S3RepositoryPath repo = context.getS3RepositoryPath();
         return repo.hasBucketRelativeFolder()
             ? repo.getBucketRelativeFolder() + "/" + relativizedPath
             : relativizedPath;
@@ -180,40 +643,56 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         // Here's what we'll do in this method:
         //      1) parse "repodata/repomd.xml" to determine the primary metadata file (typically "repodata/primary.xml.gz")
         //      2) extract a file list from the primary metadata file
-        //      3) ensure that all files in the primary file list exist in the s3 repo
+        //      3) ensure that all files in the primary file list exist in the s3 repo, according to the manifest we
+        //         published with the metadata or, if it's missing or stale, a listing of the whole repository
         //      4) "touch"/synthesize a zero-sized file for each file in the primary list
+        final List<S3ObjectSummary> existingFiles = new ArrayList<S3ObjectSummary>();
+        context.setExistingFiles(existingFiles);
         if (context.getLocalYumRepo().isRepoDataExists()) { // if repo exists...
             // determine primary metadata file from metadata xml and parse it to determine repository files *declared* by the metadata
             List<String> repoRelativeFilePathList = context.getLocalYumRepo().parseFileListFromRepoMetadata();
             S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
-            ListObjectsRequest request = new ListObjectsRequest()
-                    .withBucketName(context.getS3RepositoryPath().getBucketName());
-            if (s3RepositoryPath.hasBucketRelativeFolder()) {
-                request.withPrefix(s3RepositoryPath.getBucketRelativeFolder() + "/");
+            // the manifest is keyed by repo-relative path whereas the s3 api returns bucket-relative paths
+            final KeyIndex repositoryFiles;
+            String keyPrefix = "";
+            final RepositoryManifest manifest = context.getLocalYumRepo().readRepositoryManifest();
+            if (manifest != null) {
+                getLog().info("Checking declared files against the repository manifest (" + manifest.getFiles().size() + " files).");
+                repositoryFiles = manifest.getFiles();
+            } else {
+                ListObjectsRequest request = new ListObjectsRequest()
+                        .withBucketName(context.getS3RepositoryPath().getBucketName());
+                if (s3RepositoryPath.hasBucketRelativeFolder()) {
+                    keyPrefix = s3RepositoryPath.getBucketRelativeFolder() + "/";
+                    request.withPrefix(keyPrefix);
+                }
+                repositoryFiles = S3Utils.indexAllObjects(context.getS3Session(), request);
             }
-            List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), request);
-            // we will start with a set of metadata-declared files and remove any file we find that exists in the repo;
-            // we expect the Set to be empty when finished iteration. note that s3 api returns bucket-relative
-            // paths, so we prefix each of our repoRelativeFilePaths with the repository path.
-            Set<String> bucketRelativePaths = new HashSet<String>();
+            // every metadata-declared file must exist in the repo
+            Set<String> missing = new TreeSet<String>();
             for (String repoRelativeFilePath : repoRelativeFilePathList) {
-                if (s3RepositoryPath.hasBucketRelativeFolder()) {
-                    bucketRelativePaths.add(s3RepositoryPath.getBucketRelativeFolder() + "/" + repoRelativeFilePath);
+                final int index = repositoryFiles.indexOf(keyPrefix + repoRelativeFilePath);
+                if (index < 0) {
+                    missing.add(keyPrefix + repoRelativeFilePath);
                 } else {
-                    bucketRelativePaths.add(repoRelativeFilePath);
+                    final S3ObjectSummary existing = new S3ObjectSummary();
+                    existing.setKey(repoRelativeFilePath);
+                    existing.setSize(repositoryFiles.getSize(index));
+                    existing.setETag(repositoryFiles.getETag(index));
+                    existingFiles.add(existing);
                 }
             }
-            // for each bucket relative path in the listObjects result, remove from our set
-            for (S3ObjectSummary summary : result) {
-                bucketRelativePaths.remove(summary.getKey());
-            }
-            // now, expect set to be empty
-            if (!bucketRelativePaths.isEmpty()) {
-                throw new MojoExecutionException("Primary metadata file declared files that did not exist in the repository: " + bucketRelativePaths);
+            if (!missing.isEmpty()) {
+                throw new MojoExecutionException("Primary metadata file declared files that did not exist in the repository: " + missing);
             }
             // for each file in our repoRelativeFilePathList, touch/synthesize the file
             for (String repoRelativeFilePath : repoRelativeFilePathList) {
-                File file = new File(stagingDirectory, repoRelativeFilePath);
+                File file = new File(context.getStagingDirectory(), repoRelativeFilePath);
+                if (context.getFileDigests(file) != null) {
+                    // only possible when merging: both publishes uploaded this path between their checks of repomd.xml
+                    throw new MojoExecutionException("A concurrent publish also uploaded " + repoRelativeFilePath
+                        + "; the object may hold either package, so it must be checked before publishing again");
+                }
                 if (file.exists()) {
                     throw new MojoExecutionException("Repo already has this file: " + file.getPath());
                 }
@@ -223,16 +702,58 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         }
     }
 
-    private void verifyUpdatedRepo(final RepoStatistics originalRepoStatistics, final RepoStatistics updatedRepoStatistics) throws MojoExecutionException {
+    /**
+     * Publish the size and ETag of every file with the metadata, so that the next publish needn't list the repository:
+     * the existing files (as found by {@link #synthesizeExistingRepositoryFiles}) plus the staged artifacts, whose ETag
+     * will be their md5 (they're uploaded in a single request).
+     */
+    private void writeRepositoryManifest(CreateOrUpdateContext context) throws MojoExecutionException {
+        final List<S3ObjectSummary> files = new ArrayList<S3ObjectSummary>(context.getExistingFiles());
+        for (File staged : context.getDigestedFiles()) {
+            final S3ObjectSummary summary = new S3ObjectSummary();
+            summary.setKey(ExtraIOUtils.relativize(context.getStagingDirectory(), staged)
+                .replaceAll("\\\\", "/").replaceAll("^/", ""));
+            summary.setSize(staged.length());
+            summary.setETag(context.getFileDigests(staged).hex(MultiDigest.MD5));
+            files.add(summary);
+        }
+        context.getLocalYumRepo().writeRepositoryManifest(files);
+    }
+
+    private void verifyUpdatedRepo(CreateOrUpdateContext context, final RepoStatistics originalRepoStatistics,
+                                   final RepoStatistics updatedRepoStatistics) throws MojoExecutionException {
         final int packages = updatedRepoStatistics.getNumPackages();
-        final int expectedPackages = originalRepoStatistics.getNumPackages() + artifactItems.size();
+        final int expectedPackages = originalRepoStatistics.getNumPackages() + context.getArtifactItems().size();
         // sanity check to ensure that the createrepo command worked
         if (packages != expectedPackages) {
             throw new MojoExecutionException("Updated repo metadata has " + packages + " packages, expected " + expectedPackages);
         }
     }
 
-    private S3RepositoryPath parseS3RepositoryPath() throws MojoExecutionException {
+    /** {@link #s3RepositoryPath} and then {@link #s3RepositoryPaths}, without duplicates. */
+    private List<S3RepositoryPath> parseS3RepositoryPaths() throws MojoExecutionException {
+        Set<String> configured = new LinkedHashSet<String>();
+        if (!StringUtils.isEmpty(s3RepositoryPath)) {
+            configured.add(s3RepositoryPath.trim());
+        }
+        if (s3RepositoryPaths != null) {
+            for (String path : s3RepositoryPaths) {
+                if (!StringUtils.isEmpty(path) && !path.trim().isEmpty()) {
+                    configured.add(path.trim());
+                }
+            }
+        }
+        if (configured.isEmpty()) {
+            throw new MojoExecutionException("No repository configured; set s3repo.repositoryPath or s3repo.repositoryPaths");
+        }
+        Set<S3RepositoryPath> parsed = new LinkedHashSet<S3RepositoryPath>();
+        for (String path : configured) {
+            parsed.add(parseS3RepositoryPath(path));
+        }
+        return new ArrayList<S3RepositoryPath>(parsed);
+    }
+
+    private S3RepositoryPath parseS3RepositoryPath(String s3RepositoryPath) throws MojoExecutionException {
         try {
             S3RepositoryPath parsed = S3RepositoryPath.parse(s3RepositoryPath);
             if (parsed.hasBucketRelativeFolder()) {
@@ -246,10 +767,6 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         }
     }
 
-    private void resolveAndCopyArtifactItems(CreateOrUpdateContext context) throws MojoExecutionException {
-        copyArtifactItems(context, resolveArtifactItems(artifactItems));
-    }
-
     private void maybeEnsureExistingRepositoryMetadata(CreateOrUpdateContext context) throws MojoExecutionException {
         if (!allowCreateRepository) {
             if (!context.getLocalYumRepo().isRepoDataExists()) {
@@ -260,7 +777,8 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
         }
     }
 
-    private void copyArtifactItems(CreateOrUpdateContext context, List<ArtifactItem> resolvedArtifactItems) throws MojoExecutionException {
+    private void copyArtifactItems(CreateOrUpdateContext context, List<ArtifactItem> resolvedArtifactItems,
+                                   Map<File, MultiDigest> artifactDigests) throws MojoExecutionException {
         for (ArtifactItem artifactItem : resolvedArtifactItems) {
             try {
                 // if a targetBaseName isn't specified, use <artifactID>-<version> as extensionless filename
@@ -278,8 +796,8 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
                     // create filename from dependency's file name but using pom-configured target subfolder and target extension
                     String targetFileName = baseFileNameToUse + "." + artifactItem.getTargetExtension();
                     final File targetDirectory = !StringUtils.isEmpty(artifactItem.getTargetSubfolder())
-                            ? new File(stagingDirectory, artifactItem.getTargetSubfolder())
-                            : stagingDirectory;
+                            ? new File(context.getStagingDirectory(), artifactItem.getTargetSubfolder())
+                            : context.getStagingDirectory();
                     targetFile = new File(targetDirectory, targetFileName);
                     if (targetFile.exists()) {
                         if (!artifactItem.isSnapshot() || !autoIncrementSnapshotArtifacts) {
@@ -293,8 +811,11 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
                         break;
                     }
                 } while (true);
-                getLog().info("Copying artifact to " + targetFile.getPath() + "...");
-                FileUtils.copyFile(artifactItem.getResolvedArtifact().getArtifact().getFile(), targetFile);
+                Files.createParentDirs(targetFile);
+                final File artifactFile = artifactItem.getResolvedArtifact().getArtifact().getFile();
+                final String how = ExtraFileUtils.linkOrCopy(artifactFile, targetFile);
+                context.addFileDigests(targetFile, artifactDigests.get(artifactFile));
+                getLog().info("Staged artifact as " + targetFile.getPath() + " (" + how + ")");
             } catch (IOException e) {
                 throw new MojoExecutionException("failed to copy artifact " + artifactItem + " to target", e);
             }
@@ -302,19 +823,39 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     }
 
     private List<ArtifactItem> resolveArtifactItems(List<ArtifactItem> artifactItems) throws MojoExecutionException {
-        // resolved artifacts have been downloaded and are available locally
+        // resolved artifacts have been downloaded and are available locally. we resolve all items in one batch so that
+        // the repository connector can download them concurrently (see Maven's "maven.artifact.threads")
+        List<ArtifactRequest> requests = new ArrayList<ArtifactRequest>(artifactItems.size());
         for (ArtifactItem item : artifactItems) {
-            try {
-                item.setResolvedArtifact(repositorySystem.resolveArtifact(session, toArtifactRequest(item)));
-            } catch (ArtifactResolutionException e) {
-                throw new MojoExecutionException("couldn't resolve: " + item, e);
+            requests.add(toArtifactRequest(item));
+        }
+        getLog().info("Resolving " + requests.size() + " artifact item(s)...");
+        List<ArtifactResult> results;
+        try {
+            results = repositorySystem.resolveArtifacts(session, requests);
+        } catch (ArtifactResolutionException e) {
+            // every item was attempted; report all of the failures at once
+            List<String> unresolved = new ArrayList<String>();
+            for (ArtifactResult result : e.getResults()) {
+                if (!result.isResolved()) {
+                    List<String> causes = new ArrayList<String>();
+                    for (Exception cause : result.getExceptions()) {
+                        causes.add(cause.getMessage());
+                    }
+                    unresolved.add(result.getRequest().getArtifact() + " (" + Joiner.on("; ").join(causes) + ")");
+                }
             }
+            throw new MojoExecutionException("couldn't resolve " + unresolved.size() + " of " + requests.size()
+                + " artifact item(s):\n    " + Joiner.on("\n    ").join(unresolved), e);
+        }
+        for (int i = 0; i < artifactItems.size(); ++i) {
+            artifactItems.get(i).setResolvedArtifact(results.get(i));
         }
         return artifactItems;
     }
 
     private ArtifactRequest toArtifactRequest(ArtifactItem item) {
-        return new ArtifactRequest(toDefaultArtifact(item), project.getRemoteProjectRepositories(), "project");
+        return new ArtifactRequest(toDefaultArtifact(item), item.getRemoteRepositories(), "project");
     }
 
     private org.eclipse.aether.artifact.Artifact toDefaultArtifact(ArtifactItem item) {
@@ -322,11 +863,21 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
     }
 
     private AmazonS3Client createS3Client() {
-        if (s3AccessKey != null || s3SecretKey != null) {
-            return new AmazonS3Client(new BasicAWSCredentials(s3AccessKey, s3SecretKey));
-        } else {
-            return new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
+        final AWSCredentialsProvider credentials = s3AccessKey != null || s3SecretKey != null
+            ? new StaticCredentialsProvider(new BasicAWSCredentials(s3AccessKey, s3SecretKey))
+            : new DefaultAWSCredentialsProviderChain();
+        return new AmazonS3Client(credentials, new ClientConfiguration(), Timeline.s3MetricCollector());
+    }
+
+    private void maybeDeleteStaleMetadata(CreateOrUpdateContext context) throws MojoExecutionException {
+        if (staleMetadataGraceMinutes < 0) {
+            return;
         }
+        final Set<String> inUse = new HashSet<String>(context.getPreviousRepoDataFiles());
+        inUse.addAll(context.getLocalYumRepo().listRepoDataFilesInUse());
+        new StaleMetadataCollector(context.getS3Session(), context.getS3RepositoryPath(), getLog())
+            .collect(inUse, TimeUnit.MINUTES.toMillis(staleMetadataGraceMinutes), doNotUpload, doNotUpload ? "SKIPPING: " : "",
+                transferManifestWriter);
     }
 
     private void ensureS3BucketExists(CreateOrUpdateContext context) throws MojoExecutionException {
@@ -347,20 +898,21 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
                 .withBucketName(s3RepositoryPath.getBucketName())
                 .withPrefix(bucketRelativeMetadataFolderPath/*, which has "/" suffix*/);
         List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), listObjectsRequest);
+        context.setRepoMetadataETag(null); // i.e., until we download repomd.xml
         getLog().debug("Found " + result.size() + " objects in bucket '" + s3RepositoryPath.getBucketName()
                 + "' with prefix '" + bucketRelativeMetadataFolderPath + "'...");
+        ProgressReporter progress = ProgressReporter.start(getLog(), "Downloading", result.size(),
+            S3Utils.totalSize(result), transferManifestWriter);
         for (S3ObjectSummary summary : result) {
             final String asRepoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
             if (summary.getKey().endsWith("/")) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; it's a folder)");
+                progress.skipped(s3RepositoryPath + "/" + asRepoRelativePath, "it's a folder");
                 continue;
             }
             final S3Object object = context.getS3Session()
                     .getObject(new GetObjectRequest(s3RepositoryPath.getBucketName(), summary.getKey()));
             try {
-                File targetFile = new File(stagingDirectory, asRepoRelativePath);
-                getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile);
+                File targetFile = new File(context.getStagingDirectory(), asRepoRelativePath);
                 Files.createParentDirs(targetFile);
                 FileUtils.copyStreamToFile(new InputStreamFacade() {
                     @Override
@@ -368,10 +920,17 @@ public class CreateOrUpdateS3RepoMojo extends AbstractMojo {
                         return object.getObjectContent();
                     }
                 }, targetFile);
+                if (asRepoRelativePath.equals(WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME)) {
+                    context.setRepoMetadataETag(object.getObjectMetadata().getETag());
+                }
+                progress.completed(s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile, summary.getSize());
             } catch (IOException e) {
                 throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), e);
             }
         }
+        progress.finish();
+        // remember what the metadata we pulled uses, which mustn't be deleted along with stale metadata
+        context.addPreviousRepoDataFiles(context.getLocalYumRepo().listRepoDataFilesInUse());
     }
 
     private void createRepo(CreateOrUpdateContext context) throws MojoExecutionException {
@@ -0,0 +1,110 @@
+package com.bazaarvoice.maven.plugin.s3repo.create;
+
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import org.apache.maven.execution.MavenExecutionRequest;
+import org.apache.maven.execution.MavenSession;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Holds the artifact items that modules register for one combined publish (see "s3repo.aggregate"). Every execution of
+ * the goal in the reactor is expected to report, whether or not it registers anything; the execution that reports last
+ * gets everything registered and publishes it. This is safe with parallel (-T) builds, where the reactor's last project
+ * may well finish before the others. There is one registry per build, keyed by its request since parallel builds give
+ * each project its own copy of the session.
+ */
+final class ReactorPublishRegistry {
+
+    private static final Map<MavenExecutionRequest, ReactorPublishRegistry> REGISTRIES =
+        new WeakHashMap<MavenExecutionRequest, ReactorPublishRegistry>();
+
+    /** Keyed by execution (in reactor order); null until the execution reports. */
+    private final Map<String, Map<S3RepositoryPath, List<ArtifactItem>>> reports =
+        new LinkedHashMap<String, Map<S3RepositoryPath, List<ArtifactItem>>>();
+    private int pending;
+    private boolean published;
+
+    private ReactorPublishRegistry(Collection<String> expectedExecutions) {
+        for (String execution : expectedExecutions) {
+            reports.put(execution, null);
+        }
+        pending = reports.size();
+    }
+
+    /**
+     * The registry of the provided session; created, expecting the provided executions (in reactor order) to report,
+     * by the first execution to ask.
+     */
+    static ReactorPublishRegistry forSession(MavenSession session, Collection<String> expectedExecutions) {
+        synchronized (REGISTRIES) {
+            ReactorPublishRegistry registry = REGISTRIES.get(session.getRequest());
+            if (registry == null) {
+                registry = new ReactorPublishRegistry(expectedExecutions);
+                REGISTRIES.put(session.getRequest(), registry);
+            }
+            return registry;
+        }
+    }
+
+    /**
+     * Report that the provided execution has run, with the artifact items it registers (if any). Returns everything
+     * registered, grouped by repository in reactor order, if this was the last expected execution to report; otherwise
+     * null. Fails for an execution that wasn't expected, reports twice or reports after the combined publish, since
+     * its registrations would never be published.
+     */
+    synchronized Map<S3RepositoryPath, List<ArtifactItem>> report(String execution, Map<S3RepositoryPath, List<ArtifactItem>> registered) {
+        if (published) {
+            throw new IllegalStateException(execution + " ran after the combined publish");
+        }
+        if (!reports.containsKey(execution)) {
+            throw new IllegalStateException(execution + " wasn't expected to run (expected " + reports.keySet() + ")");
+        }
+        if (reports.get(execution) != null) {
+            throw new IllegalStateException(execution + " ran twice");
+        }
+        reports.put(execution, registered);
+        if (--pending > 0) {
+            return null;
+        }
+        published = true;
+        final Map<S3RepositoryPath, List<ArtifactItem>> combined = new LinkedHashMap<S3RepositoryPath, List<ArtifactItem>>();
+        for (Map<S3RepositoryPath, List<ArtifactItem>> report : reports.values()) {
+            for (Map.Entry<S3RepositoryPath, List<ArtifactItem>> entry : report.entrySet()) {
+                List<ArtifactItem> items = combined.get(entry.getKey());
+                if (items == null) {
+                    items = new ArrayList<ArtifactItem>();
+                    combined.put(entry.getKey(), items);
+                }
+                items.addAll(entry.getValue());
+            }
+        }
+        return combined;
+    }
+
+    /** The expected executions that haven't reported yet, in reactor order. */
+    synchronized List<String> getPending() {
+        final List<String> executions = new ArrayList<String>();
+        for (Map.Entry<String, Map<S3RepositoryPath, List<ArtifactItem>>> entry : reports.entrySet()) {
+            if (entry.getValue() == null) {
+                executions.add(entry.getKey());
+            }
+        }
+        return executions;
+    }
+
+    /** True if any execution has registered artifact items (i.e., a combined publish is owed). */
+    synchronized boolean hasRegistrations() {
+        for (Map<S3RepositoryPath, List<ArtifactItem>> report : reports.values()) {
+            if (report != null && !report.isEmpty()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.bazaarvoice.maven.plugin.s3repo.daemon;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+
+import java.io.File;
+
+/** State that the daemon keeps between batches. */
+final class PublishDaemonContext {
+
+    private AmazonS3 s3Session;
+    private S3RepositoryPath s3RepositoryPath;
+    private LocalYumRepoFacade localYumRepo;
+    private File stagingDirectory;
+    /** False until the staging directory mirrors the remote metadata, and after any failed batch. */
+    private boolean metadataCurrent;
+    /** The ETag of the remote repomd.xml that the staging directory mirrors; null if the repository had none. */
+    private String repoMetadataETag;
+    /** The number of packages declared by the staged metadata. */
+    private int packageCount;
+    private long batchesPublished;
+    private long packagesPublished;
+    private String lastFailure;
+
+    public AmazonS3 getS3Session() {
+        return s3Session;
+    }
+
+    public void setS3Session(AmazonS3 s3Session) {
+        this.s3Session = s3Session;
+    }
+
+    public S3RepositoryPath getS3RepositoryPath() {
+        return s3RepositoryPath;
+    }
+
+    public void setS3RepositoryPath(S3RepositoryPath s3RepositoryPath) {
+        this.s3RepositoryPath = s3RepositoryPath;
+    }
+
+    public LocalYumRepoFacade getLocalYumRepo() {
+        return localYumRepo;
+    }
+
+    public void setLocalYumRepo(LocalYumRepoFacade localYumRepo) {
+        this.localYumRepo = localYumRepo;
+    }
+
+    /** The local root of the repository; package files are zero-size placeholders between batches. */
+    public File getStagingDirectory() {
+        return stagingDirectory;
+    }
+
+    public void setStagingDirectory(File stagingDirectory) {
+        this.stagingDirectory = stagingDirectory;
+    }
+
+    public boolean isMetadataCurrent() {
+        return metadataCurrent;
+    }
+
+    public void setMetadataCurrent(boolean metadataCurrent) {
+        this.metadataCurrent = metadataCurrent;
+    }
+
+    public String getRepoMetadataETag() {
+        return repoMetadataETag;
+    }
+
+    public void setRepoMetadataETag(String repoMetadataETag) {
+        this.repoMetadataETag = repoMetadataETag;
+    }
+
+    public int getPackageCount() {
+        return packageCount;
+    }
+
+    public void setPackageCount(int packageCount) {
+        this.packageCount = packageCount;
+    }
+
+    public synchronized void recordPublished(int packages) {
+        ++batchesPublished;
+        packagesPublished += packages;
+    }
+
+    public synchronized void recordFailure(String failure) {
+        lastFailure = failure;
+    }
+
+    public synchronized String describe() {
+        return "repository: " + s3RepositoryPath + "\n"
+            + "batches published: " + batchesPublished + "\n"
+            + "packages published: " + packagesPublished + "\n"
+            + "last failure: " + (lastFailure == null ? "none" : lastFailure) + "\n";
+    }
+
+}
@@ -0,0 +1,643 @@
+package com.bazaarvoice.maven.plugin.s3repo.daemon;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.StaleMetadataCollector;
+import com.bazaarvoice.maven.plugin.s3repo.util.BatchingQueue;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraFileUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.ParallelTasks;
+import com.bazaarvoice.maven.plugin.s3repo.util.ProgressReporter;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
+import com.google.common.base.Charsets;
+import com.google.common.base.Objects;
+import com.google.common.io.Files;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs until shut down, publishing local package files to one S3 YUM repository on request. Requests that arrive
+ * within {@link #batchWindowMillis} of each other are published together with a single metadata update and upload.
+ * The repository metadata is kept in the staging directory between batches and only pulled again when someone else
+ * changes the repository.
+ *
+ * HTTP API (bound to {@link #bindAddress}):
+ *   POST /publish  - body: one local package (*.rpm) file per line, optionally followed by a tab and the repo-relative
+ *                    path to publish it as (the file name at the repository root by default). The response is sent when
+ *                    the batch containing the request has been published: 200 on success, 409 if a target path
+ *                    already exists in the repository, 500 if the batch failed.
+ *   GET /status    - counters and the last failure.
+ *   POST /shutdown - stop accepting requests, publish those already queued, and exit.
+ */
+@Mojo(name = "publish-daemon", requiresProject = false)
+public final class PublishDaemonMojo extends AbstractMojo {
+
+    /** Prefix of the failure reason of requests that would overwrite an existing package (reported as 409). */
+    private static final String COLLISION = "already exists: ";
+
+    /**
+     * The s3 path to the root of the target repository.
+     * These are all valid values:
+     *      "s3://Bucket1/Repo1"
+     *      "/Bucket/Repo1"
+     */
+    @Parameter(property = "s3repo.repositoryPath", required = true)
+    private String s3RepositoryPath;
+
+    @Parameter(property = "s3repo.accessKey")
+    private String s3AccessKey;
+
+    @Parameter(property = "s3repo.secretKey")
+    private String s3SecretKey;
+
+    /** Staging directory; a temporary directory if not set. It holds the metadata and a zero-size placeholder per
+     * package between batches. */
+    @Parameter(property = "s3repo.stagingDirectory")
+    private File stagingDirectory;
+
+    /** Whether or not the daemon may create a new repository if the repository path has no metadata yet. */
+    @Parameter(property = "s3repo.allowCreateRepository", defaultValue = "false")
+    private boolean allowCreateRepository;
+
+    /** The address to listen on. The API is unauthenticated, so keep this local unless the network is trusted. */
+    @Parameter(property = "s3repo.bindAddress", defaultValue = "127.0.0.1")
+    private String bindAddress;
+
+    @Parameter(property = "s3repo.port", defaultValue = "8765")
+    private int port;
+
+    /** How long to wait, after the first request of a batch arrives, for more requests to publish with it. */
+    @Parameter(property = "s3repo.batchWindowMillis", defaultValue = "2000")
+    private long batchWindowMillis;
+
+    /** The most requests to publish in one batch; a full batch is published without waiting out the window. */
+    @Parameter(property = "s3repo.maxBatchRequests", defaultValue = "100")
+    private int maxBatchRequests;
+
+    /** Number of concurrent uploads. Packages are uploaded before metadata, and repomd.xml last. */
+    @Parameter(property = "s3repo.uploadThreads", defaultValue = "4")
+    private int uploadThreads;
+
+    /** How many times a batch merges with a concurrent publish to the same repository (detected by a changed
+     * repomd.xml ETag just before we upload our packages or our metadata) before the batch fails. */
+    @Parameter(property = "s3repo.metadataConflictRetries", defaultValue = "3")
+    private int metadataConflictRetries;
+
+    /** After each batch, metadata files used by neither the published repomd.xml nor the one it replaced are deleted
+     * from the repository once they are older than this many minutes. A negative value keeps them. */
+    @Parameter(property = "s3repo.staleMetadataGraceMinutes", defaultValue = "1440")
+    private int staleMetadataGraceMinutes;
+
+    /** The createrepo executable. */
+    @Parameter(property = "s3repo.createrepo", defaultValue = "createrepo")
+    private String createrepo;
+
+    /** Additional options for the createrepo command. See http://linux.die.net/man/8/createrepo. */
+    @Parameter(property = "s3repo.createrepoOpts", defaultValue = "")
+    private String createrepoOpts;
+
+    /** Optional file to which we write a timeline of the daemon's run (the phases of each batch, every S3 request and
+     * every createrepo run) in the Chrome trace event format when it shuts down; a summary, including S3 latency
+     * percentiles, is logged then. The events are kept in memory until then. */
+    @Parameter(property = "s3repo.timeline")
+    private File timeline;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        Timeline.startIfConfigured(timeline);
+        try {
+            internalExecute();
+        } finally {
+            Timeline.stopIfConfigured(timeline, getLog());
+        }
+    }
+
+    private void internalExecute() throws MojoExecutionException {
+        final PublishDaemonContext context = new PublishDaemonContext();
+
+        context.setS3Session(createS3Client());
+        context.setS3RepositoryPath(parseS3RepositoryPath());
+        context.setStagingDirectory(stagingDirectory != null ? stagingDirectory : Files.createTempDir());
+        context.setLocalYumRepo(new LocalYumRepoFacade(context.getStagingDirectory(), createrepo, createrepoOpts, getLog()));
+        getLog().info("I will use " + context.getStagingDirectory().getAbsolutePath() + " as your staging directory.");
+
+        final Timeline.Phases phases = Timeline.phases(context.getS3RepositoryPath().toString());
+        try {
+            phases.begin("ensureS3BucketExists");
+            ensureS3BucketExists(context);
+            // pull the metadata up front so that the first batch is as fast as the rest
+            phases.begin("refreshRepositoryMetadata");
+            refreshRepositoryMetadata(context);
+        } finally {
+            phases.end();
+        }
+
+        final BatchingQueue<PublishRequest> queue = new BatchingQueue<PublishRequest>();
+        final ExecutorService exchangeThreads = Executors.newCachedThreadPool();
+        final HttpServer server = startServer(context, queue, exchangeThreads);
+        try {
+            List<PublishRequest> batch;
+            while ((batch = queue.takeBatch(batchWindowMillis, maxBatchRequests)) != null) {
+                publishBatch(context, batch);
+            }
+            getLog().info("Shut down.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted while waiting for publish requests", e);
+        } finally {
+            queue.close();
+            List<PublishRequest> abandoned;
+            try {
+                while ((abandoned = queue.takeBatch(0, Integer.MAX_VALUE)) != null) {
+                    for (PublishRequest request : abandoned) {
+                        request.fail("the daemon stopped before publishing this request");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            server.stop(1);
+            exchangeThreads.shutdown();
+        }
+    }
+
+    private HttpServer startServer(final PublishDaemonContext context, final BatchingQueue<PublishRequest> queue,
+                                   ExecutorService exchangeThreads) throws MojoExecutionException {
+        final HttpServer server;
+        try {
+            server = HttpServer.create(new InetSocketAddress(bindAddress, port), 0);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Couldn't listen on " + bindAddress + ":" + port, e);
+        }
+        server.createContext("/publish", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    respond(exchange, 405, "use POST\n");
+                    return;
+                }
+                final PublishRequest request;
+                try {
+                    request = parsePublishRequest(exchange.getRequestBody());
+                } catch (IllegalArgumentException e) {
+                    respond(exchange, 400, e.getMessage() + "\n");
+                    return;
+                }
+                if (!queue.offer(request)) {
+                    respond(exchange, 503, "shutting down\n");
+                    return;
+                }
+                final String failure;
+                try {
+                    failure = request.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    respond(exchange, 503, "interrupted\n");
+                    return;
+                }
+                if (failure == null) {
+                    respond(exchange, 200, "published " + request.getEntries().size() + " package(s)\n");
+                } else {
+                    respond(exchange, failure.startsWith(COLLISION) ? 409 : 500, failure + "\n");
+                }
+            }
+        });
+        server.createContext("/status", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                respond(exchange, 200, context.describe() + "queued requests: " + queue.size() + "\n");
+            }
+        });
+        server.createContext("/shutdown", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                if (!"POST".equals(exchange.getRequestMethod())) {
+                    respond(exchange, 405, "use POST\n");
+                    return;
+                }
+                queue.close();
+                respond(exchange, 200, "shutting down after " + queue.size() + " queued request(s)\n");
+            }
+        });
+        server.setExecutor(exchangeThreads); // each publish exchange blocks until its batch is done
+        server.start();
+        getLog().info("Listening for publish requests on http://" + bindAddress + ":" + port + "/publish (batch window "
+            + batchWindowMillis + "ms, at most " + maxBatchRequests + " requests per batch)...");
+        return server;
+    }
+
+    private static PublishRequest parsePublishRequest(InputStream body) throws IOException {
+        final PublishRequest request = new PublishRequest();
+        for (String line : IOUtils.readLines(body, Charsets.UTF_8.name())) {
+            if (StringUtils.isBlank(line)) {
+                continue;
+            }
+            final String[] fields = line.split("\t", 2);
+            final File source = new File(fields[0].trim());
+            // only packages: anything the daemon can read would otherwise be published
+            if (!source.getName().endsWith(".rpm")) {
+                throw new IllegalArgumentException("not an rpm file: " + source);
+            }
+            if (!source.isFile()) {
+                throw new IllegalArgumentException("not a file: " + source);
+            }
+            final String target = fields.length > 1 && !StringUtils.isBlank(fields[1])
+                ? StringUtils.strip(fields[1].trim(), "/")
+                : source.getName();
+            if (target.equals(WellKnowns.YUM_REPODATA_FOLDERNAME) || target.startsWith(WellKnowns.YUM_REPODATA_FOLDERNAME + "/")
+                    || ("/" + target + "/").contains("/../") || !target.endsWith(".rpm")) {
+                throw new IllegalArgumentException("invalid repository path: " + target);
+            }
+            request.add(source, target);
+        }
+        if (request.getEntries().isEmpty()) {
+            throw new IllegalArgumentException("no package files in request");
+        }
+        return request;
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        final byte[] bytes = body.getBytes(Charsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /** Publish the batch; every request in it is completed (successfully or not) when this returns. */
+    private void publishBatch(PublishDaemonContext context, List<PublishRequest> batch) {
+        final Timeline.Phases phases = Timeline.phases(context.getS3RepositoryPath().toString());
+        try {
+            phases.begin("checkRepositoryMetadata");
+            if (!context.isMetadataCurrent() || !remoteRepoMetadataUnchanged(context)) {
+                phases.begin("refreshRepositoryMetadata");
+                refreshRepositoryMetadata(context);
+            }
+            List<PublishRequest> accepted = acceptRequests(context, batch);
+            if (accepted.isEmpty()) {
+                return;
+            }
+            phases.begin("stagePackages");
+            List<File> packageFiles = stagePackages(context, accepted);
+            getLog().info("Publishing " + packageFiles.size() + " package(s) from " + accepted.size() + " request(s)...");
+            // the metadata files of the repomd.xml we replace mustn't be deleted along with stale metadata
+            final Set<String> inUse = new HashSet<String>(context.getLocalYumRepo().listRepoDataFilesInUse());
+            phases.begin("updateRepositoryMetadata");
+            updateRepositoryMetadata(context, packageFiles.size());
+            // S3 has no conditional put, so we compare repomd.xml's ETag with the one we mirror before we upload
+            // anything; on a mismatch, we accept the requests again on top of the new metadata so that those colliding
+            // with the concurrent publish fail (409) instead of overwriting its packages
+            phases.begin("checkRepositoryMetadata");
+            int merges = 0;
+            while (!remoteRepoMetadataUnchanged(context)) {
+                ensureMayMerge(merges++);
+                phases.begin("mergeConcurrentUpdate");
+                refreshRepositoryMetadata(context);
+                inUse.addAll(context.getLocalYumRepo().listRepoDataFilesInUse());
+                accepted = acceptRequests(context, accepted);
+                if (accepted.isEmpty()) {
+                    return;
+                }
+                packageFiles = stagePackages(context, accepted);
+                updateRepositoryMetadata(context, packageFiles.size());
+            }
+            phases.begin("uploadPackages");
+            ProgressReporter progress = ProgressReporter.start(getLog(), "Uploading", packageFiles.size(),
+                ExtraIOUtils.totalLength(packageFiles));
+            uploadAll(context, packageFiles, progress);
+            progress.finish();
+            phases.begin("uploadRepositoryMetadata");
+            while (!uploadRepositoryMetadata(context)) {
+                ensureMayMerge(merges++);
+                phases.begin("mergeConcurrentUpdate");
+                refreshRepositoryMetadata(context);
+                inUse.addAll(context.getLocalYumRepo().listRepoDataFilesInUse());
+                packageFiles = stagePackages(context, accepted);
+                updateRepositoryMetadata(context, packageFiles.size());
+                phases.begin("uploadRepositoryMetadata");
+            }
+            // keep only placeholders locally; createrepo --update --skip-stat reuses their cached metadata next time
+            for (File packageFile : packageFiles) {
+                if (!packageFile.delete()) {
+                    throw new MojoExecutionException("Failed to delete staged package " + packageFile);
+                }
+                ExtraIOUtils.touch(packageFile);
+            }
+            context.setPackageCount(context.getPackageCount() + packageFiles.size());
+            context.recordPublished(packageFiles.size());
+            inUse.addAll(context.getLocalYumRepo().listRepoDataFilesInUse());
+            for (PublishRequest request : accepted) {
+                request.succeed();
+            }
+            phases.begin("maybeDeleteStaleMetadata");
+            maybeDeleteStaleMetadata(context, inUse);
+        } catch (Exception e) {
+            getLog().error("Failed to publish batch of " + batch.size() + " request(s)", e);
+            context.recordFailure(e.getMessage());
+            // start over from the remote metadata next time
+            context.setMetadataCurrent(false);
+            for (PublishRequest request : batch) {
+                request.fail("publish failed: " + e.getMessage());
+            }
+        } finally {
+            phases.end();
+        }
+    }
+
+    /** Fail if the batch has already merged with {@link #metadataConflictRetries} concurrent publishes. */
+    private void ensureMayMerge(int merges) throws MojoExecutionException {
+        if (merges >= metadataConflictRetries) {
+            throw new MojoExecutionException("Repository metadata kept changing while we were publishing; gave up after "
+                + merges + " merge(s)");
+        }
+        getLog().warn("Repository metadata was changed by a concurrent publish; merging (attempt " + (merges + 1)
+            + " of " + metadataConflictRetries + ")...");
+    }
+
+    /** Delete the metadata files not in use that are older than {@link #staleMetadataGraceMinutes}; only logs failures. */
+    private void maybeDeleteStaleMetadata(PublishDaemonContext context, Set<String> inUse) {
+        if (staleMetadataGraceMinutes < 0) {
+            return;
+        }
+        new StaleMetadataCollector(context.getS3Session(), context.getS3RepositoryPath(), getLog())
+            .collect(inUse, TimeUnit.MINUTES.toMillis(staleMetadataGraceMinutes), false, "", null);
+    }
+
+    /** Fail the requests that would overwrite a package in the repository (or in an earlier request of this batch). */
+    private List<PublishRequest> acceptRequests(PublishDaemonContext context, List<PublishRequest> batch) {
+        final List<PublishRequest> accepted = new ArrayList<PublishRequest>();
+        final Set<String> targets = new HashSet<String>();
+        for (PublishRequest request : batch) {
+            String collision = null;
+            final Set<String> requestTargets = new HashSet<String>();
+            for (PublishRequest.Entry entry : request.getEntries()) {
+                final String target = entry.getRepoRelativePath();
+                if (targets.contains(target) || !requestTargets.add(target)
+                        || new File(context.getStagingDirectory(), target).exists()) {
+                    collision = target;
+                    break;
+                }
+            }
+            if (collision != null) {
+                request.fail(COLLISION + collision);
+                continue;
+            }
+            targets.addAll(requestTargets);
+            accepted.add(request);
+        }
+        return accepted;
+    }
+
+    /** Link (or copy) the requested files into the staging directory. */
+    private List<File> stagePackages(PublishDaemonContext context, List<PublishRequest> requests) throws MojoExecutionException {
+        final List<File> packageFiles = new ArrayList<File>();
+        for (PublishRequest request : requests) {
+            for (PublishRequest.Entry entry : request.getEntries()) {
+                final File target = new File(context.getStagingDirectory(), entry.getRepoRelativePath());
+                if (target.exists()) {
+                    // only possible after our upload (see publishBatch): both publishes uploaded this path between
+                    // their checks of repomd.xml
+                    throw new MojoExecutionException("A concurrent publish also uploaded " + entry.getRepoRelativePath()
+                        + "; the object may hold either package, so it must be checked before publishing again");
+                }
+                try {
+                    Files.createParentDirs(target);
+                    final String how = ExtraFileUtils.linkOrCopy(entry.getSource(), target);
+                    getLog().debug("Staged " + entry.getSource() + " as " + target + " (" + how + ")");
+                } catch (IOException e) {
+                    throw new MojoExecutionException("Failed to stage " + entry.getSource(), e);
+                }
+                packageFiles.add(target);
+            }
+        }
+        return packageFiles;
+    }
+
+    /** Run createrepo over the placeholders plus the staged packages, check it, and index the result. */
+    private void updateRepositoryMetadata(PublishDaemonContext context, int addedPackages) throws MojoExecutionException {
+        final LocalYumRepoFacade localYumRepo = context.getLocalYumRepo();
+        if (localYumRepo.isRepoDataExists()) {
+            localYumRepo.updateRepo();
+        } else {
+            localYumRepo.createRepo();
+        }
+        final int packages = localYumRepo.parseFileListFromRepoMetadata().size();
+        final int expectedPackages = context.getPackageCount() + addedPackages;
+        if (packages != expectedPackages) {
+            throw new MojoExecutionException("Updated repo metadata has " + packages + " packages, expected " + expectedPackages);
+        }
+        localYumRepo.writePackageIndex();
+    }
+
+    /**
+     * Mirror the remote metadata in a clean staging directory, with a zero-size placeholder for every package it
+     * declares. This is the only step that lists the repository.
+     */
+    private void refreshRepositoryMetadata(PublishDaemonContext context) throws MojoExecutionException {
+        context.setMetadataCurrent(false);
+        ExtraFileUtils.createOrCleanDirectory(context.getStagingDirectory());
+        final S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        final String repoPrefix = s3RepositoryPath.hasBucketRelativeFolder() ? s3RepositoryPath.getBucketRelativeFolder() + "/" : "";
+        ListObjectsRequest request = new ListObjectsRequest().withBucketName(s3RepositoryPath.getBucketName());
+        if (!repoPrefix.isEmpty()) {
+            request.withPrefix(repoPrefix);
+        }
+        final Set<String> existingBucketKeys = new HashSet<String>();
+        final List<S3ObjectSummary> metadataObjects = new ArrayList<S3ObjectSummary>();
+        for (S3ObjectSummary summary : S3Utils.listAllObjects(context.getS3Session(), request)) {
+            existingBucketKeys.add(summary.getKey());
+            if (summary.getKey().startsWith(repoPrefix + WellKnowns.YUM_REPODATA_FOLDERNAME + "/") && !summary.getKey().endsWith("/")) {
+                metadataObjects.add(summary);
+            }
+        }
+        context.setRepoMetadataETag(null); // i.e., until we download repomd.xml
+        for (S3ObjectSummary summary : metadataObjects) {
+            final String asRepoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
+            final S3Object object = context.getS3Session().getObject(s3RepositoryPath.getBucketName(), summary.getKey());
+            try {
+                final File targetFile = new File(context.getStagingDirectory(), asRepoRelativePath);
+                Files.createParentDirs(targetFile);
+                Files.asByteSink(targetFile).writeFrom(object.getObjectContent());
+                if (asRepoRelativePath.equals(WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME)) {
+                    context.setRepoMetadataETag(object.getObjectMetadata().getETag());
+                }
+            } catch (IOException e) {
+                throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), e);
+            } finally {
+                ExtraIOUtils.closeQuietly(object.getObjectContent());
+            }
+        }
+        final LocalYumRepoFacade localYumRepo = context.getLocalYumRepo();
+        if (!localYumRepo.isRepoDataExists()) {
+            if (!allowCreateRepository) {
+                throw new MojoExecutionException("Repository " + s3RepositoryPath + " is not an existing repository (i.e., it"
+                    + " doesn't contain a " + WellKnowns.YUM_REPODATA_FOLDERNAME + " folder), use allowCreateRepository = true to create");
+            }
+            context.setPackageCount(0);
+        } else {
+            final List<String> declared = localYumRepo.parseFileListFromRepoMetadata();
+            final List<String> missing = new ArrayList<String>();
+            for (String repoRelativePath : declared) {
+                if (!existingBucketKeys.contains(repoPrefix + repoRelativePath)) {
+                    missing.add(repoRelativePath);
+                }
+                ExtraIOUtils.touch(new File(context.getStagingDirectory(), repoRelativePath));
+            }
+            if (!missing.isEmpty()) {
+                throw new MojoExecutionException("Primary metadata file declared files that did not exist in the repository: " + missing);
+            }
+            context.setPackageCount(declared.size());
+        }
+        context.setMetadataCurrent(true);
+        getLog().info("Pulled metadata of " + s3RepositoryPath + " (" + context.getPackageCount() + " packages).");
+    }
+
+    /**
+     * Upload the metadata, and then repomd.xml, if the remote repomd.xml is still the one we mirror. Returns false
+     * (having uploaded nothing or only unreferenced metadata files) if a concurrent publish changed it.
+     */
+    private boolean uploadRepositoryMetadata(PublishDaemonContext context) throws MojoExecutionException {
+        if (!remoteRepoMetadataUnchanged(context)) {
+            return false;
+        }
+        final File repoDataDirectory = context.getLocalYumRepo().repoDataDirectory();
+        final List<File> metadataFiles = new ArrayList<File>(ExtraIOUtils.listAllFiles(repoDataDirectory));
+        final File repoMetadataFile = new File(repoDataDirectory, WellKnowns.YUM_REPOMETADATA_FILENAME);
+        metadataFiles.remove(repoMetadataFile);
+        final ProgressReporter progress = ProgressReporter.start(getLog(), "Uploading metadata", metadataFiles.size() + 1,
+            ExtraIOUtils.totalLength(metadataFiles) + repoMetadataFile.length());
+        uploadAll(context, metadataFiles, progress);
+        if (!remoteRepoMetadataUnchanged(context)) {
+            return false;
+        }
+        final S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        final String bucketKey = toBucketKey(context, repoMetadataFile);
+        final PutObjectResult result = context.getS3Session().putObject(
+            S3Utils.newPutObjectRequest(s3RepositoryPath.getBucketName(), bucketKey, repoMetadataFile));
+        progress.completed(repoMetadataFile.getName() + " => s3://" + s3RepositoryPath.getBucketName() + "/" + bucketKey,
+            repoMetadataFile.length());
+        progress.finish();
+        // we now mirror what we just uploaded
+        context.setRepoMetadataETag(result.getETag());
+        return true;
+    }
+
+    /** True if the remote repomd.xml still has the ETag we mirror (or still doesn't exist, if it didn't). */
+    private boolean remoteRepoMetadataUnchanged(PublishDaemonContext context) {
+        final S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        String bucketKey = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME;
+        if (s3RepositoryPath.hasBucketRelativeFolder()) {
+            bucketKey = s3RepositoryPath.getBucketRelativeFolder() + "/" + bucketKey;
+        }
+        String remoteETag;
+        try {
+            remoteETag = context.getS3Session().getObjectMetadata(s3RepositoryPath.getBucketName(), bucketKey).getETag();
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() != 404) {
+                throw e;
+            }
+            remoteETag = null;
+        }
+        getLog().debug("repomd.xml ETag: mirrored " + context.getRepoMetadataETag() + ", now " + remoteETag);
+        return Objects.equal(remoteETag, context.getRepoMetadataETag());
+    }
+
+    /** Upload the provided files on up to {@link #uploadThreads} threads, returning when all are done. */
+    private void uploadAll(final PublishDaemonContext context, List<File> filesToUpload, final ProgressReporter progress)
+            throws MojoExecutionException {
+        final S3RepositoryPath targetRepository = context.getS3RepositoryPath();
+        final AmazonS3 s3Session = context.getS3Session();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final File toUpload : filesToUpload) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws MojoExecutionException {
+                    String bucketKey = toBucketKey(context, toUpload);
+                    s3Session.putObject(S3Utils.newPutObjectRequest(targetRepository.getBucketName(), bucketKey, toUpload));
+                    progress.completed(toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey, toUpload.length());
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(uploadThreads, tasks);
+    }
+
+    /** Convert local file in staging directory to bucket key (in target s3 repository). */
+    private static String toBucketKey(PublishDaemonContext context, File file) throws MojoExecutionException {
+        String relativizedPath = ExtraIOUtils.relativize(context.getStagingDirectory(), file);
+        // replace *other* file separators with S3-style file separators and strip first & last separator
+        relativizedPath = relativizedPath.replaceAll("\\\\", "/").replaceAll("^/", "").replaceAll("/$", "");
+        S3RepositoryPath repo = context.getS3RepositoryPath();
+        return repo.hasBucketRelativeFolder()
+            ? repo.getBucketRelativeFolder() + "/" + relativizedPath
+            : relativizedPath;
+    }
+
+    private void ensureS3BucketExists(PublishDaemonContext context) throws MojoExecutionException {
+        if (!context.getS3Session().doesBucketExist(context.getS3RepositoryPath().getBucketName())) {
+            throw new MojoExecutionException("Bucket doesn't exist in S3: " + context.getS3RepositoryPath().getBucketName());
+        }
+    }
+
+    private AmazonS3Client createS3Client() {
+        final AWSCredentialsProvider credentials = s3AccessKey != null || s3SecretKey != null
+            ? new StaticCredentialsProvider(new BasicAWSCredentials(s3AccessKey, s3SecretKey))
+            : new DefaultAWSCredentialsProviderChain();
+        return new AmazonS3Client(credentials, new ClientConfiguration(), Timeline.s3MetricCollector());
+    }
+
+    private S3RepositoryPath parseS3RepositoryPath() throws MojoExecutionException {
+        try {
+            S3RepositoryPath parsed = S3RepositoryPath.parse(s3RepositoryPath);
+            if (parsed.hasBucketRelativeFolder()) {
+                getLog().info("Using bucket '" + parsed.getBucketName() + "' and folder '" + parsed.getBucketRelativeFolder() + "' as repository...");
+            } else {
+                getLog().info("Using bucket '" + parsed.getBucketName() + "' as repository...");
+            }
+            return parsed;
+        } catch (Exception e) {
+            throw new MojoExecutionException("Failed to parse S3 repository path: " + s3RepositoryPath, e);
+        }
+    }
+
+}
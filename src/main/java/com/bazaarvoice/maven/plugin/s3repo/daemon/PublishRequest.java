@@ -0,0 +1,72 @@
+package com.bazaarvoice.maven.plugin.s3repo.daemon;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/** One client's request to publish local package files; the client's HTTP exchange waits until it is completed. */
+final class PublishRequest {
+
+    private final List<Entry> entries = new ArrayList<Entry>();
+    private final CountDownLatch completed = new CountDownLatch(1);
+    /** Null until completed; empty on success. */
+    private volatile String failure;
+
+    void add(File source, String repoRelativePath) {
+        entries.add(new Entry(source, repoRelativePath));
+    }
+
+    List<Entry> getEntries() {
+        return Collections.unmodifiableList(entries);
+    }
+
+    boolean isCompleted() {
+        return completed.getCount() == 0;
+    }
+
+    void succeed() {
+        complete("");
+    }
+
+    void fail(String reason) {
+        complete(reason);
+    }
+
+    private synchronized void complete(String outcome) {
+        if (!isCompleted()) {
+            failure = outcome;
+            completed.countDown();
+        }
+    }
+
+    /** Wait until the request is published or has failed; returns null on success, otherwise the reason it failed. */
+    String await() throws InterruptedException {
+        completed.await();
+        return failure.isEmpty() ? null : failure;
+    }
+
+    static final class Entry {
+
+        private final File source;
+        private final String repoRelativePath;
+
+        private Entry(File source, String repoRelativePath) {
+            this.source = source;
+            this.repoRelativePath = repoRelativePath;
+        }
+
+        /** The local package file. */
+        File getSource() {
+            return source;
+        }
+
+        /** Where the package goes in the repository. */
+        String getRepoRelativePath() {
+            return repoRelativePath;
+        }
+
+    }
+
+}
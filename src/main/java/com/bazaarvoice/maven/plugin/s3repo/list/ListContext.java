@@ -2,13 +2,13 @@ package com.bazaarvoice.maven.plugin.s3repo.list;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
-import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.RemoteYumRepoFacade;
 
 final class ListContext {
 
     private AmazonS3 s3Session;
     private S3RepositoryPath s3RepositoryPath;
-    private LocalYumRepoFacade localYumRepo;
+    private RemoteYumRepoFacade remoteYumRepo;
 
     public AmazonS3 getS3Session() {
         return s3Session;
@@ -26,12 +26,12 @@ final class ListContext {
         return s3RepositoryPath;
     }
 
-    public LocalYumRepoFacade getLocalYumRepo() {
-        return localYumRepo;
+    public RemoteYumRepoFacade getRemoteYumRepo() {
+        return remoteYumRepo;
     }
 
-    public void setLocalYumRepo(LocalYumRepoFacade localYumRepo) {
-        this.localYumRepo = localYumRepo;
+    public void setRemoteYumRepo(RemoteYumRepoFacade remoteYumRepo) {
+        this.remoteYumRepo = remoteYumRepo;
     }
 
 }
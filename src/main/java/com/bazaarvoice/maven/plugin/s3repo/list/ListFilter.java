@@ -0,0 +1,93 @@
+package com.bazaarvoice.maven.plugin.s3repo.list;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageMetadata;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.Collection;
+import java.util.regex.Pattern;
+
+/**
+ * The list-repo filters. Path filters (subfolder, file name prefix and the literal beginning of a glob) become a
+ * single repo-relative prefix that is pushed down into the S3 listing; package filters (name, version) are matched
+ * against the package index or the primary metadata.
+ */
+public final class ListFilter {
+
+    /** Repo-relative prefix from the subfolder and name prefix ("" if neither was given). */
+    private final String pathPrefix;
+    /** Null if no glob was given. */
+    private final Pattern glob;
+    private final String globLiteralPrefix;
+    private final String packageName;
+    private final String packageVersion;
+
+    /** Any blank argument is not a filter. The glob is matched against the repo-relative path ("*" and "?" don't match "/", "**" does). */
+    public ListFilter(String subfolder, String namePrefix, String glob, String packageName, String packageVersion) {
+        final String folder = StringUtils.strip(StringUtils.trimToEmpty(subfolder), "/");
+        this.pathPrefix = (folder.isEmpty() ? "" : folder + "/") + StringUtils.trimToEmpty(namePrefix);
+        this.glob = StringUtils.isBlank(glob) ? null : globToPattern(glob.trim());
+        this.globLiteralPrefix = StringUtils.isBlank(glob) ? "" : glob.trim().split("[*?]", 2)[0];
+        this.packageName = StringUtils.trimToNull(packageName);
+        this.packageVersion = StringUtils.trimToNull(packageVersion);
+    }
+
+    public boolean hasPackageFilters() {
+        return packageName != null || packageVersion != null;
+    }
+
+    /** The repo-relative prefix that every matching path starts with, or null if the path filters contradict each other. */
+    public String toRepoRelativePrefix() {
+        if (globLiteralPrefix.startsWith(pathPrefix)) {
+            return globLiteralPrefix;
+        }
+        return pathPrefix.startsWith(globLiteralPrefix) ? pathPrefix : null;
+    }
+
+    public boolean matchesPath(String repoRelativePath) {
+        return repoRelativePath.startsWith(pathPrefix) && (glob == null || glob.matcher(repoRelativePath).matches());
+    }
+
+    /** True if the package matches the name and version filters (a version matches "version" or "version-release"). */
+    public boolean matchesPackage(PackageMetadata packageMetadata) {
+        if (packageName != null && !packageName.equals(packageMetadata.getName())) {
+            return false;
+        }
+        return packageVersion == null
+            || packageVersion.equals(packageMetadata.getVersion())
+            || packageVersion.equals(packageMetadata.getVersion() + "-" + packageMetadata.getRelease());
+    }
+
+    /** Null if not filtering by package name. */
+    public String getPackageName() {
+        return packageName;
+    }
+
+    /** The longest common prefix of the provided paths. */
+    public static String commonPrefix(Collection<String> paths) {
+        return StringUtils.getCommonPrefix(paths.toArray(new String[paths.size()]));
+    }
+
+    static Pattern globToPattern(String glob) {
+        final StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); ++i) {
+            final char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                ++i;
+            } else if (c == '*') {
+                regex.append("[^/]*");
+            } else if (c == '?') {
+                regex.append("[^/]");
+            } else {
+                regex.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    @Override
+    public String toString() {
+        return "prefix=" + toRepoRelativePrefix() + ", glob=" + glob + ", packageName=" + packageName + ", packageVersion=" + packageVersion;
+    }
+
+}
@@ -0,0 +1,170 @@
+package com.bazaarvoice.maven.plugin.s3repo.list;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageMetadata;
+import com.google.common.base.Joiner;
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Receives list-repo entries as they are produced. "log" collects the repo-relative paths and logs them at the end (the
+ * original behavior); "jsonl" and "csv" write one record per entry, as it is produced, to a file or stdout.
+ */
+abstract class ListOutput {
+
+    /** Column/field names of structured output, in order. */
+    private static final String[] FIELDS = {"path", "name", "epoch", "version", "release", "arch", "size", "checksumType", "checksum", "lastModified"};
+
+    static ListOutput create(String format, PrintWriter out, boolean pretty, Log log) throws MojoExecutionException {
+        if ("log".equalsIgnoreCase(format)) {
+            return new LogOutput(log, pretty);
+        } else if ("jsonl".equalsIgnoreCase(format) || "json".equalsIgnoreCase(format)) {
+            return new JsonLinesOutput(out);
+        } else if ("csv".equalsIgnoreCase(format)) {
+            return new CsvOutput(out);
+        }
+        throw new MojoExecutionException("Unknown s3repo.outputFormat: " + format + " (expected log, jsonl or csv)");
+    }
+
+    /** Write one entry; the package metadata is null if the repository's metadata wasn't read. */
+    abstract void write(String repoRelativePath, S3ObjectSummary summary, PackageMetadata packageMetadata);
+
+    abstract void finish() throws MojoExecutionException;
+
+    /** Field values in {@link #FIELDS} order; package fields are null if unknown. */
+    static Object[] values(String repoRelativePath, S3ObjectSummary summary, PackageMetadata packageMetadata) {
+        final boolean known = packageMetadata != null;
+        return new Object[] {
+            repoRelativePath,
+            known ? packageMetadata.getName() : null,
+            known ? packageMetadata.getEpoch() : null,
+            known ? packageMetadata.getVersion() : null,
+            known ? packageMetadata.getRelease() : null,
+            known ? packageMetadata.getArch() : null,
+            summary.getSize(),
+            known ? packageMetadata.getChecksumType() : null,
+            known ? packageMetadata.getChecksum() : null,
+            summary.getLastModified() == null ? null : formatTimestamp(summary.getLastModified())
+        };
+    }
+
+    private static String formatTimestamp(Date date) {
+        // SimpleDateFormat isn't thread-safe, so no shared instance
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(date);
+    }
+
+    private static void checkWritten(PrintWriter out) throws MojoExecutionException {
+        if (out.checkError()) { // also flushes
+            throw new MojoExecutionException("Failed to write list-repo output");
+        }
+    }
+
+    private static final class LogOutput extends ListOutput {
+
+        private final Log log;
+        private final boolean pretty;
+        private final List<String> paths = new ArrayList<String>();
+
+        private LogOutput(Log log, boolean pretty) {
+            this.log = log;
+            this.pretty = pretty;
+        }
+
+        @Override
+        void write(String repoRelativePath, S3ObjectSummary summary, PackageMetadata packageMetadata) {
+            paths.add(repoRelativePath);
+        }
+
+        @Override
+        void finish() {
+            log.info("[RESULT]");
+            if (pretty) {
+                for (String one : paths) {
+                    log.info(one);
+                }
+            } else {
+                log.info(Joiner.on(",").join(paths));
+            }
+        }
+
+    }
+
+    private static final class JsonLinesOutput extends ListOutput {
+
+        private final PrintWriter out;
+
+        private JsonLinesOutput(PrintWriter out) {
+            this.out = out;
+        }
+
+        @Override
+        void write(String repoRelativePath, S3ObjectSummary summary, PackageMetadata packageMetadata) {
+            final Object[] values = values(repoRelativePath, summary, packageMetadata);
+            final StringBuilder line = new StringBuilder("{");
+            for (int i = 0; i < FIELDS.length; ++i) {
+                if (values[i] == null) {
+                    continue;
+                }
+                if (line.length() > 1) {
+                    line.append(',');
+                }
+                line.append('"').append(FIELDS[i]).append("\":");
+                if (values[i] instanceof Number) {
+                    line.append(values[i]);
+                } else {
+                    line.append('"').append(StringEscapeUtils.escapeJson(values[i].toString())).append('"');
+                }
+            }
+            out.println(line.append('}'));
+        }
+
+        @Override
+        void finish() throws MojoExecutionException {
+            checkWritten(out);
+        }
+
+    }
+
+    private static final class CsvOutput extends ListOutput {
+
+        private final PrintWriter out;
+
+        private CsvOutput(PrintWriter out) {
+            this.out = out;
+            out.println(Joiner.on(',').join(FIELDS));
+        }
+
+        @Override
+        void write(String repoRelativePath, S3ObjectSummary summary, PackageMetadata packageMetadata) {
+            final Object[] values = values(repoRelativePath, summary, packageMetadata);
+            final StringBuilder line = new StringBuilder();
+            for (int i = 0; i < values.length; ++i) {
+                if (i > 0) {
+                    line.append(',');
+                }
+                if (values[i] != null) {
+                    line.append(StringEscapeUtils.escapeCsv(values[i].toString()));
+                }
+            }
+            out.println(line);
+        }
+
+        @Override
+        void finish() throws MojoExecutionException {
+            checkWritten(out);
+        }
+
+    }
+
+}
@@ -1,42 +1,38 @@
 package com.bazaarvoice.maven.plugin.s3repo.list;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3Client;
-import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
-import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
-import com.bazaarvoice.maven.plugin.s3repo.util.ExtraFileUtils;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageIndex;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageMetadata;
+import com.bazaarvoice.maven.plugin.s3repo.support.RemoteYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
 import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
-import com.google.common.base.Joiner;
-import com.google.common.collect.Lists;
-import com.google.common.collect.Sets;
-import com.google.common.io.Files;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
+import com.google.common.base.Charsets;
+import com.google.common.collect.Maps;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.io.InputStreamFacade;
 
 import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 @Mojo(name = "list-repo", requiresProject = false)
 public final class ListS3RepoMojo extends AbstractMojo {
 
-    /** Staging directory. This is where we will download any repo files that are needed (e.g., metadata files). */
-    @Parameter(property = "s3repo.stagingDirectory")
-    private File stagingDirectory;
-
     /**
      * The s3 path to the root of the target repository.
      * These are all valid values:
@@ -52,144 +48,160 @@ public final class ListS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.secretKey")
     private String s3SecretKey;
 
-    /** The createrepo executable. */
-    @Parameter(property = "s3repo.createrepo", defaultValue = "createrepo")
-    private String createrepo;
-
     @Parameter(property = "s3repo.pretty", defaultValue = "false")
     private boolean pretty;
 
     @Parameter(property = "s3repo.filterByMetadata", defaultValue = "true")
     private boolean filterByMetadata;
 
+    /** Only list files in this repo-relative folder (and its subfolders); pushed down into the S3 listing. */
+    @Parameter(property = "s3repo.subfolder")
+    private String subfolder;
+
+    /** Only list files whose names (within s3repo.subfolder, if given) start with this; pushed down into the S3 listing. */
+    @Parameter(property = "s3repo.namePrefix")
+    private String namePrefix;
+
+    /** Only list files whose repo-relative paths match this glob ("*" and "?" don't match "/", "**" does). */
+    @Parameter(property = "s3repo.glob")
+    private String glob;
+
+    /** Only list packages with exactly this name. Requires s3repo.filterByMetadata. */
+    @Parameter(property = "s3repo.packageName")
+    private String packageName;
+
+    /** Only list packages with this version (or "version-release"). Requires s3repo.filterByMetadata. */
+    @Parameter(property = "s3repo.packageVersion")
+    private String packageVersion;
+
+    /**
+     * How to produce the listing: "log" (the default) logs the repo-relative paths once the listing completes (see
+     * "s3repo.pretty"); "jsonl" writes one JSON object per file and "csv" one row per file (after a header row), each
+     * as soon as the file is listed. Structured output includes size and last-modified time from S3 and, when
+     * filtering by metadata, the package name, epoch, version, release, arch and checksum.
+     */
+    @Parameter(property = "s3repo.outputFormat", defaultValue = "log")
+    private String outputFormat;
+
+    /** The file to which "jsonl" or "csv" output is written; standard output if not set. */
+    @Parameter(property = "s3repo.outputFile")
+    private File outputFile;
+
+    /** Optional file to which we write a timeline of this execution (every S3 request) in the Chrome trace event
+     * format; a summary, including S3 latency percentiles, is logged at the end. */
+    @Parameter(property = "s3repo.timeline")
+    private File timeline;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
-        determineAndSetStagingDirectoryIfNeeded();
+        Timeline.startIfConfigured(timeline);
+        try {
+            internalExecute();
+        } finally {
+            Timeline.stopIfConfigured(timeline, getLog());
+        }
+    }
 
+    private void internalExecute() throws MojoExecutionException, MojoFailureException {
         ListContext context = new ListContext();
 
         context.setS3Session(createS3Client());
         context.setS3RepositoryPath(parseS3RepositoryPath());
-        context.setLocalYumRepo(determineLocalYumRepo(context.getS3RepositoryPath()));
+        context.setRemoteYumRepo(new RemoteYumRepoFacade(context.getS3Session(), context.getS3RepositoryPath(), getLog()));
 
-        cleanStagingDirectory();
-        maybeDownloadRepositoryMetadata(context);
-        List<String> list = internalListRepository(context);
-        print(list);
-    }
-
-    private void print(List<String> list) {
-        getLog().info("[RESULT]");
-        if (pretty) {
-            for (String one : list) {
-                getLog().info(one);
+        final PrintWriter writer = outputFile != null
+            ? ExtraIOUtils.openWriterIfConfigured(outputFile)
+            : new PrintWriter(new OutputStreamWriter(System.out, Charsets.UTF_8));
+        try {
+            ListOutput output = ListOutput.create(outputFormat, writer, pretty, getLog());
+            internalListRepository(context, output);
+            output.finish();
+        } finally {
+            if (outputFile != null) {
+                ExtraIOUtils.closeQuietly(writer);
+            } else {
+                writer.flush(); // never close stdout
             }
-        } else {
-            getLog().info(Joiner.on(",").join(list));
         }
     }
 
-    /** Return list of repo-relative file paths. */
-    private List<String> internalListRepository(ListContext context) throws MojoExecutionException {
-        List<String> list = Lists.newArrayList();
-        S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
-        Set<String> filesListedInMetadata = Sets.newHashSet(); // will remain empty if filterByMetadata = false
-        if (filterByMetadata) {
-            // assert: metadata is downloaded, so we can:
-            filesListedInMetadata.addAll(context.getLocalYumRepo().parseFileListFromRepoMetadata());
-            getLog().debug("files listed in metadata = " + filesListedInMetadata);
+    /**
+     * Hand each listed file to the output, page by page, as the S3 listing is walked. The listing is restricted to the
+     * longest prefix that the filters (and, when filtering by metadata, the matching packages' locations) share.
+     */
+    private void internalListRepository(ListContext context, final ListOutput output) throws MojoExecutionException {
+        final S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        final ListFilter filter = new ListFilter(subfolder, namePrefix, glob, packageName, packageVersion);
+        if (filter.hasPackageFilters() && !filterByMetadata) {
+            throw new MojoExecutionException("s3repo.packageName and s3repo.packageVersion require s3repo.filterByMetadata");
         }
-        // note: filesListedInMetadata are **repo-relative** file paths.
-        ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
-            .withBucketName(s3RepositoryPath.getBucketName());
-        String prefix = ""; // capture prefix for debug logging
-        if (s3RepositoryPath.hasBucketRelativeFolder()) {
-            prefix = s3RepositoryPath.getBucketRelativeFolder() + "/";
-            listObjectsRequest.withPrefix(prefix);
+        String prefix = filter.toRepoRelativePrefix();
+        if (prefix == null) {
+            getLog().info("No file can match the configured filters (" + filter + ").");
+            return;
         }
-        List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), listObjectsRequest);
-        for (S3ObjectSummary summary : result) {
-            if (summary.getKey().endsWith("/")) {
-                getLog().debug("Will not list " + summary.getKey() + ", it's a folder");
-                continue;
-            }
-            if (isMetadataFile(summary, s3RepositoryPath)) {
-                getLog().debug("Will not list " + summary.getKey() + ", it's a metadata file");
-                continue;
+        // will remain empty if filterByMetadata = false; keys are **repo-relative** file paths.
+        final Map<String, PackageMetadata> packagesByLocation = Maps.newHashMap();
+        if (filterByMetadata) {
+            for (PackageMetadata packageMetadata : readPackages(context, filter)) {
+                if (filter.matchesPath(packageMetadata.getLocation()) && filter.matchesPackage(packageMetadata)) {
+                    packagesByLocation.put(packageMetadata.getLocation(), packageMetadata);
+                }
             }
-            String asRepoRelativeFile =
-                s3RepositoryPath.hasBucketRelativeFolder()
-                    ? summary.getKey().replaceFirst("^\\Q" + s3RepositoryPath.getBucketRelativeFolder() + "/\\E", "")
-                    : summary.getKey();
-            if (filterByMetadata && !filesListedInMetadata.contains(asRepoRelativeFile)) {
-                getLog().debug("Not known to metadata: " + summary.getKey() + " (repo-relative: " + asRepoRelativeFile + ")");
+            getLog().debug("files listed in metadata = " + packagesByLocation.keySet());
+            if (packagesByLocation.isEmpty()) {
+                getLog().info("No package in the metadata matches the configured filters (" + filter + ").");
+                return;
             }
-            // Assert: summary.getKey() is a file that exists as a file in the S3 repo AND
-            // it is listed in the YUM metadata for the repo.
-            list.add(asRepoRelativeFile);
-        }
-        return list;
-    }
-
-    private void cleanStagingDirectory() throws MojoExecutionException {
-        ExtraFileUtils.createOrCleanDirectory(stagingDirectory);
-    }
-
-    private void maybeDownloadRepositoryMetadata(ListContext context) throws MojoExecutionException {
-        if (!filterByMetadata) {
+            // every matching location starts with the filter prefix, so this only ever narrows it
+            prefix = ListFilter.commonPrefix(packagesByLocation.keySet());
+        } else {
             getLog().info("Will not filter file list using YUM metadata.");
-            return;
         }
-        S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
         ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
             .withBucketName(s3RepositoryPath.getBucketName());
-        String prefix = ""; // capture prefix for debug logging
         if (s3RepositoryPath.hasBucketRelativeFolder()) {
-            prefix = s3RepositoryPath.getBucketRelativeFolder() + "/" + WellKnowns.YUM_REPODATA_FOLDERNAME + "/";
+            listObjectsRequest.withPrefix(s3RepositoryPath.getBucketRelativeFolder() + "/" + prefix);
+        } else if (!prefix.isEmpty()) {
             listObjectsRequest.withPrefix(prefix);
         }
-        List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), listObjectsRequest);
-        for (S3ObjectSummary summary : result) {
-            if (summary.getKey().endsWith("/")) {
-                getLog().debug("Will not list " + summary.getKey() + ", it's a folder");
-                continue;
+        getLog().debug("Listing with prefix '" + listObjectsRequest.getPrefix() + "'");
+        S3Utils.forEachObject(context.getS3Session(), listObjectsRequest, new S3Utils.ObjectHandler() {
+            @Override
+            public void handle(S3ObjectSummary summary) {
+                if (summary.getKey().endsWith("/")) {
+                    getLog().debug("Will not list " + summary.getKey() + ", it's a folder");
+                    return;
+                }
+                if (isMetadataFile(summary, s3RepositoryPath)) {
+                    getLog().debug("Will not list " + summary.getKey() + ", it's a metadata file");
+                    return;
+                }
+                final String asRepoRelativeFile = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
+                if (!filter.matchesPath(asRepoRelativeFile)) {
+                    getLog().debug("Will not list " + summary.getKey() + ", it doesn't match " + filter);
+                    return;
+                }
+                final PackageMetadata packageMetadata = packagesByLocation.get(asRepoRelativeFile);
+                if (filterByMetadata && packageMetadata == null) {
+                    getLog().debug("Not known to metadata (or filtered): " + summary.getKey() + " (repo-relative: " + asRepoRelativeFile + ")");
+                    return;
+                }
+                // Assert: summary.getKey() is a file that exists as a file in the S3 repo AND
+                // it is listed in the YUM metadata for the repo (if filtering).
+                output.write(asRepoRelativeFile, summary, packageMetadata);
             }
-            getLog().info("Downloading metadata file '" + summary.getKey() + "' from S3...");
-            final S3Object object = context.getS3Session()
-                .getObject(new GetObjectRequest(s3RepositoryPath.getBucketName(), summary.getKey()));
-            try {
-                File targetFile =
-                    new File(stagingDirectory, /*assume object key is bucket-relative path to filename with extension*/summary.getKey());
-                Files.createParentDirs(targetFile);
-                FileUtils.copyStreamToFile(new InputStreamFacade() {
-                    @Override
-                    public InputStream getInputStream()
-                        throws IOException {
-                        return object.getObjectContent();
-                    }
-                }, targetFile);
-            } catch (IOException e) {
-                throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), e);
-            }
-        }
+        });
     }
 
-    private void determineAndSetStagingDirectoryIfNeeded() {
-        if (stagingDirectory == null) {
-            stagingDirectory = Files.createTempDir();
+    /** Packages from the published package index if it is current, otherwise streamed from the primary metadata. */
+    private List<PackageMetadata> readPackages(ListContext context, ListFilter filter) throws MojoExecutionException {
+        final PackageIndex index = context.getRemoteYumRepo().readPackageIndex();
+        if (index == null) {
+            return context.getRemoteYumRepo().parsePackagesFromRepoMetadata();
         }
-        getLog().info("I will use " + stagingDirectory.getAbsolutePath() + " as your staging directory.");
-    }
-
-    /**
-     * Create a {@link com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade} which will allow us to query and
-     * operate on a local (on-disk) yum repository.
-     */
-    private LocalYumRepoFacade determineLocalYumRepo(S3RepositoryPath s3RepositoryPath) {
-        return new LocalYumRepoFacade(
-            s3RepositoryPath.hasBucketRelativeFolder()
-                ? new File(stagingDirectory, s3RepositoryPath.getBucketRelativeFolder())
-                : stagingDirectory, createrepo, "", getLog());
+        getLog().debug("Using package index (" + index.getPackages().size() + " packages)");
+        return filter.getPackageName() != null ? index.findByName(filter.getPackageName()) : index.getPackages();
     }
 
     private boolean isMetadataFile(S3ObjectSummary summary, S3RepositoryPath s3RepositoryPath) {
@@ -200,11 +212,10 @@ public final class ListS3RepoMojo extends AbstractMojo {
     }
 
     private AmazonS3Client createS3Client() {
-        if (s3AccessKey != null || s3SecretKey != null) {
-            return new AmazonS3Client(new BasicAWSCredentials(s3AccessKey, s3SecretKey));
-        } else {
-            return new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
-        }
+        final AWSCredentialsProvider credentials = s3AccessKey != null || s3SecretKey != null
+            ? new StaticCredentialsProvider(new BasicAWSCredentials(s3AccessKey, s3SecretKey))
+            : new DefaultAWSCredentialsProviderChain();
+        return new AmazonS3Client(credentials, new ClientConfiguration(), Timeline.s3MetricCollector());
     }
 
     private S3RepositoryPath parseS3RepositoryPath() throws MojoExecutionException {
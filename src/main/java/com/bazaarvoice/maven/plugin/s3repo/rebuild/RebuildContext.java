@@ -3,6 +3,9 @@ package com.bazaarvoice.maven.plugin.s3repo.rebuild;
 import com.amazonaws.services.s3.AmazonS3;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.util.DigestCache;
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
+import com.bazaarvoice.maven.plugin.s3repo.util.MultiDigest;
 
 import java.io.File;
 import java.util.ArrayList;
@@ -35,13 +38,18 @@ final class RebuildContext {
     private final Map<String, List<SnapshotDescription>> bucketKeyPrefixToSnapshots = new HashMap<String, List<SnapshotDescription>>();
     private final List<SnapshotDescription> snapshotsToDeleteRemotely = new ArrayList<SnapshotDescription>();
     private final List<RemoteSnapshotRename> snapshotsToRenameRemotely = new ArrayList<RemoteSnapshotRename>();
+    /** Digests computed while files were downloaded, so that uploads and verification needn't read them again. */
+    private final DigestCache fileDigests = new DigestCache();
     /** Repo-relative file paths that are explicitly excluded. */
     private final Set<String> excludedFiles = new HashSet<String>();
     /** Repo-relative file paths that we will delete remotely. */
     private final Set<String> excludedFilesToDeleteFromSource = new HashSet<String>();
     private final Set<String> excludedFilesToDeleteFromTarget = new HashSet<String>();
-    /** Files that exist in target. */
-    private final Set<File> filesFromTargetRepo = new HashSet<File>();
+    /** Listing of the target repository, as of when we downloaded it. */
+    private KeyIndex targetListing;
+    /** For metadata-only rebuilds: repo-relative locations to drop from, or rename in, the metadata. */
+    private final Set<String> metadataLocationsToRemove = new HashSet<String>();
+    private final Map<String, String> metadataLocationsToRename = new HashMap<String, String>();
 
     public AmazonS3 getS3Session() {
         return s3Session;
@@ -80,10 +88,11 @@ final class RebuildContext {
     }
 
     public void addSnapshotDescription(SnapshotDescription snapshotDescription) {
-        List<SnapshotDescription> existing = bucketKeyPrefixToSnapshots.get(snapshotDescription.getBucketKeyPrefix());
+        final String bucketKeyPrefix = snapshotDescription.getBucketKeyPrefix();
+        List<SnapshotDescription> existing = bucketKeyPrefixToSnapshots.get(bucketKeyPrefix);
         if (existing == null) {
             existing = new ArrayList<SnapshotDescription>();
-            bucketKeyPrefixToSnapshots.put(snapshotDescription.getBucketKeyPrefix(), existing);
+            bucketKeyPrefixToSnapshots.put(bucketKeyPrefix, existing);
         }
         existing.add(snapshotDescription);
     }
@@ -113,6 +122,24 @@ final class RebuildContext {
         excludedFiles.addAll(repoRelativePaths);
     }
 
+    public void addFileDigests(File file, MultiDigest digests) {
+        fileDigests.put(file, digests);
+    }
+
+    /** Digests computed while the file was downloaded, or null. */
+    public MultiDigest getFileDigests(File file) {
+        return fileDigests.get(file);
+    }
+
+    /** Forget the digests of the files in the directory, e.g., because createrepo rewrote them. */
+    public void invalidateFileDigests(File directory) {
+        fileDigests.invalidate(directory);
+    }
+
+    public void addExcludedFile(String repoRelativePath) {
+        excludedFiles.add(repoRelativePath);
+    }
+
     /** Repo-relative paths. */
     public Set<String> getExcludedFiles() {
         return excludedFiles;
@@ -138,12 +165,28 @@ final class RebuildContext {
         return excludedFilesToDeleteFromTarget;
     }
 
-    public void addFileFromTargetRepo(File targetFile) {
-        this.filesFromTargetRepo.add(targetFile);
+    public KeyIndex getTargetListing() {
+        return targetListing;
+    }
+
+    public void setTargetListing(KeyIndex targetListing) {
+        this.targetListing = targetListing;
+    }
+
+    public void addMetadataLocationToRemove(String repoRelativePath) {
+        metadataLocationsToRemove.add(repoRelativePath);
+    }
+
+    public Set<String> getMetadataLocationsToRemove() {
+        return metadataLocationsToRemove;
+    }
+
+    public void addMetadataLocationToRename(String repoRelativePath, String newRepoRelativePath) {
+        metadataLocationsToRename.put(repoRelativePath, newRepoRelativePath);
     }
 
-    public Set<File> getFilesFromTargetRepo() {
-        return filesFromTargetRepo;
+    public Map<String, String> getMetadataLocationsToRename() {
+        return metadataLocationsToRename;
     }
 
 }
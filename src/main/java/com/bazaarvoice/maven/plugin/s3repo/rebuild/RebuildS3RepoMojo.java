@@ -1,38 +1,52 @@
 package com.bazaarvoice.maven.plugin.s3repo.rebuild;
 
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
 import com.amazonaws.auth.BasicAWSCredentials;
 import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
-import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
-import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
 import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageVerificationReport;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraFileUtils;
 import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataCompression;
+import com.bazaarvoice.maven.plugin.s3repo.util.MultiDigest;
+import com.bazaarvoice.maven.plugin.s3repo.util.ParallelTasks;
+import com.bazaarvoice.maven.plugin.s3repo.util.ProgressReporter;
 import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.StagingArea;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
 import com.google.common.collect.Lists;
 import com.google.common.io.Files;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
-import org.codehaus.plexus.util.FileUtils;
-import org.codehaus.plexus.util.io.InputStreamFacade;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.BitSet;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 @Mojo (name = "rebuild-repo", requiresProject = false)
 public final class RebuildS3RepoMojo extends AbstractMojo {
@@ -74,10 +88,49 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.removeOldSnapshots", defaultValue = "false")
     private boolean removeOldSnapshots;
 
+    /** Retention rules, evaluated against the target repository's listing before anything is downloaded. Files that
+     * the rules select are treated as excluded (i.e., removed from the repository). The newest file of each package is
+     * always retained. Zero (the default) disables a rule. See {@link RetentionPolicy}. */
+    @Parameter(property = "s3repo.retainNewestPerPackage", defaultValue = "0")
+    private int retainNewestPerPackage;
+
+    /** Maximum age, by last-modified time, of any but the newest file of a package. */
+    @Parameter(property = "s3repo.retainMaxAgeDays", defaultValue = "0")
+    private int retainMaxAgeDays;
+
+    /** Maximum number of package files in any one folder of the repository. */
+    @Parameter(property = "s3repo.retainMaxPerSubfolder", defaultValue = "0")
+    private int retainMaxPerSubfolder;
+
+    /** Total size budget, in bytes, for the package files of the repository; the oldest files are deleted first. */
+    @Parameter(property = "s3repo.retainMaxTotalBytes", defaultValue = "0")
+    private long retainMaxTotalBytes;
+
+    /** After validating, hash every downloaded package and compare it with the checksum declared by the primary
+     * metadata; any mismatch or missing package fails the build. Useful before promoting a repository. */
+    @Parameter(property = "s3repo.deepVerify", defaultValue = "false")
+    private boolean deepVerify;
+
+    /** Number of threads used by {@link #deepVerify}. Zero means one per available processor. */
+    @Parameter(property = "s3repo.verifyThreads", defaultValue = "0")
+    private int verifyThreads;
+
     /** Execute all steps up to and excluding the upload to the S3. This can be set to true to perform a "dryRun" execution. */
     @Parameter(property = "s3repo.doNotUpload", defaultValue = "false")
     private boolean doNotUpload;
 
+    /** Rebuild the metadata without downloading any packages: the existing primary, filelists and other metadata are
+     * stream-filtered to drop excluded files and old snapshots (and to rename the latest snapshots) instead of running
+     * createrepo over a full copy of the repository. The source and target repositories must be the same, and neither
+     * zchunk nor generateDatabase may be set (their metadata can't be rewritten this way). */
+    @Parameter(property = "s3repo.metadataOnly", defaultValue = "false")
+    private boolean metadataOnly;
+
+    /** With {@link #metadataOnly}, keep the downloaded and rewritten metadata in memory instead of in the staging
+     * directory; nothing runs createrepo, so nothing needs the files on disk. */
+    @Parameter(property = "s3repo.inMemoryStaging", defaultValue = "false")
+    private boolean inMemoryStaging;
+
     /** Only upload the new repo metadata. BUT we will ALWAYS upload files from the source repository if the source and
      * target repositories are different. */
     @Parameter(property = "s3repo.uploadMetadataOnly", defaultValue = "true")
@@ -103,8 +156,60 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     @Parameter(property = "s3repo.createrepoOpts", defaultValue = "")
     private String createrepoOpts;
 
+    /** Also generate zchunk (.zck) metadata, registered in repomd.xml, so that dnf clients only download the chunks that
+     * changed. Requires createrepo_c (see {@link #createrepo}). */
+    @Parameter(property = "s3repo.zchunk", defaultValue = "false")
+    private boolean zchunk;
+
+    /** Generate compressed sqlite databases (primary_db, filelists_db, other_db), registered in repomd.xml, so that yum
+     * clients do not have to build them from the XML metadata on every host. This overrides any "--no-database" in
+     * {@link #createrepoOpts}. */
+    @Parameter(property = "s3repo.generateDatabase", defaultValue = "false")
+    private boolean generateDatabase;
+
+    /** Compression codec for the primary, filelists and other metadata files: "gz" (createrepo's output), "bz2" or "xz".
+     * Any codec other than gz means we recompress the files that createrepo wrote (and update repomd.xml). */
+    @Parameter(property = "s3repo.metadataCompression", defaultValue = "gz")
+    private String metadataCompression;
+
+    /** Compression level for {@link #metadataCompression}; the default (-1) uses the codec's default level. */
+    @Parameter(property = "s3repo.metadataCompressionLevel", defaultValue = "-1")
+    private int metadataCompressionLevel;
+
+    /** Number of threads used to compress large metadata files (e.g., filelists) in independent blocks. Zero means one
+     * per available processor. Only gz is compressed in parallel. */
+    @Parameter(property = "s3repo.compressionThreads", defaultValue = "0")
+    private int compressionThreads;
+
+    /** Optional file to which we write one line per object downloaded, uploaded, deleted, renamed or skipped. Per-object
+     * detail is otherwise only logged at DEBUG level; INFO level gets periodic aggregate progress lines. */
+    @Parameter(property = "s3repo.transferManifest")
+    private File transferManifest;
+
+    /** Will be non-null only if {@link #transferManifest} is configured. */
+    private PrintWriter transferManifestWriter;
+
+    /** Optional file to which we write a timeline of this execution (its phases, every S3 request and every createrepo
+     * run) in the Chrome trace event format; a summary, including S3 latency percentiles, is logged at the end. */
+    @Parameter(property = "s3repo.timeline")
+    private File timeline;
+
     @Override
     public void execute() throws MojoExecutionException, MojoFailureException {
+        transferManifestWriter = ExtraIOUtils.openWriterIfConfigured(transferManifest);
+        Timeline.startIfConfigured(timeline);
+        try {
+            internalExecute();
+        } finally {
+            ExtraIOUtils.closeQuietly(transferManifestWriter);
+            Timeline.stopIfConfigured(timeline, getLog());
+        }
+    }
+
+    private void internalExecute() throws MojoExecutionException {
+        if (inMemoryStaging && !metadataOnly) {
+            throw new MojoExecutionException("s3repo.inMemoryStaging requires s3repo.metadataOnly (createrepo needs the repository on disk)");
+        }
         determineAndSetStagingDirectoryIfNeeded();
         determineAndSetTargetRepositoryPathIfNeeded();
 
@@ -118,21 +223,54 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
 
         logRepositories(context);
 
-        // always clean staging directory
-        maybeCleanStagingDirectory();
-
-        // download source (and target, if needed) repositories
-        downloadRepositories(context);
-        // perform some checks to ensure repository is as expected if doNotValidate = false
-        maybeValidateRepository(context);
-        // remove old snapshots if removeOldSnapshots = true
-        maybeRemoveOldSnapshots(context);
-        // we don't download excluded files but they may already exist if doNotPreClean = true
-        deleteExcludes(context);
-        // rebuild -- rerun createrepo
-        rebuildRepo(context);
-        // upload repository and delete old snapshots etc. if doNotUpload = false
-        maybeUploadRepository(context);
+        if (metadataOnly && !context.sourceAndTargetRepositoryAreSame()) {
+            throw new MojoExecutionException("s3repo.metadataOnly can't be used to relocate a repository");
+        }
+        if (deepVerify && (metadataOnly || doNotValidate)) {
+            throw new MojoExecutionException("s3repo.deepVerify requires the packages to be downloaded and validated;"
+                + " it can't be combined with s3repo.metadataOnly or s3repo.doNotValidate");
+        }
+        if (metadataOnly && (zchunk || generateDatabase)) {
+            throw new MojoExecutionException("s3repo.metadataOnly rewrites the xml metadata without running createrepo, so it"
+                + " can't produce the zchunk or sqlite metadata that s3repo.zchunk and s3repo.generateDatabase ask for");
+        }
+
+        final Timeline.Phases phases = Timeline.phases(context.getS3TargetRepositoryPath().toString());
+        try {
+            // always clean staging directory
+            phases.begin("maybeCleanStagingDirectory");
+            maybeCleanStagingDirectory();
+
+            // download source (and target, if needed) repositories
+            phases.begin("downloadRepositories");
+            downloadRepositories(context);
+            // perform some checks to ensure repository is as expected if doNotValidate = false
+            phases.begin("maybeValidateRepository");
+            maybeValidateRepository(context);
+            // hash every package against its declared checksum if deepVerify = true
+            phases.begin("maybeDeepVerifyRepository");
+            maybeDeepVerifyRepository(context);
+            // remove old snapshots if removeOldSnapshots = true
+            phases.begin("maybeRemoveOldSnapshots");
+            maybeRemoveOldSnapshots(context);
+            // we don't download excluded files but they may already exist if doNotPreClean = true
+            phases.begin("deleteExcludes");
+            deleteExcludes(context);
+            // rebuild -- rerun createrepo
+            phases.begin("rebuildRepo");
+            rebuildRepo(context);
+            // recompress metadata if a codec or level other than createrepo's own was configured
+            phases.begin("maybeRecompressMetadata");
+            maybeRecompressMetadata(context);
+            // index the packages for list-repo queries (published in repodata/ along with the metadata)
+            phases.begin("writePackageIndex");
+            context.getLocalYumRepo().writePackageIndex();
+            // upload repository and delete old snapshots etc. if doNotUpload = false
+            phases.begin("maybeUploadRepository");
+            maybeUploadRepository(context);
+        } finally {
+            phases.end();
+        }
     }
 
     private void logRepositories(RebuildContext context) {
@@ -163,6 +301,10 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     }
 
     private void determineAndSetStagingDirectoryIfNeeded() {
+        if (inMemoryStaging) {
+            getLog().info("I will stage the repository metadata in memory.");
+            return;
+        }
         if (stagingDirectory == null) {
             stagingDirectory = Files.createTempDir();
         }
@@ -170,6 +312,9 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     }
 
     private void maybeCleanStagingDirectory() throws MojoExecutionException {
+        if (inMemoryStaging) {
+            return;
+        }
         if (doNotPreClean) {
             getLog().warn("Not cleaning staging directory!!!");
             return;
@@ -186,65 +331,101 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
         final S3RepositoryPath targetRepository = context.getS3TargetRepositoryPath();
         final String targetBucket = targetRepository.getBucketName();
         AmazonS3 s3Session = context.getS3Session();
-        File directoryToUpload = uploadMetadataOnly
-                ? context.getLocalYumRepo().repoDataDirectory() // only the repodata directory
-                : stagingDirectory; // the entire staging directory/bucket
         if (!allowCreateRepository && !context.getLocalYumRepo().isRepoDataExists()) {
             throw new MojoExecutionException("refusing to create new repo: " + targetRepository +
                 " (use s3repo.allowCreateRepository = true to force)");
         }
-        for (File toUpload : ExtraIOUtils.listAllFiles(directoryToUpload)) {
-            final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
-            getLog().info(logPrefix + "Uploading: " + toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
-            if (!doNotUpload) {
-                s3Session.putObject(new PutObjectRequest(targetBucket, bucketKey, toUpload));
+        ProgressReporter progress;
+        if (inMemoryStaging) {
+            // metadata-only: the repodata is all there is to upload
+            final StagingArea staging = context.getLocalYumRepo().getStagingArea();
+            final List<String> filesToUpload = context.getLocalYumRepo().listRepoDataFiles();
+            long totalLength = 0;
+            for (String repoRelativePath : filesToUpload) {
+                totalLength += staging.length(repoRelativePath);
+            }
+            progress = ProgressReporter.start(getLog(), logPrefix + "Uploading", filesToUpload.size(), totalLength,
+                transferManifestWriter);
+            for (String repoRelativePath : filesToUpload) {
+                final String bucketKey = toBucketKey(targetRepository, repoRelativePath);
+                if (!doNotUpload) {
+                    s3Session.putObject(S3Utils.newPutObjectRequest(targetBucket, bucketKey, staging, repoRelativePath));
+                }
+                progress.completed(repoRelativePath + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey,
+                    staging.length(repoRelativePath));
+            }
+        } else {
+            // createrepo and the metadata rewrites replace files in repodata/, so any digests we have of them are stale
+            context.invalidateFileDigests(context.getLocalYumRepo().repoDataDirectory());
+            File directoryToUpload = uploadMetadataOnly
+                    ? context.getLocalYumRepo().repoDataDirectory() // only the repodata directory
+                    : stagingDirectory; // the entire staging directory/bucket
+            Collection<File> filesToUpload = ExtraIOUtils.listAllFiles(directoryToUpload);
+            progress = ProgressReporter.start(getLog(), logPrefix + "Uploading", filesToUpload.size(),
+                ExtraIOUtils.totalLength(filesToUpload), transferManifestWriter);
+            for (File toUpload : filesToUpload) {
+                final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
+                if (!doNotUpload) {
+                    s3Session.putObject(S3Utils.newPutObjectRequest(targetBucket, bucketKey, toUpload, context.getFileDigests(toUpload)));
+                }
+                progress.completed(toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey, toUpload.length());
             }
         }
+        progress.finish();
         if (uploadMetadataOnly && !context.sourceAndTargetRepositoryAreSame()) {
             // we just uploaded metadata but there are files in the source repository
             // that don't exist in the target, so we upload those here.
+            List<File> sourceFilesToUpload = Lists.newArrayList();
             for (File toUpload : ExtraIOUtils.listAllFiles(stagingDirectory)) {
-                if (!context.getFilesFromTargetRepo().contains(toUpload)) {
+                if (!context.getTargetListing().contains(localFileToTargetS3BucketKey(toUpload, context))) {
                     // upload if it's not already in the target repo.
-                    final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
-                    getLog().info(logPrefix + "Uploading: " + toUpload.getName()
-                        + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey + "...");
-                    if (!doNotUpload) {
-                        s3Session.putObject(new PutObjectRequest(targetBucket, bucketKey, toUpload));
-                    }
+                    sourceFilesToUpload.add(toUpload);
+                }
+            }
+            progress = ProgressReporter.start(getLog(), logPrefix + "Uploading source files", sourceFilesToUpload.size(),
+                ExtraIOUtils.totalLength(sourceFilesToUpload), transferManifestWriter);
+            for (File toUpload : sourceFilesToUpload) {
+                final String bucketKey = localFileToTargetS3BucketKey(toUpload, context);
+                if (!doNotUpload) {
+                    s3Session.putObject(S3Utils.newPutObjectRequest(targetBucket, bucketKey, toUpload, context.getFileDigests(toUpload)));
                 }
+                progress.completed(toUpload.getName() + " => s3://" + targetRepository.getBucketName() + "/" + bucketKey, toUpload.length());
             }
+            progress.finish();
         }
+        progress = ProgressReporter.start(getLog(), logPrefix + "Deleting",
+            context.getExcludedFilesToDeleteFromTarget().size() + context.getSnapshotsToDeleteRemotely().size(), 0,
+            transferManifestWriter);
         // delete any excluded files remotely from the TARGET only.
         for (String repoRelativePath : context.getExcludedFilesToDeleteFromTarget()) {
             final String bucketKey = toBucketKey(targetRepository, repoRelativePath);
-            getLog().info(logPrefix + "Deleting: "
-                + "s3://" + targetRepository.getBucketName() + "/" + bucketKey + " (excluded file)");
             if (!doNotUpload) {
                 context.getS3Session().deleteObject(targetBucket, bucketKey);
             }
+            progress.completed("s3://" + targetRepository.getBucketName() + "/" + bucketKey + " (excluded file)", 0);
         }
         // and finally, delete any remote bucket keys we wish to remove (e.g., old snaphots)...from the TARGET only.
         for (SnapshotDescription toDelete : context.getSnapshotsToDeleteRemotely()) {
-            getLog().info(logPrefix + "Deleting: "
-                + "s3://" + targetRepository.getBucketName() + "/" + toDelete.getBucketKey() + " (excluded file)");
-            getLog().info(logPrefix + "Deleting: " + toDelete + " (old snapshot)");
             if (!doNotUpload) {
                 context.getS3Session().deleteObject(targetBucket, toDelete.getBucketKey());
             }
+            progress.completed("s3://" + targetRepository.getBucketName() + "/" + toDelete.getBucketKey() + " (old snapshot)", 0);
         }
+        progress.finish();
         // rename any snapshots...in TARGET only.
+        progress = ProgressReporter.start(getLog(), logPrefix + "Renaming", context.getSnapshotsToRenameRemotely().size(), 0,
+            transferManifestWriter);
         for (RemoteSnapshotRename toRename : context.getSnapshotsToRenameRemotely()) {
             final String sourceBucketKey = toRename.getSource().getBucketKey();
             final String targetBucketKey = toRename.getNewBucketKey();
-            getLog().info(logPrefix + "Renaming: "
-                + "s3://" + targetRepository.getBucketName() + "/" + sourceBucketKey
-                + " => s3://" + targetRepository.getBucketName() + "/" + targetBucketKey);
             if (!doNotUpload) {
                 s3Session.copyObject(targetBucket, sourceBucketKey, targetBucket, targetBucketKey);
                 s3Session.deleteObject(targetBucket, sourceBucketKey);
             }
+            progress.completed("s3://" + targetRepository.getBucketName() + "/" + sourceBucketKey
+                + " => s3://" + targetRepository.getBucketName() + "/" + targetBucketKey, 0);
         }
+        progress.finish();
     }
 
     private static String toBucketKey(S3RepositoryPath target, String repoRelativePath) {
@@ -264,12 +445,22 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
     }
 
     private void rebuildRepo(RebuildContext context) throws MojoExecutionException {
+        if (metadataOnly) {
+            getLog().info("Rewriting repo metadata (metadata-only)...");
+            context.getLocalYumRepo().rewriteMetadata(context.getMetadataLocationsToRemove(), context.getMetadataLocationsToRename());
+            return;
+        }
         getLog().info("Rebuilding repo...");
         context.getLocalYumRepo().createRepo();
     }
 
     private void deleteExcludes(RebuildContext context) throws MojoExecutionException {
         for (String repoRelativePath : context.getExcludedFiles()) {
+            if (metadataOnly) {
+                // nothing is downloaded; just drop it from the metadata
+                context.addMetadataLocationToRemove(repoRelativePath);
+                continue;
+            }
             final File deleteMe = new File(stagingDirectory, repoRelativePath);
             if (deleteMe.isFile()) {
                 if (!doNotPreClean) {
@@ -307,9 +498,15 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
                     // start with *second* artifact; delete it and everything after it (these are the older artifacts)
                     for (int i = 1; i < snapshotsRepresentingSameInstallable.size(); ++i) {
                         SnapshotDescription toDelete = snapshotsRepresentingSameInstallable.get(i);
-                        getLog().info("Deleting old snapshot '" + toDelete.getBucketKey() + "', locally...");
-                        // delete object locally so createrepo step doesn't pick it up
-                        deleteRepoRelativePath(S3Utils.toRepoRelativePath(toDelete.getBucketKey(), toDelete.getS3RepositoryPath()));
+                        getLog().debug("Deleting old snapshot '" + toDelete.getBucketKey() + "', locally...");
+                        final String repoRelativePath = S3Utils.toRepoRelativePath(toDelete.getBucketKey(), toDelete.getS3RepositoryPath());
+                        if (metadataOnly) {
+                            // nothing was downloaded; drop it from the metadata instead
+                            context.addMetadataLocationToRemove(repoRelativePath);
+                        } else {
+                            // delete object locally so createrepo step doesn't pick it up
+                            deleteRepoRelativePath(repoRelativePath);
+                        }
                         // only queue it for deletion if exists in the target repository.
                         if (toDelete.existsInRepository(context.getS3TargetRepositoryPath())) {
                             // we'll also delete the object from s3 but only after we upload the repository metadata
@@ -318,17 +515,36 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
                         }
                     }
                     // rename the lastest snapshot (which is the first in our list) discarding it's SNAPSHOT numeric suffix
-                    renameSnapshotLocalFileByStrippingSnapshotNumerics(context, snapshotsRepresentingSameInstallable.get(0));
+                    if (metadataOnly) {
+                        renameSnapshotInMetadataByStrippingSnapshotNumerics(context, snapshotsRepresentingSameInstallable.get(0));
+                    } else {
+                        renameSnapshotLocalFileByStrippingSnapshotNumerics(context, snapshotsRepresentingSameInstallable.get(0));
+                    }
                 }
             }
         }
     }
 
+    private void renameSnapshotInMetadataByStrippingSnapshotNumerics(RebuildContext context, SnapshotDescription snapshotDescription) {
+        final String repoRelativePath =
+            S3Utils.toRepoRelativePath(snapshotDescription.getBucketKey(), snapshotDescription.getS3RepositoryPath());
+        final int lastSlashIndex = repoRelativePath.lastIndexOf("/");
+        final String renamed = repoRelativePath.substring(0, lastSlashIndex + 1)
+            + tryStripSnapshotNumerics(repoRelativePath.substring(lastSlashIndex + 1));
+        if (renamed.equals(repoRelativePath)) {
+            return; // nothing to strip
+        }
+        getLog().debug("Renaming " + repoRelativePath + " => " + renamed + " (metadata-only)");
+        context.addMetadataLocationToRename(repoRelativePath, renamed);
+        context.addSnapshotToRename(
+            RemoteSnapshotRename.withNewBucketKey(snapshotDescription, toBucketKey(context.getS3TargetRepositoryPath(), renamed)));
+    }
+
     private void renameSnapshotLocalFileByStrippingSnapshotNumerics(RebuildContext context, SnapshotDescription snapshotDescription) throws MojoExecutionException {
         final File latestSnapshotFile = new File(stagingDirectory,
             S3Utils.toRepoRelativePath(snapshotDescription.getBucketKey(), snapshotDescription.getS3RepositoryPath()));
         final File renameTo = new File(latestSnapshotFile.getParent(), tryStripSnapshotNumerics(latestSnapshotFile.getName()));
-        getLog().info("Renaming " + ExtraIOUtils.relativize(stagingDirectory, latestSnapshotFile)
+        getLog().debug("Renaming " + ExtraIOUtils.relativize(stagingDirectory, latestSnapshotFile)
                 + " => " + renameTo.getName() /*note can't relativize non-existent file*/);
         if (latestSnapshotFile.renameTo(renameTo)) {
             // rename was successful -- also ensure that we queue up the snapshot to rename it remotely
@@ -361,28 +577,86 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
         if (!localYumRepo.isRepoDataExists()) {
             throw new MojoExecutionException("Repository does not exist!");
         }
+        if (metadataOnly) {
+            // we'll rewrite the existing metadata rather than regenerate it, so it must be intact
+            localYumRepo.verifyRepoDataFileChecksums();
+        }
         // list of files (repo-relative paths)
         List<String> fileList = localYumRepo.parseFileListFromRepoMetadata();
         for (String repoRelativePath : fileList) {
-            if (!context.getExcludedFiles().contains(repoRelativePath)
-                && !localYumRepo.hasFile(repoRelativePath)) {
+            final boolean exists = metadataOnly // packages weren't downloaded; look them up in the listing (source == target)
+                ? context.getTargetListing().contains(toBucketKey(context.getS3TargetRepositoryPath(), repoRelativePath))
+                : localYumRepo.hasFile(repoRelativePath);
+            if (!context.getExcludedFiles().contains(repoRelativePath) && !exists) {
                 // repository metadata declared a (non-excluded) file that did not exist.
                 throw new MojoExecutionException("Repository metadata declared file " + repoRelativePath + " but the file did not exist.");
             }
         }
     }
 
+    private void maybeDeepVerifyRepository(RebuildContext context) throws MojoExecutionException {
+        if (!deepVerify) {
+            return;
+        }
+        // packages that we downloaded were digested on the way in
+        Map<String, String> knownSha256Digests = new HashMap<String, String>();
+        for (String repoRelativePath : context.getLocalYumRepo().parseFileListFromRepoMetadata()) {
+            MultiDigest digests = context.getFileDigests(new File(stagingDirectory, repoRelativePath));
+            if (digests != null) {
+                knownSha256Digests.put(repoRelativePath, digests.hex(MultiDigest.SHA256));
+            }
+        }
+        PackageVerificationReport report = context.getLocalYumRepo().verifyPackageChecksums(
+            context.getExcludedFiles(), knownSha256Digests, ParallelTasks.determineThreads(verifyThreads));
+        getLog().info("Deep verification: " + report);
+        if (!report.isClean()) {
+            for (String mismatch : report.getMismatches()) {
+                getLog().error("Checksum mismatch: " + mismatch);
+            }
+            for (String missing : report.getMissing()) {
+                getLog().error("Missing package: " + missing);
+            }
+            throw new MojoExecutionException("Deep verification failed: " + report);
+        }
+    }
+
     /** Create a {@link com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade} which will allow us to query and operate on a local (on-disk) yum repository. */
     private LocalYumRepoFacade determineLocalYumRepo() {
-        return new LocalYumRepoFacade(stagingDirectory, createrepo, createrepoOpts, getLog());
+        final StagingArea staging = inMemoryStaging ? StagingArea.inMemory() : StagingArea.onDisk(stagingDirectory);
+        return new LocalYumRepoFacade(staging, createrepo, determineCreaterepoOpts(), getLog());
     }
 
-    private AmazonS3Client createS3Client() {
-        if (s3AccessKey != null || s3SecretKey != null) {
-            return new AmazonS3Client(new BasicAWSCredentials(s3AccessKey, s3SecretKey));
-        } else {
-            return new AmazonS3Client(new DefaultAWSCredentialsProviderChain());
+    private void maybeRecompressMetadata(RebuildContext context) throws MojoExecutionException {
+        final MetadataCompression compression;
+        try {
+            compression = MetadataCompression.parse(metadataCompression);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException(e.getMessage(), e);
+        }
+        if (compression == MetadataCompression.GZ && metadataCompressionLevel < 0) {
+            return; // createrepo already wrote gzip metadata
         }
+        final int threads = ParallelTasks.determineThreads(compressionThreads);
+        context.getLocalYumRepo().recompressMetadata(compression, metadataCompressionLevel, threads);
+    }
+
+    private String determineCreaterepoOpts() {
+        String opts = createrepoOpts == null ? "" : createrepoOpts;
+        if (zchunk) {
+            opts += " " + WellKnowns.CREATEREPO_ZCHUNK_OPTION;
+        }
+        if (generateDatabase) {
+            opts = opts.replaceAll("(^|\\s)" + WellKnowns.CREATEREPO_NO_DATABASE_OPTION + "(?=\\s|$)", " ")
+                + " " + WellKnowns.CREATEREPO_DATABASE_OPTION;
+        }
+        return opts;
+    }
+
+    private AmazonS3Client createS3Client() {
+        final AWSCredentialsProvider credentials = s3AccessKey != null || s3SecretKey != null
+            ? new StaticCredentialsProvider(new BasicAWSCredentials(s3AccessKey, s3SecretKey))
+            : new DefaultAWSCredentialsProviderChain();
+        return new AmazonS3Client(credentials, new ClientConfiguration(), Timeline.s3MetricCollector());
     }
 
     /** Download the entire repository into the staging area. The paths for the files downloaded into the staging area
@@ -410,30 +684,38 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
             prefix = s3RepositoryPath.getBucketRelativeFolder() + "/";
             listObjectsRequest.withPrefix(prefix);
         }
-        List<S3ObjectSummary> result = S3Utils.listAllObjects(context.getS3Session(), listObjectsRequest);
-        getLog().debug("Found " + result.size() + " objects in bucket '" + s3RepositoryPath.getBucketName()
+        final KeyIndex listing = S3Utils.indexAllObjects(context.getS3Session(), listObjectsRequest);
+        getLog().debug("Found " + listing.size() + " objects in bucket '" + s3RepositoryPath.getBucketName()
                 + "' with prefix '" + s3RepositoryPath.getBucketRelativeFolder() + "/" + "'...");
-        for (S3ObjectSummary summary : result) {
-            final String asRepoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
-            if (summary.getKey().endsWith("/")) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; it's a folder)");
+        // metadata files are a contiguous range of the (sorted) listing
+        final String metadataFilePrefix = toMetadataFilePrefix(s3RepositoryPath);
+        final int metadataStart = listing.startOfPrefix(metadataFilePrefix);
+        final int metadataEnd = listing.endOfPrefix(metadataFilePrefix);
+        if (isTargetRepo) {
+            context.setTargetListing(listing);
+            maybeApplyRetentionPolicy(context, s3RepositoryPath, listing, metadataStart, metadataEnd);
+        }
+        final StagingArea staging = context.getLocalYumRepo().getStagingArea();
+        ProgressReporter progress = ProgressReporter.start(getLog(), "Downloading", listing.size(),
+            listing.totalSize(), transferManifestWriter);
+        for (int i = 0; i < listing.size(); ++i) {
+            final String bucketKey = listing.getKey(i);
+            final String asRepoRelativePath = S3Utils.toRepoRelativePath(bucketKey, s3RepositoryPath);
+            if (bucketKey.endsWith("/")) {
+                progress.skipped(s3RepositoryPath + "/" + asRepoRelativePath, "it's a folder");
                 continue;
             }
-            final boolean isMetadataFile = isMetadataFile(summary, s3RepositoryPath);
-            if (doNotValidate && isMetadataFile) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (metadata file and not validating, so will not download)");
+            final boolean isMetadataFile = i >= metadataStart && i < metadataEnd;
+            if (doNotValidate && isMetadataFile && !metadataOnly/*which always needs the existing metadata*/) {
+                progress.skipped(s3RepositoryPath + "/" + asRepoRelativePath, "metadata file and not validating, so will not download");
                 continue;
             }
             if (!isTargetRepo && isMetadataFile) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (metadata file in source repo; will not download)");
+                progress.skipped(s3RepositoryPath + "/" + asRepoRelativePath, "metadata file in source repo; will not download");
                 continue;
             }
             if (context.getExcludedFiles().contains(asRepoRelativePath)) {
-                getLog().info("Downloading: "
-                    + s3RepositoryPath + "/" + asRepoRelativePath + " => (explicitly excluded; will be removed from S3)");
+                progress.skipped(s3RepositoryPath + "/" + asRepoRelativePath, "explicitly excluded; will be removed from S3");
                 if (isTargetRepo) {
                     // enqueue file for deletion only if it is in the target repo. (we never want to do remote mutation
                     // operations on the source repo if it is different than the target repo)
@@ -442,58 +724,95 @@ public final class RebuildS3RepoMojo extends AbstractMojo {
                 continue;
             }
             // for every item in the repository, add it to our snapshot metadata if it's a snapshot artifact
-            maybeAddSnapshotMetadata(summary, context, s3RepositoryPath);
-            if (new File(stagingDirectory, asRepoRelativePath).isFile()) {
+            maybeAddSnapshotMetadata(bucketKey, context, s3RepositoryPath);
+            if (metadataOnly && !isMetadataFile) {
+                progress.skipped(s3RepositoryPath + "/" + asRepoRelativePath, "metadata-only; packages are not downloaded");
+                continue;
+            }
+            if (staging.isFile(asRepoRelativePath)) {
                 // file exists (likely due to doNotPreClean = true); do not download
-                getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => (skipping; already downloaded/exists)");
+                progress.skipped(s3RepositoryPath + "/" + asRepoRelativePath, "already downloaded/exists");
             } else { // file doesn't yet exist
                 final S3Object object = context.getS3Session()
-                        .getObject(new GetObjectRequest(s3RepositoryPath.getBucketName(), summary.getKey()));
+                        .getObject(new GetObjectRequest(s3RepositoryPath.getBucketName(), bucketKey));
+                // digest while downloading so that neither uploading nor deep verification has to read the file again
+                final MultiDigest digests = new MultiDigest(MultiDigest.MD5, MultiDigest.SHA256);
                 try {
-                    File targetFile = new File(stagingDirectory, asRepoRelativePath);
-                    Files.createParentDirs(targetFile);
-                    getLog().info("Downloading: " + s3RepositoryPath + "/" + asRepoRelativePath + " => " + targetFile);
-                    FileUtils.copyStreamToFile(new InputStreamFacade() {
-                        @Override
-                        public InputStream getInputStream()
-                            throws IOException {
-                            return object.getObjectContent();
+                    InputStream in = digests.wrap(object.getObjectContent());
+                    try {
+                        OutputStream out = staging.openOutputStream(asRepoRelativePath);
+                        try {
+                            IOUtils.copy(in, out);
+                        } finally {
+                            out.close();
                         }
-                    }, targetFile);
-                    if (isTargetRepo) {
-                        context.addFileFromTargetRepo(targetFile);
+                    } finally {
+                        in.close();
                     }
+                    if (staging.getDirectory() != null && !isMetadataFile/*rewritten before we upload it*/) {
+                        context.addFileDigests(new File(stagingDirectory, asRepoRelativePath), digests);
+                    }
+                    progress.completed(s3RepositoryPath + "/" + asRepoRelativePath + " => " + staging + "/" + asRepoRelativePath,
+                        listing.getSize(i));
                 } catch (IOException e) {
-                    throw new MojoExecutionException("failed to download object from s3: " + summary.getKey(), e);
+                    throw new MojoExecutionException("failed to download object from s3: " + bucketKey, e);
                 }
             }
         }
+        progress.finish();
+    }
+
+    /** Evaluate retention rules against the listing, adding any files they select to our excluded files. */
+    private void maybeApplyRetentionPolicy(final RebuildContext context, final S3RepositoryPath s3RepositoryPath,
+                                           KeyIndex listing, int metadataStart, int metadataEnd) {
+        RetentionPolicy policy = new RetentionPolicy(retainNewestPerPackage, TimeUnit.DAYS.toMillis(retainMaxAgeDays),
+            retainMaxPerSubfolder, retainMaxTotalBytes);
+        if (!policy.isEnabled()) {
+            return;
+        }
+        final BitSet packageFiles = new BitSet(listing.size());
+        for (int i = 0; i < listing.size(); ++i) {
+            if (i >= metadataStart && i < metadataEnd) {
+                continue;
+            }
+            final String bucketKey = listing.getKey(i);
+            if (bucketKey.endsWith(".rpm")
+                    && !context.getExcludedFiles().contains(S3Utils.toRepoRelativePath(bucketKey, s3RepositoryPath))) {
+                packageFiles.set(i);
+            }
+        }
+        RetentionPolicy.Result result = policy.evaluate(listing, packageFiles, System.currentTimeMillis());
+        getLog().info("Retention policy (" + policy + ") selected " + result.getBucketKeysToDelete().size() + " of "
+            + packageFiles.cardinality() + " package files for deletion, saving " + ProgressReporter.humanReadableBytes(result.getBytesToDelete()));
+        for (String bucketKey : result.getBucketKeysToDelete()) {
+            getLog().debug("Retention policy: will delete " + bucketKey);
+            context.addExcludedFile(S3Utils.toRepoRelativePath(bucketKey, s3RepositoryPath));
+        }
     }
 
-    private boolean isMetadataFile(S3ObjectSummary summary, S3RepositoryPath repo) {
-        final String metadataFilePrefix = repo.hasBucketRelativeFolder()
+    private static String toMetadataFilePrefix(S3RepositoryPath repo) {
+        return repo.hasBucketRelativeFolder()
             ? repo.getBucketRelativeFolder() + "/" + WellKnowns.YUM_REPODATA_FOLDERNAME + "/"
             : WellKnowns.YUM_REPODATA_FOLDERNAME + "/";
-        return summary.getKey().startsWith(metadataFilePrefix);
     }
 
-    private void maybeAddSnapshotMetadata(S3ObjectSummary summary, RebuildContext context, S3RepositoryPath s3RepositoryPath) {
-        final int lastSlashIndex = summary.getKey().lastIndexOf("/");
+    private void maybeAddSnapshotMetadata(String bucketKey, RebuildContext context, S3RepositoryPath s3RepositoryPath) {
+        final int lastSlashIndex = bucketKey.lastIndexOf("/");
         // determine the path to the file (excluding the filename iteself); this path may be empty, otherwise it contains
         // a "/" suffix
-        final String path = lastSlashIndex > 0 ? summary.getKey().substring(0, lastSlashIndex + 1) : "";
+        final String path = lastSlashIndex > 0 ? bucketKey.substring(0, lastSlashIndex + 1) : "";
         // determine the file name (without any directory path elements)
-        final String fileName = lastSlashIndex > 0 ? summary.getKey().substring(lastSlashIndex + 1) : summary.getKey();
+        final String fileName = lastSlashIndex > 0 ? bucketKey.substring(lastSlashIndex + 1) : bucketKey;
         final int snapshotIndex = fileName.indexOf("SNAPSHOT");
         if (snapshotIndex > 0) { // heuristic: we have a SNAPSHOT artifact here
             final String prefixWithoutPath = fileName.substring(0, snapshotIndex);
             final String bucketKeyPrefix = path + prefixWithoutPath;
             // try to convert anything after the SNAPSHOT into an ordinal value
             final int ordinal = toOrdinal(fileName.substring(snapshotIndex));
-            getLog().debug("Making note of snapshot '" + summary.getKey() + "'; using prefix = " + bucketKeyPrefix);
+            getLog().debug("Making note of snapshot '" + bucketKey + "'; using prefix = " + bucketKeyPrefix);
             // ASSERT: bucketKeyPrefix is *full path* of bucket key up to and excluding the SNAPSHOT string and anything after it.
             context.addSnapshotDescription(
-                new SnapshotDescription(s3RepositoryPath, summary.getBucketName(), bucketKeyPrefix, summary.getKey(), ordinal));
+                new SnapshotDescription(s3RepositoryPath, bucketKey, bucketKeyPrefix.length(), ordinal));
         }
     }
 
@@ -0,0 +1,215 @@
+package com.bazaarvoice.maven.plugin.s3repo.rebuild;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which package files to delete from a repository, given a listing and a set of retention rules. All rules
+ * are evaluated against the listing alone (nothing is downloaded). The newest file of every package is always
+ * retained, whatever the rules say.
+ *
+ * Files belong to the same "package" when they are in the same folder and have the same package name. The name is
+ * parsed from the right of the file name, as in name-version-release.arch.rpm: the ".arch.rpm" suffix is dropped, then
+ * the release and the version, i.e., up to two trailing "-" segments that start with a digit or with "SNAPSHOT" (this
+ * plugin names snapshots e.g. "awesome-artifact-1.4-SNAPSHOT1.noarch.rpm", with no separate release). So
+ * "path/to/python-2to3-1.0-1.noarch.rpm" belongs to "path/to/python-2to3", and both
+ * "path/to/awesome-artifact-1.4-SNAPSHOT1.noarch.rpm" and "path/to/awesome-artifact-1.4.noarch.rpm" belong to
+ * "path/to/awesome-artifact".
+ */
+public final class RetentionPolicy {
+
+    private static final String RPM_EXTENSION = ".rpm";
+    private static final String SNAPSHOT = "SNAPSHOT";
+
+    private final int keepNewestPerPackage;
+    private final long maxAgeMillis;
+    private final int maxPerSubfolder;
+    private final long maxTotalBytes;
+
+    /** Any value &lt;= 0 disables the corresponding rule. */
+    public RetentionPolicy(int keepNewestPerPackage, long maxAgeMillis, int maxPerSubfolder, long maxTotalBytes) {
+        this.keepNewestPerPackage = keepNewestPerPackage;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxPerSubfolder = maxPerSubfolder;
+        this.maxTotalBytes = maxTotalBytes;
+    }
+
+    public boolean isEnabled() {
+        return keepNewestPerPackage > 0 || maxAgeMillis > 0 || maxPerSubfolder > 0 || maxTotalBytes > 0;
+    }
+
+    /** Evaluate all rules against the provided package files (no folders or metadata files) as of <code>nowMillis</code>. */
+    public Result evaluate(List<S3ObjectSummary> packageFiles, long nowMillis) {
+        final KeyIndex listing = KeyIndex.of(packageFiles);
+        final BitSet all = new BitSet(listing.size());
+        all.set(0, listing.size());
+        return evaluate(listing, all, nowMillis);
+    }
+
+    /**
+     * Evaluate all rules against the objects of the listing whose indexes are set in <code>packageFiles</code> (which
+     * must select no folders or metadata files) as of <code>nowMillis</code>.
+     */
+    public Result evaluate(final KeyIndex listing, final BitSet packageFiles, long nowMillis) {
+        final Comparator<Integer> newestFirst = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer left, Integer right) {
+                final long leftModified = listing.getLastModified(left);
+                final long rightModified = listing.getLastModified(right);
+                if (leftModified != rightModified) {
+                    return leftModified < rightModified ? 1 : -1;
+                }
+                // the listing is in key order, so this breaks ties by key, descending
+                return right - left;
+            }
+        };
+        // group files by package, newest first; the newest of each package is protected
+        Map<String, int[]> byPackage = listing.group(0, listing.size(), new KeyIndex.Classifier() {
+            @Override
+            public String classify(int index, String key) {
+                return packageFiles.get(index) ? toPackageKey(key) : null;
+            }
+        });
+        final BitSet protectedFiles = new BitSet(listing.size());
+        final BitSet toDelete = new BitSet(listing.size());
+        final List<Integer> deletionOrder = new ArrayList<Integer>();
+        final long cutoff = nowMillis - maxAgeMillis;
+        for (int[] members : byPackage.values()) {
+            final List<Integer> group = sorted(members, newestFirst);
+            protectedFiles.set(group.get(0));
+            for (int i = 1; i < group.size(); ++i) {
+                final int index = group.get(i);
+                if ((keepNewestPerPackage > 0 && i >= keepNewestPerPackage)
+                        || (maxAgeMillis > 0 && listing.getLastModified(index) < cutoff)) {
+                    markForDeletion(index, toDelete, deletionOrder);
+                }
+            }
+        }
+        // per-subfolder caps and the total size budget apply to whatever survived the per-package rules
+        if (maxPerSubfolder > 0) {
+            Map<String, int[]> bySubfolder = listing.group(0, listing.size(), new KeyIndex.Classifier() {
+                @Override
+                public String classify(int index, String key) {
+                    return packageFiles.get(index) && !toDelete.get(index) ? toFolder(key) : null;
+                }
+            });
+            for (int[] members : bySubfolder.values()) {
+                final List<Integer> group = sorted(members, newestFirst);
+                for (int i = maxPerSubfolder; i < group.size(); ++i) {
+                    if (!protectedFiles.get(group.get(i))) {
+                        markForDeletion(group.get(i), toDelete, deletionOrder);
+                    }
+                }
+            }
+        }
+        if (maxTotalBytes > 0) {
+            List<Integer> survivors = new ArrayList<Integer>();
+            long totalBytes = 0;
+            for (int index = packageFiles.nextSetBit(0); index >= 0; index = packageFiles.nextSetBit(index + 1)) {
+                if (!toDelete.get(index)) {
+                    survivors.add(index);
+                    totalBytes += listing.getSize(index);
+                }
+            }
+            Collections.sort(survivors, Collections.reverseOrder(newestFirst));
+            for (int oldest : survivors) {
+                if (totalBytes <= maxTotalBytes) {
+                    break;
+                }
+                if (!protectedFiles.get(oldest)) {
+                    markForDeletion(oldest, toDelete, deletionOrder);
+                    totalBytes -= listing.getSize(oldest);
+                }
+            }
+        }
+        long bytes = 0;
+        final List<String> bucketKeys = new ArrayList<String>(deletionOrder.size());
+        for (int index : deletionOrder) {
+            bucketKeys.add(listing.getKey(index));
+            bytes += listing.getSize(index);
+        }
+        return new Result(bucketKeys, bytes);
+    }
+
+    private static List<Integer> sorted(int[] indexes, Comparator<Integer> order) {
+        final List<Integer> sorted = new ArrayList<Integer>(indexes.length);
+        for (int index : indexes) {
+            sorted.add(index);
+        }
+        Collections.sort(sorted, order);
+        return sorted;
+    }
+
+    private static void markForDeletion(int index, BitSet toDelete, List<Integer> deletionOrder) {
+        if (!toDelete.get(index)) {
+            toDelete.set(index);
+            deletionOrder.add(index);
+        }
+    }
+
+    /** See class comment. */
+    static String toPackageKey(String bucketKey) {
+        final String folder = toFolder(bucketKey);
+        String name = bucketKey.substring(folder.length());
+        if (name.endsWith(RPM_EXTENSION)) {
+            name = name.substring(0, name.length() - RPM_EXTENSION.length());
+            if (name.lastIndexOf('.') > 0) {
+                name = name.substring(0, name.lastIndexOf('.')); // the arch
+            }
+        }
+        // e.g., "1.4-SNAPSHOT-2" is one version, like "1.4-SNAPSHOT2"
+        name = name.replace("-" + SNAPSHOT + "-", "-" + SNAPSHOT);
+        for (int segment = 0; segment < 2; ++segment) { // the release, then the version
+            final int separator = name.lastIndexOf('-');
+            if (separator <= 0 || !isVersionSegment(name.substring(separator + 1))) {
+                break;
+            }
+            name = name.substring(0, separator);
+        }
+        return folder + name;
+    }
+
+    private static boolean isVersionSegment(String segment) {
+        return segment.startsWith(SNAPSHOT) || (!segment.isEmpty() && Character.isDigit(segment.charAt(0)));
+    }
+
+    /** The folder of the provided key, including its trailing "/" (or empty). */
+    private static String toFolder(String bucketKey) {
+        return bucketKey.substring(0, bucketKey.lastIndexOf('/') + 1);
+    }
+
+    @Override
+    public String toString() {
+        return "keepNewestPerPackage=" + keepNewestPerPackage + ", maxAgeMillis=" + maxAgeMillis
+            + ", maxPerSubfolder=" + maxPerSubfolder + ", maxTotalBytes=" + maxTotalBytes;
+    }
+
+    /** The outcome of evaluating a policy: the exact bucket keys to delete and the bytes that deleting them saves. */
+    public static final class Result {
+
+        private final List<String> bucketKeysToDelete;
+        private final long bytesToDelete;
+
+        private Result(List<String> bucketKeysToDelete, long bytesToDelete) {
+            this.bucketKeysToDelete = bucketKeysToDelete;
+            this.bytesToDelete = bytesToDelete;
+        }
+
+        public List<String> getBucketKeysToDelete() {
+            return bucketKeysToDelete;
+        }
+
+        public long getBytesToDelete() {
+            return bytesToDelete;
+        }
+
+    }
+
+}
@@ -6,24 +6,22 @@ import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
 final class SnapshotDescription {
 
     private final S3RepositoryPath s3RepositoryPath;
-    private final String bucketName;
-    /** Everything in the bucket key for the snapshot <em>before</em> the "SNAPSHOT" string. */
-    private final String bucketKeyPrefix;
     /** The full bucket key for the SNAPSHOT. */
     private final String bucketKey;
+    /** Length of everything in the bucket key <em>before</em> the "SNAPSHOT" string. */
+    private final int bucketKeyPrefixLength;
     /** The number that follows the "SNAPSHOT" string in the file name. */
     private final int ordinal;
 
-    public SnapshotDescription(S3RepositoryPath s3RepositoryPath, String bucketName, String bucketKeyPrefix, String bucketKey, int ordinal) {
+    public SnapshotDescription(S3RepositoryPath s3RepositoryPath, String bucketKey, int bucketKeyPrefixLength, int ordinal) {
         this.s3RepositoryPath = s3RepositoryPath;
-        this.bucketName = bucketName;
-        this.bucketKeyPrefix = bucketKeyPrefix;
         this.bucketKey = bucketKey;
+        this.bucketKeyPrefixLength = bucketKeyPrefixLength;
         this.ordinal = ordinal;
     }
 
     public boolean existsInRepository(S3RepositoryPath repo) {
-        return bucketName.equals(repo.getBucketName())
+        return s3RepositoryPath.getBucketName().equals(repo.getBucketName())
             && bucketKey.startsWith(repo.getBucketRelativeFolder());
     }
 
@@ -32,11 +30,12 @@ final class SnapshotDescription {
     }
 
     public String getBucketName() {
-        return bucketName;
+        return s3RepositoryPath.getBucketName();
     }
 
+    /** Everything in the bucket key for the snapshot <em>before</em> the "SNAPSHOT" string. */
     public String getBucketKeyPrefix() {
-        return bucketKeyPrefix;
+        return bucketKey.substring(0, bucketKeyPrefixLength);
     }
 
     public String getBucketKey() {
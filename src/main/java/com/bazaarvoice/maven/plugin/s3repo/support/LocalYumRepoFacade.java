@@ -1,14 +1,26 @@
 package com.bazaarvoice.maven.plugin.s3repo.support;
 
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.Digests;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
 import com.bazaarvoice.maven.plugin.s3repo.util.LogStreamConsumer;
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataCompression;
+import com.bazaarvoice.maven.plugin.s3repo.util.MultiDigest;
+import com.bazaarvoice.maven.plugin.s3repo.util.ParallelTasks;
 import com.bazaarvoice.maven.plugin.s3repo.util.NullStreamConsumer;
 import com.bazaarvoice.maven.plugin.s3repo.util.SimpleNamespaceResolver;
+import com.bazaarvoice.maven.plugin.s3repo.util.StagingArea;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
 import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableSet;
-import com.google.common.io.Closeables;
-import org.apache.commons.codec.digest.DigestUtils;
+import com.google.common.io.Files;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
@@ -16,31 +28,49 @@ import org.codehaus.plexus.util.cli.CommandLineException;
 import org.codehaus.plexus.util.cli.CommandLineUtils;
 import org.codehaus.plexus.util.cli.Commandline;
 import org.w3c.dom.Document;
+import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 
+import javax.xml.stream.XMLStreamException;
 import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
-/** Encapsulates queries and operations over a local copy of a YUM repo. */
+/**
+ * Encapsulates queries and operations over a local copy of a YUM repo. The copy is usually on disk; everything but
+ * createrepo also works over a copy kept in memory (see {@link StagingArea#inMemory()}).
+ */
 public final class LocalYumRepoFacade {
 
-    private final File repositoryRoot;
+    private static final String REPO_METADATA_PATH = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME;
+    private static final String MANIFEST_PATH = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.S3REPO_MANIFEST_FILENAME;
+
+    private final StagingArea staging;
     private final String createRepoCommand;
     private final Set<String> createRepoArgs;
     private final Log log;
 
     public LocalYumRepoFacade(File repositoryRoot, String createRepoCommand, String createRepoOpts, Log log) {
+        this(StagingArea.onDisk(repositoryRoot), createRepoCommand, createRepoOpts, log);
+    }
+
+    public LocalYumRepoFacade(StagingArea staging, String createRepoCommand, String createRepoOpts, Log log) {
         this.log = log;
-        this.repositoryRoot = repositoryRoot;
+        this.staging = staging;
         this.createRepoCommand = createRepoCommand;
 
         ImmutableSet.Builder<String> opts = ImmutableSet.builder();
@@ -55,69 +85,332 @@ public final class LocalYumRepoFacade {
         this.createRepoArgs = opts.build();
     }
 
+    public StagingArea getStagingArea() {
+        return staging;
+    }
+
     public boolean isRepoDataExists() {
         // as a heuristic, answer true if repo metadata file exists
-        return determineRepoMetadataFile().isFile();
+        return staging.isFile(REPO_METADATA_PATH);
     }
 
     /**
      * Checks checksums of repo metadata files. Throws exception if files fail verification
      */
     public void verifyRepoDataFileChecksums() throws MojoExecutionException {
-        File repoMetadataFile = determineRepoMetadataFile();
-        if (!repoMetadataFile.isFile()) {
-            throw new IllegalStateException("File didn't exist: " + repoMetadataFile.getPath());
-        }
-        Document repoMetadata = XmlUtils.parseXmlFile(repoMetadataFile);
+        Document repoMetadata = parseRepoMetadata();
 
         // check checksum of repo files
         for (String fileType : WellKnowns.YUM_REPOMETADATA_FILE_TYPES) {
-            final File file = resolveMetadataFile(fileType, repoMetadata);
+            final String file = resolveMetadataFile(fileType, repoMetadata);
+            if (!staging.isFile(file)) {
+                throw new MojoExecutionException("Repo file " + file + " not found");
+            }
+            final Checksum checksum = resolveMetadataChecksum(fileType, repoMetadata);
+            final String digest = digestHex(checksum.checksumType, file);
+            if (!checksum.checksumValue.equals(digest)) {
+                throw new MojoExecutionException("Checksum does not match for " + file + ". Expected " + checksum.checksumValue + " but got " + digest);
+            }
+        }
+    }
+
+    /**
+     * Recompress the primary, filelists and other metadata files with the provided codec and level (a negative level
+     * means the codec's default), updating their entries in repomd.xml. Large files are compressed block-parallel
+     * with the provided number of threads when the codec allows it.
+     */
+    public void recompressMetadata(MetadataCompression compression, int level, int threads) throws MojoExecutionException {
+        Document repoMetadata = parseRepoMetadata();
+        String rootNamespaceUri = determineRootNamespaceUri(repoMetadata);
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("repo", rootNamespaceUri));
+        for (String fileType : WellKnowns.YUM_REPOMETADATA_FILE_TYPES) {
+            final String file = resolveMetadataFile(fileType, repoMetadata);
+            final String fileName = toFileName(file);
+            final MetadataCompression existingCompression = MetadataCompression.forFileName(fileName);
+            if (existingCompression == compression && level < 0) {
+                continue; // already in the requested format
+            }
+            final String checksumType = resolveMetadataChecksum(fileType, repoMetadata).checksumType;
+            final String uncompressedName = fileName.substring(0, fileName.length() - existingCompression.getExtension().length() - 1);
+            final String recompressed = file.substring(0, file.length() - fileName.length())
+                + uncompressedName + "." + compression.getExtension() + ".tmp";
+            log.info("Recompressing " + fileName + " with " + compression.getExtension()
+                + (level < 0 ? "" : " (level " + level + ")") + "...");
+            InputStream in = openMetadataFile(file);
             try {
-                final FileInputStream fileIn = new FileInputStream(file);
+                OutputStream out = staging.openOutputStream(recompressed);
                 try {
-                    final Checksum checksum = resolveMetadataChecksum(fileType, repoMetadata);
-                    String digest;
-                    if ("sha".equals(checksum.checksumType) || "sha1".equals(checksum.checksumType)) {
-                        digest = DigestUtils.shaHex(fileIn);
-                    } else if ("sha256".equals(checksum.checksumType)) {
-                        digest = DigestUtils.sha256Hex(fileIn);
-                    } else if ("sha384".equals(checksum.checksumType)) {
-                        digest = DigestUtils.sha384Hex(fileIn);
-                    } else if ("sha512".equals(checksum.checksumType)) {
-                        digest = DigestUtils.sha512Hex(fileIn);
-                    } else if ("md5".equals(checksum.checksumType)) {
-                        digest = DigestUtils.md5Hex(fileIn);
+                    compression.compress(in, out, level, threads);
+                } finally {
+                    out.close();
+                }
+            } catch (IOException e) {
+                throw new MojoExecutionException("Failed to recompress " + file, e);
+            } finally {
+                ExtraIOUtils.closeQuietly(in);
+            }
+            replaceMetadataFile(xpath, repoMetadata, fileType, checksumType, file, recompressed,
+                uncompressedName + "." + compression.getExtension(), null/*content is unchanged*/, -1);
+        }
+        writeRepoMetadata(repoMetadata);
+    }
+
+    /**
+     * Rewrite the primary, filelists and other metadata <em>without</em> createrepo (and without any package files),
+     * dropping the packages at the provided repo-relative locations and renaming the locations of others. The
+     * rewritten files are registered in repomd.xml; sqlite and zchunk variants can't be rewritten this way, so they
+     * are dropped from repomd.xml (clients fall back to the XML metadata).
+     */
+    public void rewriteMetadata(Set<String> removedLocations, Map<String, String> renamedLocations) throws MojoExecutionException {
+        Document repoMetadata = parseRepoMetadata();
+        String rootNamespaceUri = determineRootNamespaceUri(repoMetadata);
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("repo", rootNamespaceUri));
+        MetadataRewriter rewriter = new MetadataRewriter(removedLocations, renamedLocations);
+        final String primary = resolvePrimaryMetadataFile(repoMetadata);
+        InputStream primaryIn = openMetadataFile(primary);
+        try {
+            rewriter.scanPrimary(primaryIn);
+        } catch (XMLStreamException e) {
+            throw new MojoExecutionException("Failed to parse " + primary, e);
+        } finally {
+            ExtraIOUtils.closeQuietly(primaryIn);
+        }
+        log.info("Rewriting metadata: removing " + rewriter.getRemovedPackages() + " package(s) and renaming "
+            + renamedLocations.size() + "; " + rewriter.getRemainingPackages() + " package(s) remain...");
+        for (String fileType : WellKnowns.YUM_REPOMETADATA_FILE_TYPES) {
+            final String file = resolveMetadataFile(fileType, repoMetadata);
+            final MetadataCompression compression = MetadataCompression.forFileName(file);
+            final String checksumType = resolveMetadataChecksum(fileType, repoMetadata).checksumType;
+            final String rewritten = file + ".tmp";
+            final MessageDigest openDigest = Digests.newMessageDigest(checksumType);
+            final CountingOutputStream openOut;
+            InputStream in = openMetadataFile(file);
+            try {
+                OutputStream out = compression.compress(staging.openOutputStream(rewritten), -1);
+                openOut = new CountingOutputStream(new DigestOutputStream(out, openDigest));
+                try {
+                    if ("primary".equals(fileType)) {
+                        rewriter.rewritePrimary(in, openOut);
                     } else {
-                        // default to sha256
-                        digest = DigestUtils.sha256Hex(fileIn);
-                    }
-                    if (!checksum.checksumValue.equals(digest)) {
-                        throw new MojoExecutionException("Checksum does not match for " + file.getPath() + ". Expected " + checksum.checksumValue + " but got " + digest);
+                        rewriter.rewritePackagesByPkgId(in, openOut);
                     }
-                } catch (IOException e) {
-                    throw new MojoExecutionException("Unable to calculate checksum for " + file.getPath(), e);
                 } finally {
-                    try { Closeables.close(fileIn, true);} catch (IOException e) {/*swallowed*/}
+                    openOut.close();
                 }
-            } catch (FileNotFoundException e) {
-                throw new MojoExecutionException("Repo file " + file.getPath() + " not found");
+            } catch (IOException e) {
+                throw new MojoExecutionException("Failed to rewrite " + file, e);
+            } catch (XMLStreamException e) {
+                throw new MojoExecutionException("Failed to rewrite " + file, e);
+            } finally {
+                ExtraIOUtils.closeQuietly(in);
+            }
+            replaceMetadataFile(xpath, repoMetadata, fileType, checksumType, file, rewritten, toFileName(file),
+                Hex.encodeHexString(openDigest.digest()), openOut.getByteCount());
+        }
+        removeMetadataEntries(xpath, repoMetadata, WellKnowns.YUM_DATABASE_REPOMETADATA_FILE_TYPES);
+        removeMetadataEntries(xpath, repoMetadata, WellKnowns.YUM_ZCHUNK_REPOMETADATA_FILE_TYPES);
+        writeRepoMetadata(repoMetadata);
+    }
+
+    /**
+     * Replace a metadata file with a new version and update its repomd.xml entry. A null <code>openChecksum</code>
+     * means that the uncompressed content did not change.
+     */
+    private void replaceMetadataFile(XPath xpath, Document repoMetadata, String fileType, String checksumType,
+                                     String original, String replacement, String replacementName,
+                                     String openChecksum, long openSize) throws MojoExecutionException {
+        final String digest = digestHex(checksumType, replacement);
+        // with unique metadata filenames (the default) the file name is prefixed with its checksum
+        String targetName = replacementName;
+        if (targetName.matches("^[0-9a-f]{" + digest.length() + "}-.*")) {
+            targetName = digest + targetName.substring(digest.length());
+        }
+        final String target = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + targetName;
+        try {
+            staging.delete(original);
+            staging.rename(replacement, target);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to replace " + original + " with " + target, e);
+        }
+        final String dataXPath = "//repo:repomd/repo:data[@type='" + fileType + "']";
+        setXPathText(xpath, dataXPath + "/repo:location/@href", repoMetadata, target);
+        setXPathText(xpath, dataXPath + "/repo:checksum", repoMetadata, digest);
+        setXPathText(xpath, dataXPath + "/repo:size", repoMetadata, String.valueOf(staging.length(target)));
+        setXPathText(xpath, dataXPath + "/repo:timestamp", repoMetadata, String.valueOf(staging.lastModified(target) / 1000));
+        if (openChecksum != null) {
+            setXPathText(xpath, dataXPath + "/repo:open-checksum", repoMetadata, openChecksum);
+            setXPathText(xpath, dataXPath + "/repo:open-size", repoMetadata, String.valueOf(openSize));
+        }
+    }
+
+    /** Remove the repomd.xml entries (and local files) for the provided metadata types, if present. */
+    private void removeMetadataEntries(XPath xpath, Document repoMetadata, String[] types) throws MojoExecutionException {
+        for (String type : types) {
+            final String dataXPath = "//repo:repomd/repo:data[@type='" + type + "']";
+            final String repoRelativePath = evaluateXPathString(xpath, dataXPath + "/repo:location/@href", repoMetadata);
+            if (StringUtils.isEmpty(repoRelativePath)) {
+                continue;
+            }
+            log.warn("Dropping stale '" + type + "' metadata (" + repoRelativePath + "); it can't be rewritten without createrepo");
+            try {
+                staging.delete(repoRelativePath);
+            } catch (IOException e) {
+                throw new MojoExecutionException("Failed to delete " + repoRelativePath, e);
+            }
+            try {
+                Node data = (Node) xpath.evaluate(dataXPath, repoMetadata, XPathConstants.NODE);
+                data.getParentNode().removeChild(data);
+            } catch (XPathExpressionException e) {
+                throw new MojoExecutionException(dataXPath, e);
+            }
+        }
+    }
+
+    /**
+     * Hash every package file declared by primary metadata, in parallel, and compare each with its declared checksum.
+     * Packages at the provided (repo-relative) locations are not checked. Sha256 digests that are already known (e.g.,
+     * computed while the files were downloaded), keyed by location, are used instead of reading those files again.
+     */
+    public PackageVerificationReport verifyPackageChecksums(Set<String> ignoredLocations, final Map<String, String> knownSha256Digests,
+                                                            int threads) throws MojoExecutionException {
+        final PackageVerificationReport report = new PackageVerificationReport();
+        final long start = System.currentTimeMillis();
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final PackageMetadata packageMetadata : parsePackagesFromRepoMetadata()) {
+            if (ignoredLocations.contains(packageMetadata.getLocation())) {
+                continue;
+            }
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    final String location = packageMetadata.getLocation();
+                    if (!staging.isFile(location)) {
+                        report.addMissing(location);
+                        return null;
+                    }
+                    final String knownDigest = "sha256".equals(packageMetadata.getChecksumType())
+                        ? knownSha256Digests.get(location)
+                        : null;
+                    final String digest = knownDigest != null
+                        ? knownDigest
+                        : hexDigest(packageMetadata.getChecksumType(), location);
+                    if (digest.equals(packageMetadata.getChecksum())) {
+                        report.addVerified(staging.length(location));
+                    } else {
+                        report.addMismatch(packageMetadata.getLocation(), packageMetadata.getChecksum(), digest);
+                    }
+                    return null;
+                }
+            });
+        }
+        log.info("Verifying checksums of " + tasks.size() + " package(s) using " + threads + " thread(s)...");
+        ParallelTasks.invokeAll(threads, tasks);
+        report.setElapsedMillis(System.currentTimeMillis() - start);
+        return report;
+    }
+
+    /** Stream-parse primary metadata into a list of packages. */
+    public List<PackageMetadata> parsePackagesFromRepoMetadata() throws MojoExecutionException {
+        InputStream in = openMetadataFile(resolvePrimaryMetadataFile(parseRepoMetadata()));
+        try {
+            return PrimaryMetadataReader.readPackages(in);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Write the package index (see {@link PackageIndex}) for the current metadata into the repodata folder. Call this
+     * after the metadata is final, as the index records the checksum of repomd.xml.
+     */
+    public void writePackageIndex() throws MojoExecutionException {
+        final String indexFile = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.S3REPO_PACKAGE_INDEX_FILENAME;
+        final List<PackageMetadata> packages = parsePackagesFromRepoMetadata();
+        final String repoMetadataSha256 = digestHex(MultiDigest.SHA256, REPO_METADATA_PATH);
+        try {
+            OutputStream out = staging.openOutputStream(indexFile);
+            try {
+                PackageIndex.write(repoMetadataSha256, packages, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write package index: " + indexFile, e);
+        }
+        log.info("Wrote package index of " + packages.size() + " package(s) (" + staging.length(indexFile) + " bytes).");
+    }
+
+    /**
+     * Read the repository manifest (see {@link RepositoryManifest}) from the repodata folder. Returns null if there is
+     * none, or if it is unreadable or stale (i.e., it wasn't written with the current repomd.xml).
+     */
+    public RepositoryManifest readRepositoryManifest() throws MojoExecutionException {
+        if (!staging.isFile(MANIFEST_PATH)) {
+            return null;
+        }
+        final RepositoryManifest manifest;
+        try {
+            InputStream in = staging.openInputStream(MANIFEST_PATH);
+            try {
+                manifest = RepositoryManifest.read(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable repository manifest " + MANIFEST_PATH + ": " + e.getMessage());
+            return null;
+        }
+        if (!manifest.getRepoMetadataSha256().equals(digestHex(MultiDigest.SHA256, REPO_METADATA_PATH))) {
+            log.info("Ignoring stale repository manifest " + MANIFEST_PATH + " (repomd.xml has changed since it was written).");
+            return null;
+        }
+        return manifest;
+    }
+
+    /**
+     * Write the repository manifest (see {@link RepositoryManifest}): the provided files (keyed by repo-relative path)
+     * plus the files in the repodata folder. Call this after the metadata and the package index are final, as the
+     * manifest records the checksum of repomd.xml and the ETag (i.e., the md5) of each metadata file.
+     */
+    public void writeRepositoryManifest(Collection<S3ObjectSummary> files) throws MojoExecutionException {
+        final List<S3ObjectSummary> all = new ArrayList<S3ObjectSummary>(files);
+        for (String repoRelativePath : listRepoDataFiles()) {
+            if (!repoRelativePath.equals(REPO_METADATA_PATH) && !repoRelativePath.equals(MANIFEST_PATH)) {
+                final S3ObjectSummary summary = new S3ObjectSummary();
+                summary.setKey(repoRelativePath);
+                summary.setSize(staging.length(repoRelativePath));
+                summary.setETag(digestHex(MultiDigest.MD5, repoRelativePath));
+                all.add(summary);
             }
         }
+        final KeyIndex index;
+        try {
+            index = KeyIndex.of(all);
+        } catch (IllegalArgumentException e) {
+            throw new MojoExecutionException("Can't write repository manifest: " + e.getMessage(), e);
+        }
+        try {
+            OutputStream out = staging.openOutputStream(MANIFEST_PATH);
+            try {
+                RepositoryManifest.write(digestHex(MultiDigest.SHA256, REPO_METADATA_PATH), index, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write repository manifest: " + MANIFEST_PATH, e);
+        }
+        log.info("Wrote repository manifest of " + index.size() + " file(s) (" + staging.length(MANIFEST_PATH) + " bytes).");
     }
 
     public boolean hasFile(String repoRelativePath) {
-        return new File(repositoryRoot, repoRelativePath).isFile();
+        return staging.isFile(repoRelativePath);
     }
 
     /** Parse primary metadata file to get list of repo file paths (these paths will be *repo-relative*). */
     public List<String> parseFileListFromRepoMetadata() throws MojoExecutionException {
-        File repoMetadataFile = determineRepoMetadataFile();
-        if (!repoMetadataFile.isFile()) {
-            throw new IllegalStateException("File didn't exist: " + repoMetadataFile.getPath());
-        }
-        return extractFileListFromPrimaryMetadataFile(
-                XmlUtils.parseXmlFile(resolvePrimaryMetadataFile(XmlUtils.parseXmlFile(repoMetadataFile))));
+        return extractFileListFromPrimaryMetadataFile(parseMetadataFile(resolvePrimaryMetadataFile(parseRepoMetadata())));
     }
 
     /** Execute the createrepo command. */
@@ -130,12 +423,47 @@ public final class LocalYumRepoFacade {
         internalCreateRepo(true/*update*/);
     }
 
+    /** The repodata folder of an on-disk repository. */
     public File repoDataDirectory() {
-        return new File(repositoryRoot, WellKnowns.YUM_REPODATA_FOLDERNAME);
+        if (staging.getDirectory() == null) {
+            throw new IllegalStateException("repository is staged in memory; there is no repodata directory");
+        }
+        return new File(staging.getDirectory(), WellKnowns.YUM_REPODATA_FOLDERNAME);
+    }
+
+    /**
+     * The repodata files in use: repomd.xml, every file it refers to (including any database or zchunk metadata) and
+     * the files this plugin publishes next to it. Empty if there's no repomd.xml.
+     */
+    public Set<String> listRepoDataFilesInUse() throws MojoExecutionException {
+        final Set<String> inUse = new TreeSet<String>();
+        if (!isRepoDataExists()) {
+            return inUse;
+        }
+        final Document repoMetadata = parseRepoMetadata();
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("repo", determineRootNamespaceUri(repoMetadata)));
+        NodeList locations = (NodeList) evaluateXPathNodeSet(xpath, "//repo:repomd/repo:data/repo:location/@href", repoMetadata);
+        for (int i = 0; i < locations.getLength(); ++i) {
+            inUse.add(locations.item(i).getNodeValue());
+        }
+        inUse.add(REPO_METADATA_PATH);
+        inUse.add(WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.S3REPO_PACKAGE_INDEX_FILENAME);
+        inUse.add(MANIFEST_PATH);
+        return inUse;
+    }
+
+    /** Repo-relative paths of the files in the repodata folder, sorted. */
+    public List<String> listRepoDataFiles() {
+        return staging.listFiles(WellKnowns.YUM_REPODATA_FOLDERNAME);
     }
 
     /** Execute the createrepo command. */
     private void internalCreateRepo(boolean updateOnly) throws MojoExecutionException {
+        final File repositoryRoot = staging.getDirectory();
+        if (repositoryRoot == null) {
+            throw new MojoExecutionException(createRepoCommand + " can't run over a repository staged in memory");
+        }
         Commandline commandline = new Commandline();
         commandline.setExecutable(this.createRepoCommand);
         ImmutableSet.Builder<String> args = ImmutableSet.<String>builder().addAll(createRepoArgs);
@@ -148,20 +476,74 @@ public final class LocalYumRepoFacade {
             // if metadata already exists, we will execute "createrepo --update --skip-stat ."
             args.add("--update", "--skip-stat");
         }
+        final boolean zchunk = createRepoArgs.contains(WellKnowns.CREATEREPO_ZCHUNK_OPTION);
+        File packageList = null;
+        if (zchunk) {
+            // zchunk clients only download chunks that changed, so package order must be stable from one run to the
+            // next; createrepo_c emits packages in --pkglist order, whereas a directory walk has no defined order.
+            packageList = writeSortedPackageList();
+            args.add("--pkglist", packageList.getPath());
+        }
         for (String arg : args.build()) {
             commandline.createArg().setValue(arg);
         }
         commandline.createArg().setValue(repositoryRoot.getPath());
         log.info("Executing \'" + commandline.toString() + "\'");
+        final Timeline.Span process = Timeline.begin(Timeline.PROCESS, createRepoCommand, commandline.toString());
         try {
             int result = CommandLineUtils.executeCommandLine(commandline, NullStreamConsumer.theInstance, new LogStreamConsumer(log));
+            process.detail(commandline + " (exit " + result + ")");
             if (result != 0) {
                 throw new MojoExecutionException(createRepoCommand + " returned: \'" + result + "\' executing \'" + commandline + "\'");
             }
         } catch (CommandLineException e) {
             throw new MojoExecutionException("Unable to execute: " + commandline, e);
+        } finally {
+            process.end();
+            if (packageList != null && !packageList.delete()) {
+                log.debug("Failed to delete temporary package list " + packageList.getPath());
+            }
         }
         log.info("Successfully built repo using directory: " + repositoryRoot.getPath());
+        if (zchunk) {
+            verifyMetadataRegistered(WellKnowns.YUM_ZCHUNK_REPOMETADATA_FILE_TYPES, "zchunk metadata");
+        }
+        if (createRepoArgs.contains(WellKnowns.CREATEREPO_DATABASE_OPTION)) {
+            verifyMetadataRegistered(WellKnowns.YUM_DATABASE_REPOMETADATA_FILE_TYPES, "sqlite database");
+        }
+    }
+
+    /** Write the repo-relative paths of all rpms in the repository, sorted, to a temporary file (one per line). */
+    private File writeSortedPackageList() throws MojoExecutionException {
+        List<String> repoRelativePaths = new ArrayList<String>();
+        for (String repoRelativePath : staging.listFiles("")) {
+            if (repoRelativePath.endsWith(".rpm")) {
+                repoRelativePaths.add(repoRelativePath);
+            }
+        }
+        try {
+            File packageList = File.createTempFile("s3repo-pkglist", ".txt");
+            Files.write(Joiner.on('\n').join(repoRelativePaths), packageList, Charsets.UTF_8);
+            return packageList;
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write package list for " + createRepoCommand, e);
+        }
+    }
+
+    /** Ensure that optional metadata we explicitly asked createrepo for was produced and registered in repomd.xml. */
+    private void verifyMetadataRegistered(String[] types, String description) throws MojoExecutionException {
+        Document repoMetadata = parseRepoMetadata();
+        String rootNamespaceUri = determineRootNamespaceUri(repoMetadata);
+        XPath xpath = XPathFactory.newInstance().newXPath();
+        xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("repo", rootNamespaceUri));
+        for (String type : types) {
+            String repoRelativePath =
+                evaluateXPathString(xpath, "//repo:repomd/repo:data[@type='" + type + "']/repo:location/@href", repoMetadata);
+            if (StringUtils.isEmpty(repoRelativePath) || !staging.isFile(repoRelativePath)) {
+                throw new MojoExecutionException(description + " was requested but " + createRepoCommand
+                    + " did not register a '" + type + "' file in repomd.xml");
+            }
+        }
     }
 
     private List<String> extractFileListFromPrimaryMetadataFile(Document primaryMetadataFile) throws MojoExecutionException {
@@ -178,31 +560,71 @@ public final class LocalYumRepoFacade {
         return retval;
     }
 
-    /** Resolve repomd file (i.e., repodata/repomd.xml) file. */
-    private File determineRepoMetadataFile() {
-        // path to repomd.xml, e.g.
-        return new File(repoDataDirectory(), WellKnowns.YUM_REPOMETADATA_FILENAME);
+    /** Parse the repomd file (i.e., repodata/repomd.xml). */
+    private Document parseRepoMetadata() throws MojoExecutionException {
+        if (!staging.isFile(REPO_METADATA_PATH)) {
+            throw new IllegalStateException("File didn't exist: " + REPO_METADATA_PATH + " in " + staging);
+        }
+        return parseMetadataFile(REPO_METADATA_PATH);
     }
 
-    private File resolvePrimaryMetadataFile(Document metadata) throws MojoExecutionException {
+    private void writeRepoMetadata(Document repoMetadata) throws MojoExecutionException {
+        try {
+            OutputStream out = staging.openOutputStream(REPO_METADATA_PATH);
+            try {
+                XmlUtils.writeXml(repoMetadata, out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to write " + REPO_METADATA_PATH, e);
+        }
+    }
+
+    private Document parseMetadataFile(String repoRelativePath) throws MojoExecutionException {
+        InputStream in = openMetadataFile(repoRelativePath);
+        try {
+            return XmlUtils.parseXml(in);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /** Open a staged (metadata) file for reading, decompressing it if its extension indicates a {@link MetadataCompression}. */
+    private InputStream openMetadataFile(String repoRelativePath) throws MojoExecutionException {
+        try {
+            return XmlUtils.toInputStream(staging.openInputStream(repoRelativePath), repoRelativePath);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read file " + repoRelativePath, e);
+        }
+    }
+
+    private String resolvePrimaryMetadataFile(Document metadata) throws MojoExecutionException {
         return resolveMetadataFile("primary", metadata);
     }
 
-    private File resolveMetadataFile(String type, Document metadata) throws MojoExecutionException {
+    /** The repo-relative path of the provided metadata type's (existing) file. */
+    private String resolveMetadataFile(String type, Document metadata) throws MojoExecutionException {
+        // determine metadata file (e.g., "repodata/primary.xml.gz")
+        String metadataFile = resolveMetadataLocation(type, metadata);
+        if (!staging.isFile(metadataFile) || MetadataCompression.forFileName(metadataFile) == null) {
+            throw new MojoExecutionException(type + " metadata file, '" + metadataFile +
+                    "', does not exist or does not have a .gz, .bz2 or .xz extension");
+        }
+        return metadataFile;
+    }
+
+    private static String toFileName(String repoRelativePath) {
+        return repoRelativePath.substring(repoRelativePath.lastIndexOf('/') + 1);
+    }
+
+    /** The location (href) of the provided metadata type, relative to *repository* root. */
+    /*package*/ static String resolveMetadataLocation(String type, Document metadata) throws MojoExecutionException {
         // determine root namespace for use in xpath queries
         String rootNamespaceUri = determineRootNamespaceUri(metadata);
         XPath xpath = XPathFactory.newInstance().newXPath();
         xpath.setNamespaceContext(SimpleNamespaceResolver.forPrefixAndNamespace("repo", rootNamespaceUri));
-        // metadata file, relative to *repository* root
-        String repoRelativeMetadataFilePath =
-                evaluateXPathString(xpath, "//repo:repomd/repo:data[@type='" + type + "']/repo:location/@href", metadata);
-        // determine metadata file (e.g., "repodata/primary.xml.gz")
-        File metadataFile = new File(repositoryRoot, repoRelativeMetadataFilePath);
-        if (!metadataFile.isFile() || !metadataFile.getName().endsWith(".gz")) {
-            throw new MojoExecutionException(type + " metadata file, '" + metadataFile.getPath() +
-                    "', does not exist or does not have .gz extension");
-        }
-        return metadataFile;
+        return evaluateXPathString(xpath, "//repo:repomd/repo:data[@type='" + type + "']/repo:location/@href", metadata);
     }
 
     private Checksum resolveMetadataChecksum(String type, Document metadata) throws MojoExecutionException {
@@ -232,6 +654,38 @@ public final class LocalYumRepoFacade {
         }
     }
 
+    /** Set the text of the single element or attribute matching the provided expression (it must exist). */
+    private static void setXPathText(XPath xpath, String expression, Document document, String value) throws MojoExecutionException {
+        try {
+            Node node = (Node) xpath.evaluate(expression, document, XPathConstants.NODE);
+            if (node != null) {
+                node.setTextContent(value);
+            }
+        } catch (XPathExpressionException e) {
+            throw new MojoExecutionException(expression, e);
+        }
+    }
+
+    private String digestHex(String checksumType, String repoRelativePath) throws MojoExecutionException {
+        try {
+            return hexDigest(checksumType, repoRelativePath);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to calculate checksum for " + repoRelativePath, e);
+        }
+    }
+
+    private String hexDigest(String checksumType, String repoRelativePath) throws IOException {
+        if (staging.getDirectory() != null) {
+            return Digests.hexDigest(checksumType, new File(staging.getDirectory(), repoRelativePath));
+        }
+        InputStream in = staging.openInputStream(repoRelativePath);
+        try {
+            return Digests.hexDigest(checksumType, in);
+        } finally {
+            in.close();
+        }
+    }
+
     private static String determineRootNamespaceUri(Document metadata) {
         return metadata.getChildNodes().item(0).getNamespaceURI();
     }
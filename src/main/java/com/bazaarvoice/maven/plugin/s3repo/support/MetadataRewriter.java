@@ -0,0 +1,207 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Streams YUM metadata (primary, filelists, other) from one file to another, dropping the packages whose location
+ * hrefs were removed and rewriting the location hrefs of renamed packages. Only one package is held in memory at a
+ * time, so this costs O(metadata size) regardless of the size of the packages themselves.
+ *
+ * Usage: {@link #scanPrimary} once, then rewrite each file.
+ */
+final class MetadataRewriter {
+
+    private static final QName PACKAGES_ATTRIBUTE = new QName("packages");
+
+    private final Set<String> removedLocations;
+    private final Map<String, String> renamedLocations;
+    /** The pkgids (checksums) of removed packages; filelists and other identify packages only by pkgid. */
+    private final Set<String> removedPkgIds = new HashSet<String>();
+    private int remainingPackages = -1;
+
+    private final XMLInputFactory inputFactory = XMLInputFactory.newInstance();
+    private final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+    private final XMLEventFactory eventFactory = XMLEventFactory.newInstance();
+
+    MetadataRewriter(Set<String> removedLocations, Map<String, String> renamedLocations) {
+        this.removedLocations = removedLocations;
+        this.renamedLocations = renamedLocations;
+    }
+
+    /** First pass over primary metadata: determine which pkgids are removed and how many packages remain. */
+    void scanPrimary(InputStream in) throws XMLStreamException {
+        XMLStreamReader reader = inputFactory.createXMLStreamReader(in);
+        try {
+            int remaining = 0;
+            String pkgId = null;
+            String location = null;
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    final String name = reader.getLocalName();
+                    if ("package".equals(name)) {
+                        pkgId = null;
+                        location = null;
+                    } else if ("checksum".equals(name) && "YES".equals(reader.getAttributeValue(null, "pkgid"))) {
+                        pkgId = reader.getElementText().trim();
+                    } else if ("location".equals(name)) {
+                        location = reader.getAttributeValue(null, "href");
+                    }
+                } else if (event == XMLStreamConstants.END_ELEMENT && "package".equals(reader.getLocalName())) {
+                    if (location != null && removedLocations.contains(location)) {
+                        removedPkgIds.add(pkgId);
+                    } else {
+                        ++remaining;
+                    }
+                }
+            }
+            remainingPackages = remaining;
+        } finally {
+            reader.close();
+        }
+    }
+
+    int getRemainingPackages() {
+        return remainingPackages;
+    }
+
+    int getRemovedPackages() {
+        return removedPkgIds.size();
+    }
+
+    /** Rewrite primary metadata. Each package is buffered because its location comes after its other elements. */
+    void rewritePrimary(InputStream in, OutputStream out) throws XMLStreamException {
+        checkScanned();
+        XMLEventReader reader = inputFactory.createXMLEventReader(in);
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+        try {
+            List<XMLEvent> packageEvents = null; // non-null while we're within a <package>
+            String location = null;
+            boolean root = true;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    final String name = start.getName().getLocalPart();
+                    if (root) {
+                        root = false;
+                        event = withPackageCount(start);
+                    } else if (packageEvents == null && "package".equals(name)) {
+                        packageEvents = new ArrayList<XMLEvent>();
+                        location = null;
+                    } else if (packageEvents != null && "location".equals(name)) {
+                        location = attributeValue(start, "href");
+                        if (location != null && renamedLocations.containsKey(location)) {
+                            event = withAttribute(start, "href", renamedLocations.get(location));
+                        }
+                    }
+                }
+                if (packageEvents == null) {
+                    writer.add(event);
+                    continue;
+                }
+                packageEvents.add(event);
+                if (event.isEndElement() && "package".equals(event.asEndElement().getName().getLocalPart())) {
+                    if (location == null || !removedLocations.contains(location)) {
+                        for (XMLEvent packageEvent : packageEvents) {
+                            writer.add(packageEvent);
+                        }
+                    }
+                    packageEvents = null;
+                }
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    /** Rewrite filelists or other metadata, in which packages are identified by their pkgid attribute. */
+    void rewritePackagesByPkgId(InputStream in, OutputStream out) throws XMLStreamException {
+        checkScanned();
+        XMLEventReader reader = inputFactory.createXMLEventReader(in);
+        XMLEventWriter writer = outputFactory.createXMLEventWriter(out, "UTF-8");
+        try {
+            int skipDepth = 0; // > 0 while we're within a removed <package>
+            boolean root = true;
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (skipDepth > 0) {
+                    if (event.isStartElement()) {
+                        ++skipDepth;
+                    } else if (event.isEndElement()) {
+                        --skipDepth;
+                    }
+                    continue;
+                }
+                if (event.isStartElement()) {
+                    StartElement start = event.asStartElement();
+                    if (root) {
+                        root = false;
+                        event = withPackageCount(start);
+                    } else if ("package".equals(start.getName().getLocalPart())
+                            && removedPkgIds.contains(attributeValue(start, "pkgid"))) {
+                        skipDepth = 1;
+                        continue;
+                    }
+                }
+                writer.add(event);
+            }
+            writer.flush();
+        } finally {
+            reader.close();
+            writer.close();
+        }
+    }
+
+    private void checkScanned() {
+        if (remainingPackages < 0) {
+            throw new IllegalStateException("primary metadata has not been scanned");
+        }
+    }
+
+    private StartElement withPackageCount(StartElement root) {
+        return root.getAttributeByName(PACKAGES_ATTRIBUTE) == null
+            ? root
+            : withAttribute(root, PACKAGES_ATTRIBUTE.getLocalPart(), String.valueOf(remainingPackages));
+    }
+
+    private StartElement withAttribute(StartElement start, String attributeName, String value) {
+        List<Attribute> attributes = new ArrayList<Attribute>();
+        for (Iterator<?> it = start.getAttributes(); it.hasNext(); ) {
+            Attribute attribute = (Attribute) it.next();
+            if (attributeName.equals(attribute.getName().getLocalPart()) && attribute.getName().getNamespaceURI().isEmpty()) {
+                attributes.add(eventFactory.createAttribute(attribute.getName(), value));
+            } else {
+                attributes.add(attribute);
+            }
+        }
+        return eventFactory.createStartElement(start.getName(), attributes.iterator(), start.getNamespaces());
+    }
+
+    private static String attributeValue(StartElement start, String attributeName) {
+        Attribute attribute = start.getAttributeByName(new QName(attributeName));
+        return attribute == null ? null : attribute.getValue();
+    }
+
+}
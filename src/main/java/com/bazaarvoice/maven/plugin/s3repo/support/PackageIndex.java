@@ -0,0 +1,120 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A compact index of the packages in a repository, published next to the YUM metadata so that package queries don't
+ * need the (much larger) primary metadata or a listing of the whole repository. It is a gzipped, tab-separated file
+ * with one line per package, sorted by name: a header line records the sha256 of the repomd.xml it was generated
+ * from, so readers can tell when the index is stale (e.g., the repository was published by an older version of this
+ * plugin or by another tool).
+ */
+public final class PackageIndex {
+
+    private static final String HEADER = "#s3repo-package-index";
+    private static final String FORMAT_VERSION = "1";
+    /** Inflate large chunks rather than the JDK's default 512 bytes at a time. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private static final Comparator<PackageMetadata> BY_NAME = new Comparator<PackageMetadata>() {
+        @Override
+        public int compare(PackageMetadata left, PackageMetadata right) {
+            final int byName = left.getName().compareTo(right.getName());
+            return byName != 0 ? byName : left.getLocation().compareTo(right.getLocation());
+        }
+    };
+
+    private final String repoMetadataSha256;
+    /** Sorted by {@link #BY_NAME}. */
+    private final List<PackageMetadata> packages;
+
+    private PackageIndex(String repoMetadataSha256, List<PackageMetadata> packages) {
+        this.repoMetadataSha256 = repoMetadataSha256;
+        this.packages = packages;
+    }
+
+    /** Write an index of the provided packages, which were declared by the repomd.xml with the provided sha256. */
+    public static void write(String repoMetadataSha256, List<PackageMetadata> packages, OutputStream out) throws IOException {
+        final List<PackageMetadata> sorted = new ArrayList<PackageMetadata>(packages);
+        Collections.sort(sorted, BY_NAME);
+        final GZIPOutputStream gzip = new GZIPOutputStream(out);
+        final Writer writer = new OutputStreamWriter(gzip, Charsets.UTF_8);
+        writer.write(HEADER + "\t" + FORMAT_VERSION + "\t" + repoMetadataSha256 + "\n");
+        for (PackageMetadata p : sorted) {
+            writer.write(p.getName() + "\t" + Strings.nullToEmpty(p.getEpoch()) + "\t" + p.getVersion() + "\t"
+                + p.getRelease() + "\t" + p.getArch() + "\t" + p.getSize() + "\t" + p.getChecksumType() + "\t"
+                + p.getChecksum() + "\t" + p.getFileTime() + "\t" + p.getLocation() + "\n");
+        }
+        writer.flush();
+        gzip.finish();
+    }
+
+    /** Read an index written by {@link #write}. The stream is not closed. */
+    public static PackageIndex read(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in, READ_BUFFER_SIZE), Charsets.UTF_8));
+        final String[] header = Strings.nullToEmpty(reader.readLine()).split("\t");
+        if (header.length != 3 || !HEADER.equals(header[0]) || !FORMAT_VERSION.equals(header[1])) {
+            throw new IOException("Not a package index (or an unsupported version of one)");
+        }
+        final List<PackageMetadata> packages = new ArrayList<PackageMetadata>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String[] fields = line.split("\t", -1);
+            if (fields.length != 10) {
+                throw new IOException("Malformed package index line: " + line);
+            }
+            try {
+                packages.add(new PackageMetadata(fields[0], fields[4], Strings.emptyToNull(fields[1]), fields[2], fields[3],
+                    fields[9], Long.parseLong(fields[5]), fields[6], fields[7], Long.parseLong(fields[8])));
+            } catch (NumberFormatException e) {
+                throw new IOException("Malformed package index line: " + line, e);
+            }
+        }
+        return new PackageIndex(header[2], packages);
+    }
+
+    /** The sha256 of the repomd.xml that this index was generated from. */
+    public String getRepoMetadataSha256() {
+        return repoMetadataSha256;
+    }
+
+    /** All packages, sorted by name. */
+    public List<PackageMetadata> getPackages() {
+        return Collections.unmodifiableList(packages);
+    }
+
+    /** The packages with the provided name (a binary search; the index is sorted by name). */
+    public List<PackageMetadata> findByName(String name) {
+        int low = 0;
+        int high = packages.size();
+        while (low < high) { // find the first package whose name is >= name
+            final int middle = (low + high) >>> 1;
+            if (packages.get(middle).getName().compareTo(name) < 0) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        int end = low;
+        while (end < packages.size() && packages.get(end).getName().equals(name)) {
+            ++end;
+        }
+        return Collections.unmodifiableList(packages.subList(low, end));
+    }
+
+}
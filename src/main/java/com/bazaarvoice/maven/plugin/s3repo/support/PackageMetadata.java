@@ -0,0 +1,92 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.google.common.base.Objects;
+
+/** The fields of a &lt;package&gt; entry in primary metadata that this plugin cares about. */
+public final class PackageMetadata {
+
+    private final String name;
+    private final String arch;
+    private final String epoch;
+    private final String version;
+    private final String release;
+    /** Repo-relative path of the package file. */
+    private final String location;
+    /** Size of the package file in bytes (the "package" attribute of the size element). */
+    private final long size;
+    /** The YUM checksum type, e.g. "sha256". */
+    private final String checksumType;
+    /** The package's checksum, a.k.a. its pkgid. */
+    private final String checksum;
+    /** Seconds since the epoch (the "file" attribute of the time element). */
+    private final long fileTime;
+
+    public PackageMetadata(String name, String arch, String epoch, String version, String release, String location,
+                           long size, String checksumType, String checksum, long fileTime) {
+        this.name = name;
+        this.arch = arch;
+        this.epoch = epoch;
+        this.version = version;
+        this.release = release;
+        this.location = location;
+        this.size = size;
+        this.checksumType = checksumType;
+        this.checksum = checksum;
+        this.fileTime = fileTime;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getArch() {
+        return arch;
+    }
+
+    public String getEpoch() {
+        return epoch;
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public String getRelease() {
+        return release;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public String getChecksumType() {
+        return checksumType;
+    }
+
+    public String getChecksum() {
+        return checksum;
+    }
+
+    public long getFileTime() {
+        return fileTime;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this).
+                add("name", name).
+                add("arch", arch).
+                add("epoch", epoch).
+                add("version", version).
+                add("release", release).
+                add("location", location).
+                add("size", size).
+                add("checksumType", checksumType).
+                add("checksum", checksum).
+                toString();
+    }
+}
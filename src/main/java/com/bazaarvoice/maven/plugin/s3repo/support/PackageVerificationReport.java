@@ -0,0 +1,55 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.ProgressReporter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Outcome of checking package files against the checksums declared in primary metadata. Thread-safe. */
+public final class PackageVerificationReport {
+
+    private final List<String> mismatches = new ArrayList<String>();
+    private final List<String> missing = new ArrayList<String>();
+    private int verified;
+    private long verifiedBytes;
+    private long elapsedMillis;
+
+    synchronized void addVerified(long bytes) {
+        ++verified;
+        verifiedBytes += bytes;
+    }
+
+    synchronized void addMismatch(String location, String expected, String actual) {
+        mismatches.add(location + " (expected " + expected + " but got " + actual + ")");
+    }
+
+    synchronized void addMissing(String location) {
+        missing.add(location);
+    }
+
+    synchronized void setElapsedMillis(long elapsedMillis) {
+        this.elapsedMillis = elapsedMillis;
+    }
+
+    public synchronized boolean isClean() {
+        return mismatches.isEmpty() && missing.isEmpty();
+    }
+
+    public synchronized List<String> getMismatches() {
+        return Collections.unmodifiableList(new ArrayList<String>(mismatches));
+    }
+
+    public synchronized List<String> getMissing() {
+        return Collections.unmodifiableList(new ArrayList<String>(missing));
+    }
+
+    @Override
+    public synchronized String toString() {
+        final long bytesPerSecond = verifiedBytes * 1000 / Math.max(1, elapsedMillis);
+        return verified + " package(s) verified (" + ProgressReporter.humanReadableBytes(verifiedBytes) + " at "
+            + ProgressReporter.humanReadableBytes(bytesPerSecond) + "/s), " + mismatches.size() + " checksum mismatch(es), "
+            + missing.size() + " missing";
+    }
+
+}
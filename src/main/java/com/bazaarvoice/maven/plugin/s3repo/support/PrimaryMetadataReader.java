@@ -0,0 +1,117 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streams (uncompressed) primary metadata, producing a {@link PackageMetadata} per package without building a DOM.
+ * The stream can come from a local file or directly from S3.
+ */
+public final class PrimaryMetadataReader {
+
+    /** Receives each package as it is read. */
+    public interface PackageHandler {
+        void handle(PackageMetadata packageMetadata) throws MojoExecutionException;
+    }
+
+    private PrimaryMetadataReader() {}
+
+    /** Read all packages into a list. */
+    public static List<PackageMetadata> readPackages(InputStream in) throws MojoExecutionException {
+        final List<PackageMetadata> packages = new ArrayList<PackageMetadata>();
+        readPackages(in, new PackageHandler() {
+            @Override
+            public void handle(PackageMetadata packageMetadata) {
+                packages.add(packageMetadata);
+            }
+        });
+        return packages;
+    }
+
+    /** Read packages one at a time, handing each to the provided handler. The stream is not closed. */
+    public static void readPackages(InputStream in, PackageHandler handler) throws MojoExecutionException {
+        try {
+            XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            try {
+                int depth = 0;
+                Builder builder = null;
+                while (reader.hasNext()) {
+                    final int event = reader.next();
+                    if (event == XMLStreamConstants.START_ELEMENT) {
+                        ++depth;
+                        final String element = reader.getLocalName();
+                        if (depth == 2 && "package".equals(element)) {
+                            builder = new Builder();
+                        } else if (builder != null && depth == 3) {
+                            // only direct children of <package>; e.g., <format> also contains elements named "version"
+                            if ("name".equals(element)) {
+                                builder.name = reader.getElementText().trim();
+                                --depth; // getElementText() consumed the end element
+                            } else if ("arch".equals(element)) {
+                                builder.arch = reader.getElementText().trim();
+                                --depth;
+                            } else if ("version".equals(element)) {
+                                builder.epoch = reader.getAttributeValue(null, "epoch");
+                                builder.version = reader.getAttributeValue(null, "ver");
+                                builder.release = reader.getAttributeValue(null, "rel");
+                            } else if ("checksum".equals(element)) {
+                                builder.checksumType = reader.getAttributeValue(null, "type");
+                                builder.checksum = reader.getElementText().trim();
+                                --depth;
+                            } else if ("location".equals(element)) {
+                                builder.location = reader.getAttributeValue(null, "href");
+                            } else if ("size".equals(element)) {
+                                builder.size = parseLong(reader.getAttributeValue(null, "package"));
+                            } else if ("time".equals(element)) {
+                                builder.fileTime = parseLong(reader.getAttributeValue(null, "file"));
+                            }
+                        }
+                    } else if (event == XMLStreamConstants.END_ELEMENT) {
+                        if (depth == 2 && builder != null && "package".equals(reader.getLocalName())) {
+                            handler.handle(builder.build());
+                            builder = null;
+                        }
+                        --depth;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new MojoExecutionException("Failed to parse primary metadata", e);
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value == null ? -1 : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static final class Builder {
+        private String name;
+        private String arch;
+        private String epoch;
+        private String version;
+        private String release;
+        private String location;
+        private long size = -1;
+        private String checksumType;
+        private String checksum;
+        private long fileTime = -1;
+
+        private PackageMetadata build() {
+            return new PackageMetadata(name, arch, epoch, version, release, location, size, checksumType, checksum, fileTime);
+        }
+    }
+
+}
@@ -0,0 +1,150 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.S3Object;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataStreams;
+import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the metadata of a YUM repository directly from S3: repomd.xml first, then only the metadata files that are
+ * needed, stream-parsed from the object content without being written to disk.
+ */
+public final class RemoteYumRepoFacade {
+
+    private final AmazonS3 s3Session;
+    private final S3RepositoryPath s3RepositoryPath;
+    private final Log log;
+
+    public RemoteYumRepoFacade(AmazonS3 s3Session, S3RepositoryPath s3RepositoryPath, Log log) {
+        this.s3Session = s3Session;
+        this.s3RepositoryPath = s3RepositoryPath;
+        this.log = log;
+    }
+
+    /** Fetch and parse repodata/repomd.xml. */
+    public Document readRepoMetadata() throws MojoExecutionException {
+        return XmlUtils.parseXml(new ByteArrayInputStream(readRepoMetadataBytes()));
+    }
+
+    /**
+     * Fetch the package index that was published with the metadata (see {@link PackageIndex}). Returns null if there
+     * is none, or if it wasn't generated from the current repomd.xml; callers should then fall back to the primary
+     * metadata.
+     */
+    public PackageIndex readPackageIndex() throws MojoExecutionException {
+        final String repoRelativePath = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.S3REPO_PACKAGE_INDEX_FILENAME;
+        final S3Object object = getObjectIfExists(repoRelativePath);
+        if (object == null) {
+            log.info("Repository " + s3RepositoryPath + " has no package index; reading primary metadata instead.");
+            return null;
+        }
+        final PackageIndex index;
+        try {
+            index = PackageIndex.read(object.getObjectContent());
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable package index in " + s3RepositoryPath + ": " + e.getMessage());
+            return null;
+        } finally {
+            ExtraIOUtils.closeQuietly(object.getObjectContent());
+        }
+        if (!index.getRepoMetadataSha256().equals(DigestUtils.sha256Hex(readRepoMetadataBytes()))) {
+            log.info("Package index in " + s3RepositoryPath + " is stale; reading primary metadata instead.");
+            return null;
+        }
+        return index;
+    }
+
+    /** Stream the primary metadata registered by repomd.xml, handing each package to the provided handler. */
+    public void readPackages(PrimaryMetadataReader.PackageHandler handler) throws MojoExecutionException {
+        final String location = LocalYumRepoFacade.resolveMetadataLocation("primary", readRepoMetadata());
+        if (location.isEmpty()) {
+            throw new MojoExecutionException("No primary metadata is registered in " + s3RepositoryPath + "'s repomd.xml");
+        }
+        final S3Object object = getObject(location);
+        InputStream in = object.getObjectContent();
+        try {
+            in = MetadataStreams.open(in, location);
+            PrimaryMetadataReader.readPackages(in, handler);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read " + s3RepositoryPath + "/" + location, e);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /** All packages declared by the primary metadata. */
+    public List<PackageMetadata> parsePackagesFromRepoMetadata() throws MojoExecutionException {
+        final List<PackageMetadata> packages = new ArrayList<PackageMetadata>();
+        readPackages(new PrimaryMetadataReader.PackageHandler() {
+            @Override
+            public void handle(PackageMetadata packageMetadata) {
+                packages.add(packageMetadata);
+            }
+        });
+        return packages;
+    }
+
+    /** The repo-relative locations of all packages declared by the primary metadata. */
+    public List<String> parseFileListFromRepoMetadata() throws MojoExecutionException {
+        final List<String> locations = new ArrayList<String>();
+        readPackages(new PrimaryMetadataReader.PackageHandler() {
+            @Override
+            public void handle(PackageMetadata packageMetadata) {
+                locations.add(packageMetadata.getLocation());
+            }
+        });
+        return locations;
+    }
+
+    private byte[] readRepoMetadataBytes() throws MojoExecutionException {
+        final String repoRelativePath = WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME;
+        final S3Object object = getObject(repoRelativePath);
+        try {
+            return IOUtils.toByteArray(object.getObjectContent());
+        } catch (IOException e) {
+            throw new MojoExecutionException("Failed to read " + s3RepositoryPath + "/" + repoRelativePath, e);
+        } finally {
+            ExtraIOUtils.closeQuietly(object.getObjectContent());
+        }
+    }
+
+    private S3Object getObject(String repoRelativePath) throws MojoExecutionException {
+        final S3Object object = getObjectIfExists(repoRelativePath);
+        if (object == null) {
+            throw new MojoExecutionException("Repository " + s3RepositoryPath + " has no " + repoRelativePath);
+        }
+        return object;
+    }
+
+    /** The object, or null if it doesn't exist. */
+    private S3Object getObjectIfExists(String repoRelativePath) {
+        final String bucketKey = s3RepositoryPath.hasBucketRelativeFolder()
+            ? s3RepositoryPath.getBucketRelativeFolder() + "/" + repoRelativePath
+            : repoRelativePath;
+        log.debug("Streaming s3://" + s3RepositoryPath.getBucketName() + "/" + bucketKey);
+        try {
+            return s3Session.getObject(s3RepositoryPath.getBucketName(), bucketKey);
+        } catch (AmazonS3Exception e) {
+            if (e.getStatusCode() == 404) {
+                return null;
+            }
+            throw e;
+        }
+    }
+
+}
@@ -0,0 +1,85 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The files of a repository (repo-relative path, size and ETag), published in the repodata folder with the metadata
+ * so that a publish can check which declared files exist without listing the whole repository. Like the
+ * {@link PackageIndex}, it is a gzipped, tab-separated file whose header line records the sha256 of the repomd.xml it
+ * was generated with; a manifest whose repomd.xml has since been replaced (e.g., by rebuild-repo, by the publish daemon
+ * or by another tool) is stale, and readers fall back to a listing. Neither repomd.xml nor the manifest itself is listed.
+ */
+public final class RepositoryManifest {
+
+    private static final String HEADER = "#s3repo-manifest";
+    private static final String FORMAT_VERSION = "1";
+    /** Inflate large chunks rather than the JDK's default 512 bytes at a time. */
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final String repoMetadataSha256;
+    /** Keyed by repo-relative path. */
+    private final KeyIndex files;
+
+    private RepositoryManifest(String repoMetadataSha256, KeyIndex files) {
+        this.repoMetadataSha256 = repoMetadataSha256;
+        this.files = files;
+    }
+
+    /** Write a manifest of the provided files (keyed by repo-relative path), which go with the repomd.xml with the provided sha256. */
+    public static void write(String repoMetadataSha256, KeyIndex files, OutputStream out) throws IOException {
+        final GZIPOutputStream gzip = new GZIPOutputStream(out);
+        final Writer writer = new OutputStreamWriter(gzip, Charsets.UTF_8);
+        writer.write(HEADER + "\t" + FORMAT_VERSION + "\t" + repoMetadataSha256 + "\n");
+        for (int i = 0; i < files.size(); ++i) {
+            writer.write(files.getKey(i) + "\t" + files.getSize(i) + "\t" + Strings.nullToEmpty(files.getETag(i)) + "\n");
+        }
+        writer.flush();
+        gzip.finish();
+    }
+
+    /** Read a manifest written by {@link #write}. The stream is not closed. */
+    public static RepositoryManifest read(InputStream in) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(in, READ_BUFFER_SIZE), Charsets.UTF_8));
+        final String[] header = Strings.nullToEmpty(reader.readLine()).split("\t");
+        if (header.length != 3 || !HEADER.equals(header[0]) || !FORMAT_VERSION.equals(header[1])) {
+            throw new IOException("Not a repository manifest (or an unsupported version of one)");
+        }
+        final KeyIndex.Builder files = new KeyIndex.Builder();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            final String[] fields = line.split("\t", -1);
+            if (fields.length != 3) {
+                throw new IOException("Malformed repository manifest line: " + line);
+            }
+            try {
+                files.add(fields[0], Long.parseLong(fields[1]), Strings.emptyToNull(fields[2]), 0);
+            } catch (IllegalArgumentException e) { // including NumberFormatException and out-of-order paths
+                throw new IOException("Malformed repository manifest line: " + line, e);
+            }
+        }
+        return new RepositoryManifest(header[2], files.build());
+    }
+
+    /** The sha256 of the repomd.xml that this manifest was generated with. */
+    public String getRepoMetadataSha256() {
+        return repoMetadataSha256;
+    }
+
+    /** The files, keyed by repo-relative path (last-modified times aren't recorded). */
+    public KeyIndex getFiles() {
+        return files;
+    }
+
+}
@@ -0,0 +1,116 @@
+package com.bazaarvoice.maven.plugin.s3repo.support;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ProgressReporter;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.google.common.collect.Lists;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Deletes the files in a repository's repodata folder that are no longer in use. createrepo gives metadata files
+ * unique names, so every publish leaves the previous ones behind in S3, and every later publish would download them.
+ *
+ * A file is only deleted if neither the repomd.xml just published nor the one it replaced uses it, so that clients
+ * still reading the previous repomd.xml keep working, and if it is older than a grace period, which keeps the files
+ * of older generations a while longer and leaves alone the files that a concurrent publish has uploaded but not yet
+ * referenced. Only files named the way createrepo names metadata files are ever deleted, so that files kept in repodata/
+ * by other means (e.g., repomd.xml.asc and repomd.xml.key of a signed repository) stay. Deletes are batched; a failure
+ * is only logged, since the repository has already been published.
+ */
+public final class StaleMetadataCollector {
+
+    /**
+     * createrepo's unique metadata file names: a hex checksum, a dash, the metadata type and the extensions, e.g.,
+     * "&lt;sha256&gt;-primary.xml.gz", "&lt;sha256&gt;-filelists.sqlite.bz2" or "&lt;sha256&gt;-other.xml.zck".
+     */
+    private static final Pattern METADATA_FILE_NAME = Pattern.compile("[0-9a-f]{32,128}-[A-Za-z0-9_]+\\.(xml|sqlite)(\\.[a-z0-9]+)?");
+
+    private final AmazonS3 s3Session;
+    private final S3RepositoryPath s3RepositoryPath;
+    private final Log log;
+
+    public StaleMetadataCollector(AmazonS3 s3Session, S3RepositoryPath s3RepositoryPath, Log log) {
+        this.s3Session = s3Session;
+        this.s3RepositoryPath = s3RepositoryPath;
+        this.log = log;
+    }
+
+    /** True if the repo-relative path is a metadata file that createrepo generated (and so may be deleted when stale). */
+    public static boolean isMetadataFile(String repoRelativePath) {
+        final String folder = WellKnowns.YUM_REPODATA_FOLDERNAME + "/";
+        return repoRelativePath.startsWith(folder)
+            && METADATA_FILE_NAME.matcher(repoRelativePath.substring(folder.length())).matches();
+    }
+
+    /**
+     * Delete the repodata files not in the provided set of repo-relative paths (i.e., the files in use by the current
+     * and the previous repomd.xml) that were last modified more than the provided grace period ago. With dryRun, the
+     * files are only reported.
+     */
+    public void collect(Set<String> inUse, long gracePeriodMillis, boolean dryRun, String logPrefix, PrintWriter transferManifest) {
+        final String repoDataPrefix = (s3RepositoryPath.hasBucketRelativeFolder() ? s3RepositoryPath.getBucketRelativeFolder() + "/" : "")
+            + WellKnowns.YUM_REPODATA_FOLDERNAME + "/";
+        final List<S3ObjectSummary> stale = new ArrayList<S3ObjectSummary>();
+        final long cutoff = System.currentTimeMillis() - gracePeriodMillis;
+        int withinGracePeriod = 0;
+        try {
+            for (S3ObjectSummary summary : S3Utils.listAllObjects(s3Session,
+                    new ListObjectsRequest().withBucketName(s3RepositoryPath.getBucketName()).withPrefix(repoDataPrefix))) {
+                final String repoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
+                if (summary.getKey().endsWith("/") || inUse.contains(repoRelativePath) || !isMetadataFile(repoRelativePath)) {
+                    continue;
+                }
+                if (summary.getLastModified() != null && summary.getLastModified().getTime() > cutoff) {
+                    ++withinGracePeriod;
+                } else {
+                    stale.add(summary);
+                }
+            }
+        } catch (AmazonClientException e) {
+            log.warn("Failed to list " + s3RepositoryPath + "/" + WellKnowns.YUM_REPODATA_FOLDERNAME + " for stale metadata: " + e.getMessage());
+            return;
+        }
+        if (withinGracePeriod > 0) {
+            log.info("Keeping " + withinGracePeriod + " unused metadata file(s) that are still within the grace period.");
+        }
+        if (stale.isEmpty()) {
+            return;
+        }
+        final ProgressReporter progress = ProgressReporter.start(log, logPrefix + "Deleting stale metadata", stale.size(),
+            S3Utils.totalSize(stale), transferManifest);
+        for (List<S3ObjectSummary> batch : Lists.partition(stale, S3Utils.MAX_KEYS_PER_DELETE)) {
+            final List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<DeleteObjectsRequest.KeyVersion>(batch.size());
+            for (S3ObjectSummary summary : batch) {
+                keys.add(new DeleteObjectsRequest.KeyVersion(summary.getKey()));
+            }
+            if (!dryRun) {
+                try {
+                    s3Session.deleteObjects(new DeleteObjectsRequest(s3RepositoryPath.getBucketName()).withKeys(keys));
+                } catch (AmazonClientException e) {
+                    log.warn("Failed to delete stale metadata from " + s3RepositoryPath + " (it will be retried by the next publish): "
+                        + e.getMessage());
+                    progress.finish();
+                    return;
+                }
+            }
+            for (S3ObjectSummary summary : batch) {
+                progress.completed("s3://" + s3RepositoryPath.getBucketName() + "/" + summary.getKey() + " (stale metadata)",
+                    summary.getSize());
+            }
+        }
+        progress.finish();
+    }
+
+}
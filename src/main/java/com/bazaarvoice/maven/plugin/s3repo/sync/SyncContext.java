@@ -0,0 +1,59 @@
+package com.bazaarvoice.maven.plugin.s3repo.sync;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+
+import java.util.Map;
+
+final class SyncContext {
+
+    private AmazonS3 s3Session;
+    private S3RepositoryPath s3RepositoryPath;
+    private S3RepositoryPath s3TargetRepositoryPath;
+    /** The source objects as listed (and diffed), keyed by repo-relative path. */
+    private Map<String, S3ObjectSummary> sourceObjects;
+    private SyncPlan plan;
+
+    public AmazonS3 getS3Session() {
+        return s3Session;
+    }
+
+    public void setS3Session(AmazonS3 s3Session) {
+        this.s3Session = s3Session;
+    }
+
+    /** The source repository. */
+    public S3RepositoryPath getS3RepositoryPath() {
+        return s3RepositoryPath;
+    }
+
+    public void setS3RepositoryPath(S3RepositoryPath s3RepositoryPath) {
+        this.s3RepositoryPath = s3RepositoryPath;
+    }
+
+    public S3RepositoryPath getS3TargetRepositoryPath() {
+        return s3TargetRepositoryPath;
+    }
+
+    public void setS3TargetRepositoryPath(S3RepositoryPath s3TargetRepositoryPath) {
+        this.s3TargetRepositoryPath = s3TargetRepositoryPath;
+    }
+
+    public Map<String, S3ObjectSummary> getSourceObjects() {
+        return sourceObjects;
+    }
+
+    public void setSourceObjects(Map<String, S3ObjectSummary> sourceObjects) {
+        this.sourceObjects = sourceObjects;
+    }
+
+    public SyncPlan getPlan() {
+        return plan;
+    }
+
+    public void setPlan(SyncPlan plan) {
+        this.plan = plan;
+    }
+
+}
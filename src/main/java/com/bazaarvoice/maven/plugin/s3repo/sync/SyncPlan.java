@@ -0,0 +1,102 @@
+package com.bazaarvoice.maven.plugin.s3repo.sync;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.google.common.base.Objects;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The difference between a source and a target repository, computed from their listings alone (keyed by
+ * repo-relative path). An object needs copying if the target doesn't have it or has it with a different size or ETag.
+ * Package files and metadata files are kept apart, and repomd.xml on its own, so they can be published in that order.
+ */
+public final class SyncPlan {
+
+    private static final String REPODATA_PREFIX = WellKnowns.YUM_REPODATA_FOLDERNAME + "/";
+    private static final String REPO_METADATA_PATH = REPODATA_PREFIX + WellKnowns.YUM_REPOMETADATA_FILENAME;
+
+    private final List<String> packagesToCopy = new ArrayList<String>();
+    private final List<String> metadataToCopy = new ArrayList<String>();
+    private boolean repoMetadataToCopy;
+    private final List<String> targetOnly = new ArrayList<String>();
+    private long bytesToCopy;
+    private int unchanged;
+
+    private SyncPlan() {}
+
+    /** Both maps are keyed by repo-relative path; folder placeholders (keys ending with "/") are ignored. */
+    public static SyncPlan compute(Map<String, S3ObjectSummary> source, Map<String, S3ObjectSummary> target) {
+        final SyncPlan plan = new SyncPlan();
+        for (Map.Entry<String, S3ObjectSummary> entry : source.entrySet()) {
+            final String path = entry.getKey();
+            if (path.endsWith("/")) {
+                continue;
+            }
+            final S3ObjectSummary sourceObject = entry.getValue();
+            final S3ObjectSummary targetObject = target.get(path);
+            if (targetObject != null && targetObject.getSize() == sourceObject.getSize()
+                    && Objects.equal(targetObject.getETag(), sourceObject.getETag())) {
+                ++plan.unchanged;
+                continue;
+            }
+            plan.bytesToCopy += sourceObject.getSize();
+            if (path.equals(REPO_METADATA_PATH)) {
+                plan.repoMetadataToCopy = true;
+            } else if (path.startsWith(REPODATA_PREFIX)) {
+                plan.metadataToCopy.add(path);
+            } else {
+                plan.packagesToCopy.add(path);
+            }
+        }
+        for (String path : target.keySet()) {
+            if (!path.endsWith("/") && !source.containsKey(path)) {
+                plan.targetOnly.add(path);
+            }
+        }
+        Collections.sort(plan.packagesToCopy);
+        Collections.sort(plan.metadataToCopy);
+        Collections.sort(plan.targetOnly);
+        return plan;
+    }
+
+    /** New or changed files outside of repodata/. */
+    public List<String> getPackagesToCopy() {
+        return packagesToCopy;
+    }
+
+    /** New or changed files in repodata/, except repomd.xml. */
+    public List<String> getMetadataToCopy() {
+        return metadataToCopy;
+    }
+
+    /** True if repomd.xml is new or changed. */
+    public boolean isRepoMetadataToCopy() {
+        return repoMetadataToCopy;
+    }
+
+    /** Files that only the target has. */
+    public List<String> getTargetOnly() {
+        return targetOnly;
+    }
+
+    public long getBytesToCopy() {
+        return bytesToCopy;
+    }
+
+    public int getUnchanged() {
+        return unchanged;
+    }
+
+    public int getObjectsToCopy() {
+        return packagesToCopy.size() + metadataToCopy.size() + (repoMetadataToCopy ? 1 : 0);
+    }
+
+    public boolean isInSync() {
+        return getObjectsToCopy() == 0 && targetOnly.isEmpty();
+    }
+
+}
@@ -0,0 +1,278 @@
+package com.bazaarvoice.maven.plugin.s3repo.sync;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.CopyObjectRequest;
+import com.amazonaws.services.s3.model.CopyObjectResult;
+import com.amazonaws.services.s3.model.DeleteObjectsRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.ParallelTasks;
+import com.bazaarvoice.maven.plugin.s3repo.util.ProgressReporter;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
+import com.google.common.collect.Lists;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Mirrors one S3 YUM repository to another by diffing their listings and copying only new or changed objects
+ * (server-side; nothing is downloaded). Packages are copied first, then metadata, then repomd.xml, so clients of the
+ * target never see metadata that declares packages it doesn't have yet.
+ */
+@Mojo(name = "sync-repo", requiresProject = false)
+public final class SyncS3RepoMojo extends AbstractMojo {
+
+    /**
+     * The s3 path to the root of the source repository.
+     * These are all valid values:
+     * "s3://Bucket1/Repo1"
+     * "/Bucket/Repo1"
+     */
+    @Parameter(property = "s3repo.repositoryPath", required = true)
+    private String s3RepositoryPath;
+
+    /** The s3 path to the root of the target (mirror) repository; may be in another bucket or region. */
+    @Parameter(property = "s3repo.targetRepositoryPath", required = true)
+    private String s3TargetRepositoryPath;
+
+    @Parameter(property = "s3repo.accessKey")
+    private String s3AccessKey;
+
+    @Parameter(property = "s3repo.secretKey")
+    private String s3SecretKey;
+
+    /** Also delete objects that only the target has, after the source metadata has been published to the target. */
+    @Parameter(property = "s3repo.deleteTargetOnly", defaultValue = "false")
+    private boolean deleteTargetOnly;
+
+    /** Maximum number of concurrent server-side copies. */
+    @Parameter(property = "s3repo.copyThreads", defaultValue = "16")
+    private int copyThreads;
+
+    /** Compute and log what would be copied and deleted without changing the target. */
+    @Parameter(property = "s3repo.doNotUpload", defaultValue = "false")
+    private boolean doNotUpload;
+
+    /** Optional file to which we write one line per object copied or deleted. */
+    @Parameter(property = "s3repo.transferManifest")
+    private File transferManifest;
+
+    /** Will be non-null only if {@link #transferManifest} is configured. */
+    private PrintWriter transferManifestWriter;
+
+    /** Optional file to which we write a timeline of this execution (its phases, every S3 request and every createrepo
+     * run) in the Chrome trace event format; a summary, including S3 latency percentiles, is logged at the end. */
+    @Parameter(property = "s3repo.timeline")
+    private File timeline;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        transferManifestWriter = ExtraIOUtils.openWriterIfConfigured(transferManifest);
+        Timeline.startIfConfigured(timeline);
+        try {
+            internalExecute();
+        } finally {
+            ExtraIOUtils.closeQuietly(transferManifestWriter);
+            Timeline.stopIfConfigured(timeline, getLog());
+        }
+    }
+
+    private void internalExecute() throws MojoExecutionException {
+        SyncContext context = new SyncContext();
+
+        context.setS3Session(createS3Client());
+        context.setS3RepositoryPath(parseS3RepositoryPath(s3RepositoryPath));
+        context.setS3TargetRepositoryPath(parseS3RepositoryPath(s3TargetRepositoryPath));
+
+        ensureRepositoriesAreDisjoint(context);
+        final Timeline.Phases phases = Timeline.phases(context.getS3TargetRepositoryPath().toString());
+        try {
+            // diff the listings of both repositories
+            phases.begin("computePlan");
+            computePlan(context);
+            if (context.getPlan().isInSync()) {
+                getLog().info("Target repository is already in sync with the source repository.");
+                return;
+            }
+            String logPrefix = "";
+            if (doNotUpload) {
+                getLog().info("Per configuration, we will NOT perform any remote operations on the target repository.");
+                logPrefix = "SKIPPING: ";
+            }
+            final SyncPlan plan = context.getPlan();
+            // packages, then metadata, then repomd.xml
+            phases.begin("copyPackages");
+            copyAll(context, logPrefix + "Copying packages", plan.getPackagesToCopy());
+            phases.begin("copyMetadata");
+            copyAll(context, logPrefix + "Copying metadata", plan.getMetadataToCopy());
+            if (plan.isRepoMetadataToCopy()) {
+                phases.begin("copyRepoMetadata");
+                copyAll(context, logPrefix + "Copying repomd.xml",
+                    Collections.singletonList(WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME));
+            }
+            // the target now declares only what the source declares, so anything else may go
+            phases.begin("maybeDeleteTargetOnly");
+            maybeDeleteTargetOnly(context, logPrefix);
+        } finally {
+            phases.end();
+        }
+    }
+
+    private void ensureRepositoriesAreDisjoint(SyncContext context) throws MojoExecutionException {
+        final S3RepositoryPath source = context.getS3RepositoryPath();
+        final S3RepositoryPath target = context.getS3TargetRepositoryPath();
+        if (!source.getBucketName().equals(target.getBucketName())) {
+            return;
+        }
+        final String sourcePrefix = toBucketKey(source, "");
+        final String targetPrefix = toBucketKey(target, "");
+        if (sourcePrefix.startsWith(targetPrefix) || targetPrefix.startsWith(sourcePrefix)) {
+            throw new MojoExecutionException("Source " + source + " and target " + target + " overlap; can't sync one into the other");
+        }
+    }
+
+    private void computePlan(SyncContext context) throws MojoExecutionException {
+        final long start = System.currentTimeMillis();
+        final Map<String, S3ObjectSummary> source = listRepository(context.getS3Session(), context.getS3RepositoryPath());
+        if (!source.containsKey(WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME)) {
+            throw new MojoExecutionException("Source " + context.getS3RepositoryPath() + " is not a repository (it has no "
+                + WellKnowns.YUM_REPODATA_FOLDERNAME + "/" + WellKnowns.YUM_REPOMETADATA_FILENAME + ")");
+        }
+        final Map<String, S3ObjectSummary> target = listRepository(context.getS3Session(), context.getS3TargetRepositoryPath());
+        final SyncPlan plan = SyncPlan.compute(source, target);
+        getLog().info("Compared " + source.size() + " source and " + target.size() + " target object(s) in "
+            + (System.currentTimeMillis() - start) + "ms: " + plan.getObjectsToCopy() + " to copy ("
+            + ProgressReporter.humanReadableBytes(plan.getBytesToCopy()) + "), " + plan.getUnchanged() + " unchanged, "
+            + plan.getTargetOnly().size() + " only in target" + (deleteTargetOnly ? " (to delete)" : " (kept)") + ".");
+        context.setSourceObjects(source);
+        context.setPlan(plan);
+    }
+
+    /** The repository's objects, keyed by repo-relative path. */
+    private Map<String, S3ObjectSummary> listRepository(AmazonS3 s3Session, final S3RepositoryPath repository)
+            throws MojoExecutionException {
+        final Map<String, S3ObjectSummary> objects = new HashMap<String, S3ObjectSummary>();
+        ListObjectsRequest request = new ListObjectsRequest().withBucketName(repository.getBucketName());
+        if (repository.hasBucketRelativeFolder()) {
+            request.withPrefix(repository.getBucketRelativeFolder() + "/");
+        }
+        S3Utils.forEachObject(s3Session, request, new S3Utils.ObjectHandler() {
+            @Override
+            public void handle(S3ObjectSummary summary) {
+                objects.put(S3Utils.toRepoRelativePath(summary, repository), summary);
+            }
+        });
+        return objects;
+    }
+
+    /**
+     * Server-side copy the provided repo-relative paths from source to target on up to {@link #copyThreads} threads.
+     * Each copy only succeeds if the source object still has the ETag we listed: copying a newer object (e.g., a
+     * repomd.xml published since) could make the target declare files this run never copied, so we fail instead.
+     */
+    private void copyAll(final SyncContext context, String operation, List<String> repoRelativePaths) throws MojoExecutionException {
+        if (repoRelativePaths.isEmpty()) {
+            return;
+        }
+        final S3RepositoryPath source = context.getS3RepositoryPath();
+        final S3RepositoryPath target = context.getS3TargetRepositoryPath();
+        final ProgressReporter progress = ProgressReporter.start(getLog(), operation, repoRelativePaths.size(), 0, transferManifestWriter);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final String repoRelativePath : repoRelativePaths) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() throws MojoExecutionException {
+                    final String sourceKey = toBucketKey(source, repoRelativePath);
+                    final String targetKey = toBucketKey(target, repoRelativePath);
+                    if (!doNotUpload) {
+                        // copies the user metadata too (e.g., the recorded sha256)
+                        final CopyObjectResult result = context.getS3Session().copyObject(
+                            new CopyObjectRequest(source.getBucketName(), sourceKey, target.getBucketName(), targetKey)
+                                .withMatchingETagConstraint(context.getSourceObjects().get(repoRelativePath).getETag()));
+                        if (result == null) {
+                            throw new MojoExecutionException("s3://" + source.getBucketName() + "/" + sourceKey
+                                + " changed since it was listed; sync again");
+                        }
+                    }
+                    progress.completed("s3://" + source.getBucketName() + "/" + sourceKey
+                        + " => s3://" + target.getBucketName() + "/" + targetKey, 0);
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(copyThreads, tasks);
+        progress.finish();
+    }
+
+    private void maybeDeleteTargetOnly(SyncContext context, String logPrefix) {
+        final List<String> targetOnly = context.getPlan().getTargetOnly();
+        if (!deleteTargetOnly || targetOnly.isEmpty()) {
+            return;
+        }
+        final S3RepositoryPath target = context.getS3TargetRepositoryPath();
+        final ProgressReporter progress = ProgressReporter.start(getLog(), logPrefix + "Deleting", targetOnly.size(), 0,
+            transferManifestWriter);
+        for (List<String> batch : Lists.partition(targetOnly, S3Utils.MAX_KEYS_PER_DELETE)) {
+            final List<DeleteObjectsRequest.KeyVersion> keys = new ArrayList<DeleteObjectsRequest.KeyVersion>(batch.size());
+            for (String repoRelativePath : batch) {
+                keys.add(new DeleteObjectsRequest.KeyVersion(toBucketKey(target, repoRelativePath)));
+            }
+            if (!doNotUpload) {
+                context.getS3Session().deleteObjects(new DeleteObjectsRequest(target.getBucketName()).withKeys(keys));
+            }
+            for (DeleteObjectsRequest.KeyVersion key : keys) {
+                progress.completed("s3://" + target.getBucketName() + "/" + key.getKey() + " (only in target)", 0);
+            }
+        }
+        progress.finish();
+    }
+
+    private static String toBucketKey(S3RepositoryPath repository, String repoRelativePath) {
+        return repository.hasBucketRelativeFolder()
+            ? repository.getBucketRelativeFolder() + "/" + repoRelativePath
+            : repoRelativePath;
+    }
+
+    private AmazonS3Client createS3Client() {
+        final AWSCredentialsProvider credentials = s3AccessKey != null || s3SecretKey != null
+            ? new StaticCredentialsProvider(new BasicAWSCredentials(s3AccessKey, s3SecretKey))
+            : new DefaultAWSCredentialsProviderChain();
+        return new AmazonS3Client(credentials, new ClientConfiguration(), Timeline.s3MetricCollector());
+    }
+
+    private S3RepositoryPath parseS3RepositoryPath(String path) throws MojoExecutionException {
+        try {
+            S3RepositoryPath parsed = S3RepositoryPath.parse(path);
+            if (parsed.hasBucketRelativeFolder()) {
+                getLog().info("Using bucket '" + parsed.getBucketName() + "' and folder '" + parsed.getBucketRelativeFolder() + "'...");
+            } else {
+                getLog().info("Using bucket '" + parsed.getBucketName() + "'...");
+            }
+            return parsed;
+        } catch (Exception e) {
+            throw new MojoExecutionException("Failed to parse S3 repository path: " + path, e);
+        }
+    }
+
+}
@@ -0,0 +1,64 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A queue whose consumer takes items in batches: once an item arrives, the consumer waits up to a window for more to
+ * arrive (or for a batch to fill up) and then takes them all at once. Closing the queue refuses new items but lets the
+ * consumer drain the ones already queued.
+ */
+public final class BatchingQueue<T> {
+
+    private final LinkedList<T> items = new LinkedList<T>();
+    private boolean closed;
+
+    /** Queue the item; false if the queue is closed. */
+    public synchronized boolean offer(T item) {
+        if (closed) {
+            return false;
+        }
+        items.add(item);
+        notifyAll();
+        return true;
+    }
+
+    public synchronized void close() {
+        closed = true;
+        notifyAll();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    public synchronized int size() {
+        return items.size();
+    }
+
+    /**
+     * Block until at least one item is queued, then until <code>windowMillis</code> have passed since then, the queue
+     * holds <code>maxItems</code> or the queue is closed; return up to <code>maxItems</code> items in arrival order.
+     * Returns null once the queue is closed and empty.
+     */
+    public synchronized List<T> takeBatch(long windowMillis, int maxItems) throws InterruptedException {
+        while (items.isEmpty()) {
+            if (closed) {
+                return null;
+            }
+            wait();
+        }
+        final long deadline = System.currentTimeMillis() + windowMillis;
+        long remaining;
+        while (!closed && items.size() < maxItems && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+        final List<T> batch = new ArrayList<T>();
+        while (!items.isEmpty() && batch.size() < maxItems) {
+            batch.add(items.removeFirst());
+        }
+        return batch;
+    }
+
+}
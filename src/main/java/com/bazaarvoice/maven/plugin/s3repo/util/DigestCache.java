@@ -0,0 +1,36 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Digests of staged files that were computed on the way in (e.g., while downloading), so that uploads and verification
+ * needn't read the files again. A cached digest describes the file as it was staged: entries for files that are
+ * rewritten in place (e.g., repodata/ by createrepo) must be dropped with {@link #invalidate} before they're used.
+ */
+public final class DigestCache {
+
+    private final Map<File, MultiDigest> digests = new HashMap<File, MultiDigest>();
+
+    public void put(File file, MultiDigest fileDigests) {
+        digests.put(file.getAbsoluteFile(), fileDigests);
+    }
+
+    /** The cached digests of the file, or null. */
+    public MultiDigest get(File file) {
+        return digests.get(file.getAbsoluteFile());
+    }
+
+    /** Drop the entries for the files in the provided directory (or any of its subdirectories). */
+    public void invalidate(File directory) {
+        final String prefix = directory.getAbsolutePath() + File.separator;
+        for (Iterator<File> it = digests.keySet().iterator(); it.hasNext(); ) {
+            if (it.next().getPath().startsWith(prefix)) {
+                it.remove();
+            }
+        }
+    }
+
+}
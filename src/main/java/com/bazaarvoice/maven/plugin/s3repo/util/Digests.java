@@ -0,0 +1,42 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+
+/** Digest helpers, keyed by YUM checksum type (e.g., "sha256"). */
+public final class Digests {
+
+    private Digests() {}
+
+    /** Create a {@link MessageDigest} for the provided YUM checksum type; unknown types default to sha256. */
+    public static MessageDigest newMessageDigest(String checksumType) {
+        if ("sha".equals(checksumType) || "sha1".equals(checksumType)) {
+            return DigestUtils.getSha1Digest();
+        } else if ("sha384".equals(checksumType)) {
+            return DigestUtils.getSha384Digest();
+        } else if ("sha512".equals(checksumType)) {
+            return DigestUtils.getSha512Digest();
+        } else if ("md5".equals(checksumType)) {
+            return DigestUtils.getMd5Digest();
+        } else {
+            // default to sha256
+            return DigestUtils.getSha256Digest();
+        }
+    }
+
+    /** Hex digest of the provided stream (which is not closed). */
+    public static String hexDigest(String checksumType, InputStream in) throws IOException {
+        return Hex.encodeHexString(DigestUtils.updateDigest(newMessageDigest(checksumType), in).digest());
+    }
+
+    /** Hex digest of the provided file, read through a large, per-thread direct buffer. */
+    public static String hexDigest(String checksumType, File file) throws IOException {
+        return MultiDigest.ofFile(file, checksumType).hex(checksumType);
+    }
+
+}
@@ -4,7 +4,11 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.codehaus.plexus.util.FileUtils;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 
 public final class ExtraFileUtils {
 
@@ -19,4 +23,51 @@ public final class ExtraFileUtils {
         }
     }
 
+    /**
+     * Make <code>source</code> available as <code>target</code> without copying its bytes if possible: by hard link,
+     * else (e.g., across file systems) by symbolic link, else by an in-kernel copy. The target must not exist and the
+     * source must not be modified while the target is in use. Returns how the file was staged, for logging.
+     */
+    public static String linkOrCopy(File source, File target) throws IOException {
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+            return "hard link";
+        } catch (IOException e) {
+            // fall through
+        } catch (UnsupportedOperationException e) {
+            // fall through
+        }
+        try {
+            Files.createSymbolicLink(target.toPath(), source.getAbsoluteFile().toPath());
+            return "symbolic link";
+        } catch (IOException e) {
+            // fall through
+        } catch (UnsupportedOperationException e) {
+            // fall through
+        }
+        transferFile(source, target);
+        return "copy";
+    }
+
+    /** Copy with {@link FileChannel#transferTo}, which avoids copying through user-space buffers where supported. */
+    private static void transferFile(File source, File target) throws IOException {
+        FileInputStream in = new FileInputStream(source);
+        try {
+            FileOutputStream out = new FileOutputStream(target);
+            try {
+                final FileChannel inChannel = in.getChannel();
+                final FileChannel outChannel = out.getChannel();
+                final long size = inChannel.size();
+                long position = 0;
+                while (position < size) {
+                    position += inChannel.transferTo(position, size - position, outChannel);
+                }
+            } finally {
+                out.close();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
 }
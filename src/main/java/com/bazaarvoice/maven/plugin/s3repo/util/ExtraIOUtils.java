@@ -1,17 +1,26 @@
 package com.bazaarvoice.maven.plugin.s3repo.util;
 
+import com.google.common.io.Files;
 import org.apache.commons.io.FileUtils;
 import org.apache.maven.plugin.MojoExecutionException;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.file.Path;
 import java.util.Collection;
 
 public final class ExtraIOUtils {
 
     private ExtraIOUtils() {}
 
+    /**
+     * The path of the file relative to the directory. Symbolic links are not resolved, so a file that was staged as a
+     * link to a file elsewhere (see {@link ExtraFileUtils#linkOrCopy}) is still relative to the staging directory.
+     */
     public static String relativize(File directory, File file) throws MojoExecutionException {
         if (!directory.isDirectory()) {
             throw new IllegalArgumentException("Not a directory: " + directory);
@@ -19,28 +28,27 @@ public final class ExtraIOUtils {
         if (!file.isFile()) {
             throw new IllegalArgumentException("Not a file: " + file);
         }
-        try {
-            String canonical = file.getCanonicalPath();
-            String canonicalPrefix = directory.getCanonicalPath();
-            if (!canonical.startsWith(canonicalPrefix)) {
-                throw new MojoExecutionException("Couldn't relativize file path: " + canonicalPrefix + ", " + canonical);
-            }
-            // assert: canonicalPrefix is a prefix to canonical
-            String relativized = canonical.substring(canonicalPrefix.length());
-            if (relativized.endsWith(File.separator)) {
-                // strip ending file separator if present
-                relativized = relativized.substring(0, relativized.length() - 1);
-            }
-            return relativized;
-        } catch (IOException e) {
-            throw new MojoExecutionException("Failed to relativize file: " + directory + "," + file, e);
+        final Path path = file.getAbsoluteFile().toPath().normalize();
+        final Path prefix = directory.getAbsoluteFile().toPath().normalize();
+        if (!path.startsWith(prefix)) {
+            throw new MojoExecutionException("Couldn't relativize file path: " + prefix + ", " + path);
         }
+        return prefix.relativize(path).toString();
     }
 
     public static Collection<File> listAllFiles(File directory) {
         return FileUtils.listFiles(directory, null/*list all files*/, true/*recurse into subdirs*/);
     }
 
+    /** Sum of the lengths of all of the provided files. */
+    public static long totalLength(Collection<File> files) {
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        return total;
+    }
+
     public static void touch(File file) throws MojoExecutionException {
         try {
             FileUtils.touch(file);
@@ -49,6 +57,19 @@ public final class ExtraIOUtils {
         }
     }
 
+    /** Open a UTF-8 writer for the provided file, or return null if the file is null (i.e., not configured). */
+    public static PrintWriter openWriterIfConfigured(File file) throws MojoExecutionException {
+        if (file == null) {
+            return null;
+        }
+        try {
+            Files.createParentDirs(file);
+            return new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        } catch (IOException e) {
+            throw new MojoExecutionException("Couldn't open file for writing: " + file, e);
+        }
+    }
+
     public static void closeQuietly(Closeable closeable) {
         if (closeable != null) {
             try {
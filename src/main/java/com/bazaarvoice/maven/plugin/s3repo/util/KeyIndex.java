@@ -0,0 +1,433 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.google.common.base.Charsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compact, read-only index of an S3 listing, for buckets too large to hold as {@link S3ObjectSummary} objects.
+ *
+ * Keys are kept sorted (in S3's listing order, i.e., by their UTF-8 bytes) and front-coded: each key stores only the
+ * length of the prefix it shares with the previous key plus the rest of its bytes, and every {@link #BLOCK_SIZE}th key
+ * is stored whole so that a lookup decodes at most one block. Sizes, ETags and last-modified times live in parallel
+ * primitive arrays. A multi-million-object listing costs a few tens of bytes per object instead of several hundred.
+ *
+ * Objects are addressed by their position in key order; see {@link #indexOf(String)},
+ * {@link #startOfPrefix(String)}/{@link #endOfPrefix(String)} and {@link #group(int, int, Classifier)}.
+ */
+public final class KeyIndex {
+
+    /** Every this many keys, a key is stored whole. */
+    private static final int BLOCK_SIZE = 16;
+
+    private static final int[] EMPTY_GROUP = new int[0];
+
+    /** UTF-8 byte order, which is the order S3 lists keys in. */
+    private static final Comparator<S3ObjectSummary> KEY_ORDER = new Comparator<S3ObjectSummary>() {
+        @Override
+        public int compare(S3ObjectSummary left, S3ObjectSummary right) {
+            final byte[] leftKey = left.getKey().getBytes(Charsets.UTF_8);
+            return compareBytes(leftKey, leftKey.length, right.getKey().getBytes(Charsets.UTF_8));
+        }
+    };
+
+    private final int size;
+    /** Front-coded keys: for each key, a varint shared-prefix length, a varint suffix length, and the suffix bytes. */
+    private final byte[] keys;
+    /** Offset into {@link #keys} of the first (whole) key of each block. */
+    private final int[] blockOffsets;
+    private final long[] sizes;
+    private final long[] lastModified;
+    /** The 128 bits of a hex MD5 ETag (or of the MD5 portion of a multipart ETag). */
+    private final long[] eTagHigh;
+    private final long[] eTagLow;
+    /** Part count of a multipart ETag; 0 for a plain MD5 ETag; -1 for an ETag kept as-is in {@link #otherETags}. */
+    private final int[] eTagParts;
+    /** The rare ETags that aren't (multipart) MD5 hex, by index. */
+    private final Map<Integer, String> otherETags;
+
+    private KeyIndex(Builder builder) {
+        this.size = builder.size;
+        this.keys = Arrays.copyOf(builder.keys, builder.keysLength);
+        this.blockOffsets = Arrays.copyOf(builder.blockOffsets, (builder.size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        this.sizes = Arrays.copyOf(builder.sizes, builder.size);
+        this.lastModified = Arrays.copyOf(builder.lastModified, builder.size);
+        this.eTagHigh = Arrays.copyOf(builder.eTagHigh, builder.size);
+        this.eTagLow = Arrays.copyOf(builder.eTagLow, builder.size);
+        this.eTagParts = Arrays.copyOf(builder.eTagParts, builder.size);
+        this.otherETags = builder.otherETags;
+    }
+
+    /** Index the provided summaries, which may be in any order (but may not repeat a key). */
+    public static KeyIndex of(Collection<S3ObjectSummary> summaries) {
+        final List<S3ObjectSummary> sorted = new ArrayList<S3ObjectSummary>(summaries);
+        Collections.sort(sorted, KEY_ORDER);
+        Builder builder = new Builder();
+        for (S3ObjectSummary summary : sorted) {
+            builder.add(summary);
+        }
+        return builder.build();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getKey(int index) {
+        checkIndex(index);
+        final Cursor cursor = new Cursor(index / BLOCK_SIZE);
+        for (int i = index - index % BLOCK_SIZE; i <= index; ++i) {
+            cursor.next();
+        }
+        return cursor.toKey();
+    }
+
+    public long getSize(int index) {
+        checkIndex(index);
+        return sizes[index];
+    }
+
+    public long getLastModified(int index) {
+        checkIndex(index);
+        return lastModified[index];
+    }
+
+    public String getETag(int index) {
+        checkIndex(index);
+        if (eTagParts[index] < 0) {
+            return otherETags.get(index);
+        }
+        final String md5 = toHex(eTagHigh[index]) + toHex(eTagLow[index]);
+        return eTagParts[index] == 0 ? md5 : md5 + "-" + eTagParts[index];
+    }
+
+    /** Sum of the sizes of all indexed objects. */
+    public long totalSize() {
+        long total = 0;
+        for (long objectSize : sizes) {
+            total += objectSize;
+        }
+        return total;
+    }
+
+    /** The index of the provided key if it's present; otherwise <code>-(insertion point) - 1</code>. */
+    public int indexOf(String key) {
+        final byte[] target = key.getBytes(Charsets.UTF_8);
+        final int index = lowerBound(target);
+        if (index < size && Arrays.equals(getKey(index).getBytes(Charsets.UTF_8), target)) {
+            return index;
+        }
+        return -index - 1;
+    }
+
+    public boolean contains(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /** The index of the first key that starts with the provided prefix (or where such a key would be). */
+    public int startOfPrefix(String prefix) {
+        return lowerBound(prefix.getBytes(Charsets.UTF_8));
+    }
+
+    /** One past the index of the last key that starts with the provided prefix. */
+    public int endOfPrefix(String prefix) {
+        final byte[] successor = prefixSuccessor(prefix.getBytes(Charsets.UTF_8));
+        return successor == null ? size : lowerBound(successor);
+    }
+
+    /** Decides which group, if any, an object belongs to. */
+    public interface Classifier {
+        /** The group of the object at the provided index (with the provided key), or null if it belongs to none. */
+        String classify(int index, String key);
+    }
+
+    /**
+     * Group the keys in <code>[from, to)</code> by the provided classifier. Groups are in the order of their first key;
+     * each group's indexes are ascending (i.e., in key order).
+     */
+    public Map<String, int[]> group(int from, int to, Classifier classifier) {
+        if (from < 0 || to > size || from > to) {
+            throw new IndexOutOfBoundsException("[" + from + ", " + to + ") of " + size);
+        }
+        final Map<String, int[]> groups = new LinkedHashMap<String, int[]>();
+        final Map<String, Integer> counts = new HashMap<String, Integer>();
+        Cursor cursor = null;
+        for (int i = from; i < to; ++i) {
+            if (cursor == null || i % BLOCK_SIZE == 0) {
+                cursor = new Cursor(i / BLOCK_SIZE);
+                for (int skip = i - i % BLOCK_SIZE; skip < i; ++skip) {
+                    cursor.next();
+                }
+            }
+            cursor.next();
+            final String group = classifier.classify(i, cursor.toKey());
+            if (group == null) {
+                continue;
+            }
+            int[] members = groups.get(group);
+            final int count = members == null ? 0 : counts.get(group);
+            if (members == null) {
+                members = EMPTY_GROUP;
+            }
+            if (count == members.length) {
+                members = Arrays.copyOf(members, Math.max(4, count * 2));
+            }
+            members[count] = i;
+            groups.put(group, members);
+            counts.put(group, count + 1);
+        }
+        for (Map.Entry<String, int[]> entry : groups.entrySet()) {
+            entry.setValue(Arrays.copyOf(entry.getValue(), counts.get(entry.getKey())));
+        }
+        return groups;
+    }
+
+    /** The index of the first key &gt;= target, or {@link #size} if there is none. */
+    private int lowerBound(byte[] target) {
+        // find the last block whose first key is <= target
+        int low = 0;
+        int high = blockOffsets.length - 1;
+        int block = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            final Cursor head = new Cursor(mid);
+            head.next();
+            if (head.compareTo(target) <= 0) {
+                block = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return 0;
+        }
+        final Cursor cursor = new Cursor(block);
+        final int end = Math.min(size, (block + 1) * BLOCK_SIZE);
+        for (int i = block * BLOCK_SIZE; i < end; ++i) {
+            cursor.next();
+            if (cursor.compareTo(target) >= 0) {
+                return i;
+            }
+        }
+        return end;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index + " of " + size);
+        }
+    }
+
+    /** The smallest byte string greater than every string with the provided prefix, or null if there is none. */
+    private static byte[] prefixSuccessor(byte[] prefix) {
+        for (int i = prefix.length - 1; i >= 0; --i) {
+            if (prefix[i] != (byte) 0xFF) {
+                final byte[] successor = Arrays.copyOf(prefix, i + 1);
+                ++successor[i];
+                return successor;
+            }
+        }
+        return null;
+    }
+
+    /** Compare the first <code>length</code> bytes of <code>left</code> with all of <code>right</code>, unsigned. */
+    private static int compareBytes(byte[] left, int length, byte[] right) {
+        final int common = Math.min(length, right.length);
+        for (int i = 0; i < common; ++i) {
+            final int diff = (left[i] & 0xFF) - (right[i] & 0xFF);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return length - right.length;
+    }
+
+    private static String toHex(long value) {
+        final String hex = Long.toHexString(value);
+        return hex.length() == 16 ? hex : "0000000000000000".substring(hex.length()) + hex;
+    }
+
+    /** Decodes keys sequentially from the start of a block. */
+    private final class Cursor {
+
+        private int position;
+        private byte[] key = new byte[128];
+        private int length;
+
+        Cursor(int block) {
+            this.position = blockOffsets[block];
+        }
+
+        void next() {
+            final int shared = readVarInt();
+            final int suffix = readVarInt();
+            if (key.length < shared + suffix) {
+                key = Arrays.copyOf(key, Math.max(shared + suffix, key.length * 2));
+            }
+            System.arraycopy(keys, position, key, shared, suffix);
+            position += suffix;
+            length = shared + suffix;
+        }
+
+        int compareTo(byte[] target) {
+            return compareBytes(key, length, target);
+        }
+
+        String toKey() {
+            return new String(key, 0, length, Charsets.UTF_8);
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                final byte b = keys[position++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+        }
+
+    }
+
+    /** Accumulates objects, which must be added in S3's listing order (as pages of a listing arrive). */
+    public static final class Builder {
+
+        private int size;
+        private byte[] keys = new byte[4096];
+        private int keysLength;
+        private int[] blockOffsets = new int[64];
+        private long[] sizes = new long[1024];
+        private long[] lastModified = new long[1024];
+        private long[] eTagHigh = new long[1024];
+        private long[] eTagLow = new long[1024];
+        private int[] eTagParts = new int[1024];
+        private final Map<Integer, String> otherETags = new HashMap<Integer, String>();
+        private byte[] previous;
+
+        public Builder add(S3ObjectSummary summary) {
+            return add(summary.getKey(), summary.getSize(), summary.getETag(),
+                summary.getLastModified() == null ? 0 : summary.getLastModified().getTime());
+        }
+
+        public Builder add(String key, long objectSize, String eTag, long lastModifiedMillis) {
+            final byte[] bytes = key.getBytes(Charsets.UTF_8);
+            if (previous != null && compareBytes(previous, previous.length, bytes) >= 0) {
+                throw new IllegalArgumentException("keys must be added in ascending order: '" + key + "' after '"
+                    + new String(previous, Charsets.UTF_8) + "'");
+            }
+            if (size == sizes.length) {
+                final int capacity = size * 2;
+                sizes = Arrays.copyOf(sizes, capacity);
+                lastModified = Arrays.copyOf(lastModified, capacity);
+                eTagHigh = Arrays.copyOf(eTagHigh, capacity);
+                eTagLow = Arrays.copyOf(eTagLow, capacity);
+                eTagParts = Arrays.copyOf(eTagParts, capacity);
+            }
+            int shared = 0;
+            if (size % BLOCK_SIZE == 0) {
+                final int block = size / BLOCK_SIZE;
+                if (block == blockOffsets.length) {
+                    blockOffsets = Arrays.copyOf(blockOffsets, block * 2);
+                }
+                blockOffsets[block] = keysLength;
+            } else {
+                final int common = Math.min(previous.length, bytes.length);
+                while (shared < common && previous[shared] == bytes[shared]) {
+                    ++shared;
+                }
+            }
+            writeVarInt(shared);
+            writeVarInt(bytes.length - shared);
+            ensureKeyCapacity(bytes.length - shared);
+            System.arraycopy(bytes, shared, keys, keysLength, bytes.length - shared);
+            keysLength += bytes.length - shared;
+            previous = bytes;
+
+            sizes[size] = objectSize;
+            lastModified[size] = lastModifiedMillis;
+            addETag(eTag);
+            ++size;
+            return this;
+        }
+
+        public KeyIndex build() {
+            return new KeyIndex(this);
+        }
+
+        private void addETag(String eTag) {
+            // e.g., "9b2cf535f27731c974343645a3985328" or, for multipart uploads, "9b2cf535f27731c974343645a3985328-12"
+            if (eTag != null && eTag.length() >= 32 && isHex(eTag, 32)) {
+                int parts = 0;
+                if (eTag.length() > 33 && eTag.charAt(32) == '-' && eTag.length() <= 42 && isDigits(eTag, 33)) {
+                    parts = Integer.parseInt(eTag.substring(33));
+                }
+                if (eTag.length() == 32 || parts > 0) {
+                    eTagHigh[size] = parseHex(eTag, 0);
+                    eTagLow[size] = parseHex(eTag, 16);
+                    eTagParts[size] = parts;
+                    return;
+                }
+            }
+            eTagParts[size] = -1;
+            if (eTag != null) {
+                otherETags.put(size, eTag);
+            }
+        }
+
+        private void writeVarInt(int value) {
+            ensureKeyCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                keys[keysLength++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            keys[keysLength++] = (byte) value;
+        }
+
+        private void ensureKeyCapacity(int needed) {
+            if (keysLength + needed > keys.length) {
+                keys = Arrays.copyOf(keys, Math.max(keysLength + needed, keys.length * 2));
+            }
+        }
+
+        /** Lower-case only, so that {@link #getETag(int)} reproduces the ETag exactly. */
+        private static boolean isHex(String value, int length) {
+            for (int i = 0; i < length; ++i) {
+                final char c = value.charAt(i);
+                if ((c < '0' || c > '9') && (c < 'a' || c > 'f')) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static boolean isDigits(String value, int from) {
+            for (int i = from; i < value.length(); ++i) {
+                if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private static long parseHex(String value, int from) {
+            long result = 0;
+            for (int i = from; i < from + 16; ++i) {
+                result = (result << 4) | Character.digit(value.charAt(i), 16);
+            }
+            return result;
+        }
+
+    }
+
+}
@@ -0,0 +1,210 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorOutputStream;
+import org.apache.commons.io.IOUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+
+/** Compression codecs that we can read and write for YUM metadata files (primary, filelists, other). */
+public enum MetadataCompression {
+
+    GZ("gz", true) {
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new GzipCompressorInputStream(in, true/*decompress concatenated members*/);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException {
+            GzipParameters parameters = new GzipParameters();
+            parameters.setCompressionLevel(level < 0 ? Deflater.DEFAULT_COMPRESSION : level);
+            return new GzipCompressorOutputStream(out, parameters);
+        }
+    },
+
+    /** Note that bzip2 is never block-parallel: not every client decompresses concatenated bzip2 streams. */
+    BZ2("bz2", false) {
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new BZip2CompressorInputStream(in, true/*decompress concatenated streams*/);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException {
+            return new BZip2CompressorOutputStream(out, level < 0 ? BZip2CompressorOutputStream.MAX_BLOCKSIZE : level);
+        }
+    },
+
+    /**
+     * Nor is xz: concatenated xz streams are valid, but libsolv (and so dnf) doesn't decompress them, and would read a
+     * truncated file.
+     */
+    XZ("xz", false) {
+        @Override
+        public InputStream decompress(InputStream in) throws IOException {
+            return new XZCompressorInputStream(in, true/*decompress concatenated streams*/);
+        }
+
+        @Override
+        public OutputStream compress(OutputStream out, int level) throws IOException {
+            return new XZCompressorOutputStream(out, level < 0 ? 6/*xz default preset*/ : level);
+        }
+    };
+
+    /** Uncompressed bytes per independently-compressed block when compressing in parallel. */
+    private static final int PARALLEL_BLOCK_SIZE = 8 * 1024 * 1024;
+
+    /** Returns the codec for the provided file name (by extension), or null if the name doesn't indicate a codec. */
+    public static MetadataCompression forFileName(String fileName) {
+        for (MetadataCompression compression : values()) {
+            if (fileName.endsWith("." + compression.extension)) {
+                return compression;
+            }
+        }
+        return null;
+    }
+
+    /** Parse a configured codec name; e.g., "gz", "gzip", "bz2", "bzip2" or "xz". */
+    public static MetadataCompression parse(String name) {
+        final String normalized = name.trim().toLowerCase();
+        if ("gzip".equals(normalized)) {
+            return GZ;
+        }
+        if ("bzip2".equals(normalized)) {
+            return BZ2;
+        }
+        for (MetadataCompression compression : values()) {
+            if (compression.extension.equals(normalized)) {
+                return compression;
+            }
+        }
+        throw new IllegalArgumentException("Unsupported metadata compression \"" + name + "\"; expected one of gz, bz2 or xz");
+    }
+
+    private final String extension;
+    /** Whether concatenated, independently-compressed blocks form a valid file for this codec. */
+    private final boolean concatenatable;
+
+    MetadataCompression(String extension, boolean concatenatable) {
+        this.extension = extension;
+        this.concatenatable = concatenatable;
+    }
+
+    public String getExtension() {
+        return extension;
+    }
+
+    public abstract InputStream decompress(InputStream in) throws IOException;
+
+    /** Wrap the provided stream; a negative level means the codec's default level. */
+    public abstract OutputStream compress(OutputStream out, int level) throws IOException;
+
+    /**
+     * Compress all of <code>in</code> to <code>out</code>. If more than one thread is requested and the codec allows it,
+     * the input is split into fixed-size blocks that are compressed concurrently and written out, in order, as
+     * concatenated streams. Neither stream is closed.
+     */
+    public void compress(InputStream in, OutputStream out, final int level, int threads) throws IOException {
+        if (threads <= 1 || !concatenatable) {
+            OutputStream compressed = compress(new NonClosingOutputStream(out), level);
+            IOUtils.copy(in, compressed);
+            compressed.close(); // writes trailer
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            // bound memory by limiting the number of blocks in flight
+            Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+            byte[] block;
+            boolean empty = true;
+            while ((block = readBlock(in)) != null) {
+                empty = false;
+                final byte[] uncompressed = block;
+                pending.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        ByteArrayOutputStream buffer = new ByteArrayOutputStream(uncompressed.length / 4);
+                        OutputStream compressed = compress(buffer, level);
+                        compressed.write(uncompressed);
+                        compressed.close();
+                        return buffer.toByteArray();
+                    }
+                }));
+                if (pending.size() >= threads * 2) {
+                    out.write(await(pending.removeFirst()));
+                }
+            }
+            while (!pending.isEmpty()) {
+                out.write(await(pending.removeFirst()));
+            }
+            if (empty) {
+                // still produce a valid (empty) compressed stream
+                compress(new NonClosingOutputStream(out), level).close();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /** Read up to {@link #PARALLEL_BLOCK_SIZE} bytes; returns null at end of stream. */
+    private static byte[] readBlock(InputStream in) throws IOException {
+        byte[] block = new byte[PARALLEL_BLOCK_SIZE];
+        int length = IOUtils.read(in, block);
+        if (length == 0) {
+            return null;
+        }
+        if (length < block.length) {
+            byte[] trimmed = new byte[length];
+            System.arraycopy(block, 0, trimmed, 0, length);
+            return trimmed;
+        }
+        return block;
+    }
+
+    private static byte[] await(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block", e.getCause());
+        }
+    }
+
+    /** Lets a compressor write its trailer on close() without closing the underlying stream. */
+    private static final class NonClosingOutputStream extends FilterOutputStream {
+        private NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens (possibly compressed) metadata for reading, whether it comes from a file, from S3 or from memory. The source
+ * is read in large chunks through a buffer borrowed from a small pool, so that neither the disk nor the network is
+ * asked for a few KB at a time and repeated reads (e.g., by the publish daemon) don't re-allocate buffers. The buffer
+ * goes back to the pool when the stream is closed.
+ */
+public final class MetadataStreams {
+
+    /** Size of each read from the source. */
+    public static final int BUFFER_SIZE = 256 * 1024;
+
+    /** Buffers beyond this many are left to the garbage collector rather than pooled. */
+    private static final int MAX_POOLED_BUFFERS = 16;
+
+    private static final Queue<byte[]> POOL = new ConcurrentLinkedQueue<byte[]>();
+    private static final AtomicInteger POOLED = new AtomicInteger();
+
+    private MetadataStreams() {}
+
+    /** Open the provided file, decompressing it if its extension indicates a {@link MetadataCompression}. */
+    public static InputStream open(File file) throws IOException {
+        return open(new FileInputStream(file), file.getName());
+    }
+
+    /**
+     * Buffer the provided stream (of the named file), decompressing it if the name's extension indicates a
+     * {@link MetadataCompression}. Closing the result closes the provided stream; so does a failure here.
+     */
+    public static InputStream open(InputStream in, String fileName) throws IOException {
+        final InputStream buffered = buffer(in);
+        final MetadataCompression compression = MetadataCompression.forFileName(fileName);
+        if (compression == null) {
+            return buffered;
+        }
+        try {
+            return compression.decompress(buffered);
+        } catch (IOException e) {
+            ExtraIOUtils.closeQuietly(buffered);
+            throw e;
+        }
+    }
+
+    /** Read the provided stream through a pooled {@link #BUFFER_SIZE} buffer, which is returned to the pool on close. */
+    public static InputStream buffer(InputStream in) {
+        return new PooledBufferedInputStream(in, borrow());
+    }
+
+    private static byte[] borrow() {
+        final byte[] buffer = POOL.poll();
+        if (buffer == null) {
+            return new byte[BUFFER_SIZE];
+        }
+        POOLED.decrementAndGet();
+        return buffer;
+    }
+
+    private static void release(byte[] buffer) {
+        if (POOLED.incrementAndGet() <= MAX_POOLED_BUFFERS) {
+            POOL.offer(buffer);
+        } else {
+            POOLED.decrementAndGet();
+        }
+    }
+
+    private static final class PooledBufferedInputStream extends BufferedInputStream {
+
+        /** Null once returned to the pool. */
+        private byte[] borrowed;
+
+        PooledBufferedInputStream(InputStream in, byte[] buffer) {
+            super(in, 1);
+            this.buf = buffer;
+            this.borrowed = buffer;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                if (borrowed != null) {
+                    release(borrowed);
+                    borrowed = null;
+                }
+            }
+        }
+
+    }
+
+}
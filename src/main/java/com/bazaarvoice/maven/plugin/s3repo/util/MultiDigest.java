@@ -0,0 +1,164 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Hex;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Computes several digests (keyed by YUM checksum type, e.g., "md5" and "sha256") in a single pass over the data, be
+ * it a file, a stream that is being consumed for some other purpose (e.g., a download) or NIO buffers. Results are
+ * computed on first access (or by {@link #finish}), after which no more data may be added. Adding data isn't
+ * thread-safe; once finished, the results may be read from several threads.
+ */
+public final class MultiDigest {
+
+    public static final String MD5 = "md5";
+    public static final String SHA256 = "sha256";
+
+    /** Large reads keep the disk streaming; one direct buffer per thread avoids re-allocating per file. */
+    private static final int FILE_BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<ByteBuffer> FILE_BUFFERS = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocateDirect(FILE_BUFFER_SIZE);
+        }
+    };
+
+    private final Map<String, MessageDigest> digests = new LinkedHashMap<String, MessageDigest>();
+    private final Map<String, byte[]> results = new HashMap<String, byte[]>();
+
+    public MultiDigest(String... checksumTypes) {
+        for (String checksumType : checksumTypes) {
+            digests.put(checksumType, Digests.newMessageDigest(checksumType));
+        }
+    }
+
+    /** Digest the whole file through a large, per-thread direct buffer; the result is already finished. */
+    public static MultiDigest ofFile(File file, String... checksumTypes) throws IOException {
+        return new MultiDigest(checksumTypes).update(file).finish();
+    }
+
+    public MultiDigest update(byte[] bytes, int offset, int length) {
+        checkNotFinished();
+        for (MessageDigest digest : digests.values()) {
+            digest.update(bytes, offset, length);
+        }
+        return this;
+    }
+
+    /** Digest the remaining bytes of the buffer, leaving its position at its limit. */
+    public MultiDigest update(ByteBuffer buffer) {
+        checkNotFinished();
+        for (MessageDigest digest : digests.values()) {
+            digest.update(buffer.duplicate());
+        }
+        buffer.position(buffer.limit());
+        return this;
+    }
+
+    public MultiDigest update(File file) throws IOException {
+        final FileInputStream in = new FileInputStream(file);
+        try {
+            final FileChannel channel = in.getChannel();
+            final ByteBuffer buffer = FILE_BUFFERS.get();
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                update(buffer);
+                buffer.clear();
+            }
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+        return this;
+    }
+
+    /** A stream that digests everything read through it, so the digests come at no extra read. */
+    public InputStream wrap(InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b != -1) {
+                    update(new byte[] {(byte) b}, 0, 1);
+                }
+                return b;
+            }
+
+            @Override
+            public int read(byte[] bytes, int offset, int length) throws IOException {
+                final int read = super.read(bytes, offset, length);
+                if (read > 0) {
+                    update(bytes, offset, read);
+                }
+                return read;
+            }
+
+            @Override
+            public long skip(long n) throws IOException {
+                throw new IOException("can't skip a digested stream");
+            }
+
+            @Override
+            public boolean markSupported() {
+                return false;
+            }
+        };
+    }
+
+    public boolean has(String checksumType) {
+        return digests.containsKey(checksumType);
+    }
+
+    public byte[] digest(String checksumType) {
+        if (!digests.containsKey(checksumType)) {
+            throw new IllegalArgumentException("not computing " + checksumType);
+        }
+        synchronized (results) {
+            finish();
+            return results.get(checksumType);
+        }
+    }
+
+    /** Compute the results now (if not done yet), e.g., before sharing this between threads. */
+    public MultiDigest finish() {
+        synchronized (results) {
+            if (results.isEmpty()) {
+                for (Map.Entry<String, MessageDigest> entry : digests.entrySet()) {
+                    results.put(entry.getKey(), entry.getValue().digest());
+                }
+            }
+        }
+        return this;
+    }
+
+    public String hex(String checksumType) {
+        return Hex.encodeHexString(digest(checksumType));
+    }
+
+    /** E.g., for the Content-MD5 header. */
+    public String base64(String checksumType) {
+        return Base64.encodeBase64String(digest(checksumType));
+    }
+
+    private void checkNotFinished() {
+        synchronized (results) {
+            if (!results.isEmpty()) {
+                throw new IllegalStateException("digests were already computed");
+            }
+        }
+    }
+
+}
@@ -0,0 +1,63 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import org.apache.maven.plugin.MojoExecutionException;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/** Runs independent tasks (S3 requests, hashing, etc.) on a bounded number of threads. */
+public final class ParallelTasks {
+
+    private ParallelTasks() {}
+
+    /** Zero or less means one thread per available processor. */
+    public static int determineThreads(int configured) {
+        return configured > 0 ? configured : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Run all tasks with at most <code>threads</code> running concurrently and return their results in task order.
+     * Every task runs even if some fail; failures are then reported together in one exception.
+     */
+    public static <T> List<T> invokeAll(int threads, List<? extends Callable<T>> tasks) throws MojoExecutionException {
+        if (tasks.isEmpty()) {
+            return new ArrayList<T>();
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, tasks.size())));
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+            for (Callable<T> task : tasks) {
+                futures.add(executor.submit(task));
+            }
+            List<T> results = new ArrayList<T>(tasks.size());
+            List<String> failures = new ArrayList<String>();
+            Throwable firstFailure = null;
+            for (Future<T> future : futures) {
+                try {
+                    results.add(future.get());
+                } catch (ExecutionException e) {
+                    results.add(null);
+                    failures.add(String.valueOf(e.getCause().getMessage()));
+                    if (firstFailure == null) {
+                        firstFailure = e.getCause();
+                    }
+                }
+            }
+            if (!failures.isEmpty()) {
+                throw new MojoExecutionException(failures.size() + " of " + tasks.size() + " task(s) failed: " + failures, firstFailure);
+            }
+            return results;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MojoExecutionException("Interrupted", e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports progress of a bulk operation (e.g., downloading a repository) as periodic aggregate log lines instead of
+ * one INFO line per object. Per-object detail is logged at DEBUG and, optionally, written to a manifest.
+ */
+public final class ProgressReporter {
+
+    /** How often we emit an aggregate progress line. */
+    private static final long DEFAULT_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+    public static ProgressReporter start(Log log, String operation, int totalObjects, long totalBytes) {
+        return new ProgressReporter(log, operation, totalObjects, totalBytes, null, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    public static ProgressReporter start(Log log, String operation, int totalObjects, long totalBytes, PrintWriter manifest) {
+        return new ProgressReporter(log, operation, totalObjects, totalBytes, manifest, DEFAULT_INTERVAL_MILLIS);
+    }
+
+    private final Log log;
+    private final String operation;
+    private final int totalObjects;
+    private final long totalBytes;
+    /** Optional; may be null. */
+    private final PrintWriter manifest;
+    private final long intervalMillis;
+    private final long startMillis;
+
+    private int completedObjects;
+    private int skippedObjects;
+    private long completedBytes;
+    private long lastReportMillis;
+
+    private ProgressReporter(Log log, String operation, int totalObjects, long totalBytes, PrintWriter manifest, long intervalMillis) {
+        this.log = log;
+        this.operation = operation;
+        this.totalObjects = totalObjects;
+        this.totalBytes = totalBytes;
+        this.manifest = manifest;
+        this.intervalMillis = intervalMillis;
+        this.startMillis = System.currentTimeMillis();
+        this.lastReportMillis = startMillis;
+    }
+
+    /** Record an object that was transferred (or otherwise operated on). */
+    public synchronized void completed(String detail, long bytes) {
+        ++completedObjects;
+        completedBytes += bytes;
+        log.debug(operation + ": " + detail);
+        writeManifestLine("DONE", detail, bytes);
+        maybeReport();
+    }
+
+    /** Record an object that was skipped; it still counts toward the total. */
+    public synchronized void skipped(String detail, String reason) {
+        ++skippedObjects;
+        log.debug(operation + ": " + detail + " => (skipping; " + reason + ")");
+        writeManifestLine("SKIPPED", detail, 0);
+        maybeReport();
+    }
+
+    /** Emit the final aggregate line. */
+    public synchronized void finish() {
+        log.info(operation + ": finished; " + describe(System.currentTimeMillis(), false));
+        if (manifest != null) {
+            manifest.flush();
+        }
+    }
+
+    private void maybeReport() {
+        final long now = System.currentTimeMillis();
+        if (now - lastReportMillis >= intervalMillis) {
+            lastReportMillis = now;
+            log.info(operation + ": " + describe(now, true));
+        }
+    }
+
+    private String describe(long now, boolean includeEta) {
+        final long elapsedMillis = Math.max(1, now - startMillis);
+        final long bytesPerSecond = completedBytes * 1000 / elapsedMillis;
+        StringBuilder sb = new StringBuilder()
+            .append(completedObjects + skippedObjects).append('/').append(totalObjects).append(" objects");
+        if (skippedObjects > 0) {
+            sb.append(" (").append(skippedObjects).append(" skipped)");
+        }
+        sb.append(", ").append(humanReadableBytes(completedBytes));
+        if (totalBytes > 0) {
+            sb.append('/').append(humanReadableBytes(totalBytes));
+        }
+        sb.append(", ").append(humanReadableBytes(bytesPerSecond)).append("/s");
+        sb.append(", elapsed ").append(formatDuration(elapsedMillis));
+        if (includeEta) {
+            sb.append(", ETA ").append(estimateRemaining(elapsedMillis, bytesPerSecond));
+        }
+        return sb.toString();
+    }
+
+    private String estimateRemaining(long elapsedMillis, long bytesPerSecond) {
+        if (totalBytes > 0 && bytesPerSecond > 0) {
+            // prefer byte-based estimate; object sizes vary wildly in a repository (metadata vs. large rpms)
+            return formatDuration(Math.max(0, totalBytes - completedBytes) * 1000 / bytesPerSecond);
+        }
+        final int done = completedObjects + skippedObjects;
+        if (done > 0) {
+            return formatDuration((long) (totalObjects - done) * elapsedMillis / done);
+        }
+        return "unknown";
+    }
+
+    private void writeManifestLine(String status, String detail, long bytes) {
+        if (manifest != null) {
+            manifest.println(operation + "\t" + status + "\t" + bytes + "\t" + detail);
+        }
+    }
+
+    public static String humanReadableBytes(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        }
+        final int exponent = (int) (Math.log(bytes) / Math.log(1024));
+        return String.format("%.1f %siB", bytes / Math.pow(1024, exponent), "KMGTPE".charAt(exponent - 1));
+    }
+
+    private static String formatDuration(long millis) {
+        final long seconds = millis / 1000;
+        return String.format("%02d:%02d:%02d", seconds / 3600, (seconds % 3600) / 60, seconds % 60);
+    }
+
+}
@@ -3,14 +3,26 @@ package com.bazaarvoice.maven.plugin.s3repo.util;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+import org.apache.maven.plugin.MojoExecutionException;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
 public final class S3Utils {
 
+    /** DeleteObjects accepts at most this many keys per request. */
+    public static final int MAX_KEYS_PER_DELETE = 1000;
+
     private S3Utils() {}
 
     public static String toRepoRelativePath(S3ObjectSummary summary, S3RepositoryPath s3RepositoryPath) {
@@ -27,6 +39,11 @@ public final class S3Utils {
             : bucketKey;
     }
 
+    /** Receives each object summary as its page of the listing arrives. */
+    public interface ObjectHandler {
+        void handle(S3ObjectSummary summary) throws MojoExecutionException;
+    }
+
     /** S3 may paginate object lists; this will walk through all pages and produce full result list. */
     public static List<S3ObjectSummary> listAllObjects(AmazonS3 s3Session, ListObjectsRequest request) {
         List<S3ObjectSummary> allResults = new ArrayList<S3ObjectSummary>();
@@ -39,4 +56,92 @@ public final class S3Utils {
         return allResults;
     }
 
+    /** Walk through all pages of the listing, handing each object to the handler before the next page is requested. */
+    public static void forEachObject(AmazonS3 s3Session, ListObjectsRequest request, ObjectHandler handler)
+            throws MojoExecutionException {
+        ObjectListing result = s3Session.listObjects(request);
+        while (true) {
+            for (S3ObjectSummary summary : result.getObjectSummaries()) {
+                handler.handle(summary);
+            }
+            if (!result.isTruncated()) {
+                return;
+            }
+            result = s3Session.listNextBatchOfObjects(result);
+        }
+    }
+
+    /** Like {@link #listAllObjects}, but keeps the listing in a {@link KeyIndex} rather than as summary objects. */
+    public static KeyIndex indexAllObjects(AmazonS3 s3Session, ListObjectsRequest request) throws MojoExecutionException {
+        final KeyIndex.Builder builder = new KeyIndex.Builder();
+        forEachObject(s3Session, request, new ObjectHandler() {
+            @Override
+            public void handle(S3ObjectSummary summary) {
+                builder.add(summary);
+            }
+        });
+        return builder.build();
+    }
+
+    /** Sum of the sizes of all of the provided objects. */
+    public static long totalSize(List<S3ObjectSummary> summaries) {
+        long total = 0;
+        for (S3ObjectSummary summary : summaries) {
+            total += summary.getSize();
+        }
+        return total;
+    }
+
+    /** See {@link #newPutObjectRequest(String, String, File, MultiDigest)}; the file's digests are computed here. */
+    public static PutObjectRequest newPutObjectRequest(String bucketName, String bucketKey, File file) throws MojoExecutionException {
+        return newPutObjectRequest(bucketName, bucketKey, file, null);
+    }
+
+    /**
+     * A request to upload the provided file with a Content-MD5 header (so S3 rejects a corrupted upload and the SDK
+     * compares the returned ETag instead of digesting the upload stream itself) and its sha256 recorded as user
+     * metadata (see {@link WellKnowns#S3_SHA256_USER_METADATA_KEY}). Pass the md5 and sha256 digests if they're already
+     * known (e.g., computed while the file was downloaded); otherwise (null) both are computed in one pass over the file.
+     */
+    public static PutObjectRequest newPutObjectRequest(String bucketName, String bucketKey, File file, MultiDigest digests)
+            throws MojoExecutionException {
+        if (digests == null || !digests.has(MultiDigest.MD5) || !digests.has(MultiDigest.SHA256)) {
+            try {
+                digests = MultiDigest.ofFile(file, MultiDigest.MD5, MultiDigest.SHA256);
+            } catch (IOException e) {
+                throw new MojoExecutionException("Unable to calculate checksum for " + file.getPath(), e);
+            }
+        }
+        return new PutObjectRequest(bucketName, bucketKey, file).withMetadata(newObjectMetadata(digests));
+    }
+
+    /** See {@link #newPutObjectRequest(String, String, File, MultiDigest)}; for a file in a {@link StagingArea}. */
+    public static PutObjectRequest newPutObjectRequest(String bucketName, String bucketKey, StagingArea staging,
+                                                       String repoRelativePath) throws MojoExecutionException {
+        if (staging.getDirectory() != null) {
+            return newPutObjectRequest(bucketName, bucketKey, new File(staging.getDirectory(), repoRelativePath));
+        }
+        final MultiDigest digests = new MultiDigest(MultiDigest.MD5, MultiDigest.SHA256);
+        try {
+            InputStream in = digests.wrap(staging.openInputStream(repoRelativePath));
+            try {
+                IOUtils.copy(in, NullOutputStream.NULL_OUTPUT_STREAM);
+            } finally {
+                in.close();
+            }
+            final ObjectMetadata metadata = newObjectMetadata(digests);
+            metadata.setContentLength(staging.length(repoRelativePath));
+            return new PutObjectRequest(bucketName, bucketKey, staging.openInputStream(repoRelativePath), metadata);
+        } catch (IOException e) {
+            throw new MojoExecutionException("Unable to read " + repoRelativePath + " from " + staging, e);
+        }
+    }
+
+    private static ObjectMetadata newObjectMetadata(MultiDigest digests) {
+        final ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentMD5(digests.base64(MultiDigest.MD5));
+        metadata.addUserMetadata(WellKnowns.S3_SHA256_USER_METADATA_KEY, digests.hex(MultiDigest.SHA256));
+        return metadata;
+    }
+
 }
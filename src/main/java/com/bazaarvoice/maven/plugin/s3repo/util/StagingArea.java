@@ -0,0 +1,236 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.google.common.io.Files;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Where the local copy of a repository (or of just its metadata) is kept, addressed by repo-relative path (e.g.,
+ * "repodata/repomd.xml"). Normally that's a staging directory, but work that never runs createrepo can keep its few
+ * (metadata) files in memory instead and skip the disk round trips, which are slow on some container filesystems.
+ */
+public abstract class StagingArea {
+
+    public static StagingArea onDisk(File directory) {
+        return new DiskStagingArea(directory);
+    }
+
+    public static StagingArea inMemory() {
+        return new MemoryStagingArea();
+    }
+
+    /** The staging directory, or null if files are kept in memory. */
+    public abstract File getDirectory();
+
+    public abstract boolean isFile(String repoRelativePath);
+
+    public abstract long length(String repoRelativePath);
+
+    public abstract long lastModified(String repoRelativePath);
+
+    public abstract InputStream openInputStream(String repoRelativePath) throws IOException;
+
+    /** Create or replace a file (creating its folders as needed); in memory, the content appears when the stream is closed. */
+    public abstract OutputStream openOutputStream(String repoRelativePath) throws IOException;
+
+    /** Delete a file; it's not an error if there isn't one. */
+    public abstract void delete(String repoRelativePath) throws IOException;
+
+    /** Move a file, replacing any file at the new path. */
+    public abstract void rename(String fromRepoRelativePath, String toRepoRelativePath) throws IOException;
+
+    /** Repo-relative paths of the files in the provided folder (and its subfolders), sorted; "" lists everything. */
+    public abstract List<String> listFiles(String repoRelativeFolder);
+
+    private static final class DiskStagingArea extends StagingArea {
+
+        private final File directory;
+
+        DiskStagingArea(File directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        public File getDirectory() {
+            return directory;
+        }
+
+        @Override
+        public boolean isFile(String repoRelativePath) {
+            return new File(directory, repoRelativePath).isFile();
+        }
+
+        @Override
+        public long length(String repoRelativePath) {
+            return new File(directory, repoRelativePath).length();
+        }
+
+        @Override
+        public long lastModified(String repoRelativePath) {
+            return new File(directory, repoRelativePath).lastModified();
+        }
+
+        @Override
+        public InputStream openInputStream(String repoRelativePath) throws IOException {
+            // callers buffer as they see fit (e.g., with MetadataStreams)
+            return new FileInputStream(new File(directory, repoRelativePath));
+        }
+
+        @Override
+        public OutputStream openOutputStream(String repoRelativePath) throws IOException {
+            final File file = new File(directory, repoRelativePath);
+            Files.createParentDirs(file);
+            return new BufferedOutputStream(new FileOutputStream(file));
+        }
+
+        @Override
+        public void delete(String repoRelativePath) throws IOException {
+            final File file = new File(directory, repoRelativePath);
+            if (file.isFile() && !file.delete()) {
+                throw new IOException("Failed to delete " + file.getPath());
+            }
+        }
+
+        @Override
+        public void rename(String fromRepoRelativePath, String toRepoRelativePath) throws IOException {
+            final File from = new File(directory, fromRepoRelativePath);
+            final File to = new File(directory, toRepoRelativePath);
+            delete(toRepoRelativePath);
+            if (!from.renameTo(to)) {
+                throw new IOException("Failed to rename " + from.getPath() + " to " + to.getPath());
+            }
+        }
+
+        @Override
+        public List<String> listFiles(String repoRelativeFolder) {
+            final File folder = repoRelativeFolder.isEmpty() ? directory : new File(directory, repoRelativeFolder);
+            final List<String> paths = new ArrayList<String>();
+            if (folder.isDirectory()) {
+                final String directoryPath = directory.getAbsolutePath();
+                for (File file : ExtraIOUtils.listAllFiles(folder)) {
+                    paths.add(file.getAbsolutePath().substring(directoryPath.length())
+                        .replaceAll("\\\\", "/").replaceAll("^/", ""));
+                }
+            }
+            Collections.sort(paths);
+            return paths;
+        }
+
+        @Override
+        public String toString() {
+            return directory.getPath();
+        }
+
+    }
+
+    private static final class MemoryStagingArea extends StagingArea {
+
+        private final Map<String, StagedFile> files = new ConcurrentHashMap<String, StagedFile>();
+
+        @Override
+        public File getDirectory() {
+            return null;
+        }
+
+        @Override
+        public boolean isFile(String repoRelativePath) {
+            return files.containsKey(repoRelativePath);
+        }
+
+        @Override
+        public long length(String repoRelativePath) {
+            final StagedFile file = files.get(repoRelativePath);
+            return file == null ? 0 : file.content.length;
+        }
+
+        @Override
+        public long lastModified(String repoRelativePath) {
+            final StagedFile file = files.get(repoRelativePath);
+            return file == null ? 0 : file.lastModified;
+        }
+
+        @Override
+        public InputStream openInputStream(String repoRelativePath) throws IOException {
+            final StagedFile file = files.get(repoRelativePath);
+            if (file == null) {
+                throw new FileNotFoundException(repoRelativePath + " (in memory)");
+            }
+            return new ByteArrayInputStream(file.content);
+        }
+
+        @Override
+        public OutputStream openOutputStream(final String repoRelativePath) {
+            return new ByteArrayOutputStream() {
+                private boolean closed;
+
+                @Override
+                public void close() {
+                    if (!closed) {
+                        closed = true;
+                        files.put(repoRelativePath, new StagedFile(toByteArray(), System.currentTimeMillis()));
+                    }
+                }
+            };
+        }
+
+        @Override
+        public void delete(String repoRelativePath) {
+            files.remove(repoRelativePath);
+        }
+
+        @Override
+        public void rename(String fromRepoRelativePath, String toRepoRelativePath) throws IOException {
+            final StagedFile file = files.remove(fromRepoRelativePath);
+            if (file == null) {
+                throw new FileNotFoundException(fromRepoRelativePath + " (in memory)");
+            }
+            files.put(toRepoRelativePath, file);
+        }
+
+        @Override
+        public List<String> listFiles(String repoRelativeFolder) {
+            final String prefix = repoRelativeFolder.isEmpty() ? "" : repoRelativeFolder + "/";
+            final List<String> paths = new ArrayList<String>();
+            for (String path : files.keySet()) {
+                if (path.startsWith(prefix)) {
+                    paths.add(path);
+                }
+            }
+            Collections.sort(paths);
+            return paths;
+        }
+
+        @Override
+        public String toString() {
+            return "(in memory)";
+        }
+
+    }
+
+    private static final class StagedFile {
+
+        private final byte[] content;
+        private final long lastModified;
+
+        StagedFile(byte[] content, long lastModified) {
+            this.content = content;
+            this.lastModified = lastModified;
+        }
+
+    }
+
+}
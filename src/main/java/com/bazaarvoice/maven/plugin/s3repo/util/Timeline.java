@@ -0,0 +1,365 @@
+package com.bazaarvoice.maven.plugin.s3repo.util;
+
+import com.amazonaws.Request;
+import com.amazonaws.Response;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.TimingInfo;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.logging.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records, while a goal runs with a timeline file configured, every S3 request (operation, path, bytes, latency and
+ * retries), the goal's phases and each createrepo process. The events are written to the file in the Chrome trace
+ * event format (open it in chrome://tracing or ui.perfetto.dev, one row per thread) and summarized in the log,
+ * including per-operation S3 latency percentiles. When nothing is recording, S3 clients are created without a metric
+ * collector (exactly as before) and spans and phases are shared no-op instances.
+ */
+public final class Timeline {
+
+    /** Event categories. */
+    public static final String S3 = "s3";
+    public static final String PHASE = "phase";
+    public static final String PROCESS = "process";
+
+    private static final Span NO_SPAN = new Span(null, null, null);
+    private static final Phases NO_PHASES = new Phases(null, null);
+
+    /** Null unless recording. */
+    private static volatile Recording recording;
+
+    private Timeline() {}
+
+    /** Start recording (if the provided file is non-null); events are written to the file by {@link #stopIfConfigured}. */
+    public static void startIfConfigured(File file) {
+        if (file != null) {
+            recording = new Recording();
+        }
+    }
+
+    /**
+     * Stop recording (if the provided file is non-null), write the events to the file and log a summary. A failure to
+     * write is only logged; it shouldn't fail (or mask the failure of) the goal that was timed.
+     */
+    public static void stopIfConfigured(File file, Log log) {
+        final Recording stopped = recording;
+        if (file == null || stopped == null) {
+            return;
+        }
+        recording = null;
+        final List<Event> events = new ArrayList<Event>(stopped.events);
+        try {
+            write(events, file);
+        } catch (IOException e) {
+            log.warn("Failed to write timeline to " + file.getPath() + ": " + e.getMessage());
+            return;
+        }
+        for (String line : summarize(events)) {
+            log.info(line);
+        }
+        log.info("Wrote " + events.size() + " timeline event(s) to " + file.getPath() + ".");
+    }
+
+    public static boolean isRecording() {
+        return recording != null;
+    }
+
+    /**
+     * The metric collector for new S3 clients: one that records each request if recording, otherwise null (so that
+     * the client falls back to the SDK-wide default, i.e., no per-request metrics at all).
+     */
+    public static RequestMetricCollector s3MetricCollector() {
+        return recording == null ? null : S3Collector.INSTANCE;
+    }
+
+    /** Begin timing something on the current thread; the span is recorded when it ends. */
+    public static Span begin(String category, String name, String detail) {
+        final Recording current = recording;
+        return current == null ? NO_SPAN : new Span(current, category, name).detail(detail);
+    }
+
+    /** Time consecutive phases of the current thread's work, labelled with the provided scope (e.g., a repository). */
+    public static Phases phases(String scope) {
+        final Recording current = recording;
+        return current == null ? NO_PHASES : new Phases(current, scope);
+    }
+
+    /** Something being timed; a no-op when nothing is recording. */
+    public static final class Span {
+
+        private final Recording recording;
+        private final String category;
+        private final String name;
+        private final long startNanos;
+        private String detail;
+
+        private Span(Recording recording, String category, String name) {
+            this.recording = recording;
+            this.category = category;
+            this.name = name;
+            this.startNanos = recording == null ? 0 : System.nanoTime();
+        }
+
+        /** Replace the span's detail (e.g., with an exit code). */
+        public Span detail(String detail) {
+            if (recording != null) {
+                this.detail = detail;
+            }
+            return this;
+        }
+
+        public void end() {
+            if (recording != null) {
+                recording.add(new Event(category, name, detail, startNanos, System.nanoTime(), -1, 0));
+            }
+        }
+
+    }
+
+    /** Consecutive phases of one thread's work: each phase ends when the next one begins, or on {@link #end()}. */
+    public static final class Phases {
+
+        private final Recording recording;
+        private final String scope;
+        private Span current;
+
+        private Phases(Recording recording, String scope) {
+            this.recording = recording;
+            this.scope = scope;
+        }
+
+        public void begin(String phase) {
+            if (recording != null) {
+                end();
+                current = new Span(recording, PHASE, phase).detail(scope);
+            }
+        }
+
+        public void end() {
+            if (current != null) {
+                current.end();
+                current = null;
+            }
+        }
+
+    }
+
+    private static final class Recording {
+
+        /** Lets event timestamps (System.nanoTime) be written as wall-clock times. */
+        private final long epochMicrosAtZeroNanos = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis())
+            - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+        private final Queue<Event> events = new ConcurrentLinkedQueue<Event>();
+
+        void add(Event event) {
+            event.epochMicros = epochMicrosAtZeroNanos + TimeUnit.NANOSECONDS.toMicros(event.startNanos);
+            events.add(event);
+        }
+
+    }
+
+    private static final class Event {
+
+        final String category;
+        final String name;
+        final String detail;
+        final long startNanos;
+        final long endNanos;
+        /** -1 if unknown or not applicable. */
+        final long bytes;
+        final int retries;
+        final long threadId = Thread.currentThread().getId();
+        final String threadName = Thread.currentThread().getName();
+        long epochMicros;
+
+        Event(String category, String name, String detail, long startNanos, long endNanos, long bytes, int retries) {
+            this.category = category;
+            this.name = name;
+            this.detail = detail;
+            this.startNanos = startNanos;
+            this.endNanos = endNanos;
+            this.bytes = bytes;
+            this.retries = retries;
+        }
+
+        long durationNanos() {
+            return Math.max(0, endNanos - startNanos);
+        }
+
+    }
+
+    /**
+     * Records S3 requests as the SDK completes them, on the requesting thread. For a GET, the latency is the time to
+     * the response headers; reading the content is up to the caller (and shows up in the caller's phase).
+     */
+    private static final class S3Collector extends RequestMetricCollector {
+
+        static final S3Collector INSTANCE = new S3Collector();
+
+        @Override
+        public void collectMetrics(Request<?> request, Response<?> response) {
+            final Recording current = recording;
+            final AWSRequestMetrics metrics = request.getAWSRequestMetrics();
+            if (current == null || metrics == null || !metrics.isEnabled()) {
+                return;
+            }
+            final TimingInfo timing = metrics.getTimingInfo();
+            final Long endNanos = timing.getEndTimeNanoIfKnown();
+            final Number attempts = timing.getCounter(AWSRequestMetrics.Field.RequestCount.name());
+            String detail = request.getResourcePath();
+            long bytes = contentLength(request.getHeaders());
+            if (response == null) {
+                detail += " (failed)";
+            } else if (bytes < 0) {
+                bytes = contentLength(response.getHttpResponse().getHeaders());
+            }
+            current.add(new Event(S3, operationOf(request), detail, timing.getStartTimeNano(),
+                endNanos == null ? System.nanoTime() : endNanos, bytes, attempts == null ? 0 : Math.max(0, attempts.intValue() - 1)));
+        }
+
+        private static String operationOf(Request<?> request) {
+            final String name = request.getOriginalRequest().getClass().getSimpleName();
+            return name.endsWith("Request") ? name.substring(0, name.length() - "Request".length()) : name;
+        }
+
+        private static long contentLength(Map<String, String> headers) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if ("Content-Length".equalsIgnoreCase(header.getKey())) {
+                    try {
+                        return Long.parseLong(header.getValue().trim());
+                    } catch (NumberFormatException e) {
+                        return -1;
+                    }
+                }
+            }
+            return -1;
+        }
+
+    }
+
+    /** Write the events as a Chrome trace: complete ("X") events plus the names of the threads they ran on. */
+    private static void write(List<Event> events, File file) throws IOException {
+        Files.createParentDirs(file);
+        final PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"));
+        try {
+            out.println("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+            final Map<Long, String> threads = new TreeMap<Long, String>();
+            String separator = "";
+            for (Event event : events) {
+                threads.put(event.threadId, event.threadName);
+                out.print(separator);
+                out.print("{\"ph\":\"X\",\"pid\":1,\"tid\":" + event.threadId + ",\"cat\":" + quote(event.category)
+                    + ",\"name\":" + quote(event.name) + ",\"ts\":" + event.epochMicros
+                    + ",\"dur\":" + TimeUnit.NANOSECONDS.toMicros(event.durationNanos()) + ",\"args\":{");
+                String argSeparator = "";
+                if (event.detail != null) {
+                    out.print("\"detail\":" + quote(event.detail));
+                    argSeparator = ",";
+                }
+                if (event.bytes >= 0) {
+                    out.print(argSeparator + "\"bytes\":" + event.bytes);
+                    argSeparator = ",";
+                }
+                if (S3.equals(event.category)) {
+                    out.print(argSeparator + "\"retries\":" + event.retries);
+                }
+                out.print("}}");
+                separator = ",\n";
+            }
+            for (Map.Entry<Long, String> thread : threads.entrySet()) {
+                out.print(separator);
+                out.print("{\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey() + ",\"name\":\"thread_name\",\"args\":{\"name\":"
+                    + quote(thread.getValue()) + "}}");
+                separator = ",\n";
+            }
+            out.println("\n]}");
+        } finally {
+            out.close();
+        }
+        if (out.checkError()) {
+            throw new IOException("write failed");
+        }
+    }
+
+    /** Log lines summarizing the events: S3 latency percentiles per operation, then total time per phase and process. */
+    private static List<String> summarize(List<Event> events) {
+        final Map<String, List<Event>> s3 = new TreeMap<String, List<Event>>();
+        final Map<String, long[]> others = new LinkedHashMap<String, long[]>();
+        for (Event event : events) {
+            if (S3.equals(event.category)) {
+                if (!s3.containsKey(event.name)) {
+                    s3.put(event.name, new ArrayList<Event>());
+                }
+                s3.get(event.name).add(event);
+            } else {
+                final String label = event.category + " " + (event.detail == null || PROCESS.equals(event.category)
+                    ? event.name : event.detail + ": " + event.name);
+                if (!others.containsKey(label)) {
+                    others.put(label, new long[2]);
+                }
+                others.get(label)[0] += 1;
+                others.get(label)[1] += event.durationNanos();
+            }
+        }
+        final List<String> lines = new ArrayList<String>();
+        for (Map.Entry<String, List<Event>> operation : s3.entrySet()) {
+            final List<Long> latencies = new ArrayList<Long>();
+            long bytes = 0;
+            int retries = 0;
+            for (Event event : operation.getValue()) {
+                latencies.add(event.durationNanos());
+                bytes += Math.max(0, event.bytes);
+                retries += event.retries;
+            }
+            Collections.sort(latencies);
+            lines.add(String.format("S3 %s: %d request(s), %s, %d retries; latency p50 %s, p90 %s, p99 %s, max %s",
+                operation.getKey(), latencies.size(), ProgressReporter.humanReadableBytes(bytes), retries,
+                millis(percentile(latencies, 50)), millis(percentile(latencies, 90)), millis(percentile(latencies, 99)),
+                millis(latencies.get(latencies.size() - 1))));
+        }
+        for (Map.Entry<String, long[]> other : others.entrySet()) {
+            lines.add(other.getKey() + ": " + (other.getValue()[0] == 1 ? "" : other.getValue()[0] + " times, ")
+                + millis(other.getValue()[1]));
+        }
+        return lines;
+    }
+
+    private static long percentile(List<Long> sorted, int percent) {
+        return sorted.get(Math.max(0, (int) Math.ceil(sorted.size() * percent / 100.0) - 1));
+    }
+
+    private static String millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos) + " ms";
+    }
+
+    private static String quote(String value) {
+        final StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (int i = 0; i < value.length(); ++i) {
+            final char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+}
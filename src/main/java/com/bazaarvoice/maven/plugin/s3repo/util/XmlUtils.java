@@ -5,19 +5,32 @@ import org.w3c.dom.Document;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.OutputKeys;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
+import java.io.OutputStream;
 
 public final class XmlUtils {
 
     private XmlUtils() {}
 
-    /** Parse the provided {@link File} as XML, decompressing it first if it has a .gz file extension. */
+    /** Parse the provided {@link File} as XML, decompressing it first if it has a .gz, .bz2 or .xz file extension. */
     public static Document parseXmlFile(File file) throws MojoExecutionException {
         InputStream in = toInputStream(file);
+        try {
+            return parseXml(in);
+        } finally {
+            ExtraIOUtils.closeQuietly(in);
+        }
+    }
+
+    /** Parse the provided (uncompressed) stream as XML; the stream is not closed. */
+    public static Document parseXml(InputStream in) throws MojoExecutionException {
         try {
             DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
             factory.setNamespaceAware(true);
@@ -25,22 +38,44 @@ public final class XmlUtils {
             return builder.parse(in);
         } catch (Exception e) {
             throw new MojoExecutionException("failed to parse", e);
-        } finally {
-            ExtraIOUtils.closeQuietly(in);
         }
     }
 
-    private static InputStream toInputStream(File file) throws MojoExecutionException {
+    /** Write the provided {@link Document} to the provided (uncompressed) {@link File}. */
+    public static void writeXmlFile(Document document, File file) throws MojoExecutionException {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.transform(new DOMSource(document), new StreamResult(file));
+        } catch (Exception e) {
+            throw new MojoExecutionException("failed to write " + file.getPath(), e);
+        }
+    }
+
+    /** Write the provided {@link Document} to the provided stream (uncompressed), which is not closed. */
+    public static void writeXml(Document document, OutputStream out) throws MojoExecutionException {
+        try {
+            Transformer transformer = TransformerFactory.newInstance().newTransformer();
+            transformer.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+            transformer.transform(new DOMSource(document), new StreamResult(out));
+        } catch (Exception e) {
+            throw new MojoExecutionException("failed to write xml", e);
+        }
+    }
+
+    /** Open the provided file for reading, decompressing it if its extension indicates a {@link MetadataCompression}. */
+    public static InputStream toInputStream(File file) throws MojoExecutionException {
         try {
-            InputStream in = new FileInputStream(file);
-            if (file.getName().endsWith(".gz")) {
-                in = new GZIPInputStream(in);
-            }
-            return in;
+            return MetadataStreams.open(file);
         } catch (IOException e) {
             throw new MojoExecutionException("Failed to read file " + file.getPath(), e);
         }
     }
 
+    /** See {@link MetadataStreams#open(InputStream, String)}. */
+    public static InputStream toInputStream(InputStream in, String fileName) throws IOException {
+        return MetadataStreams.open(in, fileName);
+    }
+
 
 }
@@ -0,0 +1,100 @@
+package com.bazaarvoice.maven.plugin.s3repo.verify;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageMetadata;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the packages declared by a repository's primary metadata with the objects that exist in its S3 folder,
+ * and (optionally) with the sha256 that uploads record as object user metadata. Thread-safe.
+ */
+public final class RepositoryAudit {
+
+    private final List<String> missing = new ArrayList<String>();
+    private final List<String> sizeMismatches = new ArrayList<String>();
+    private final List<String> checksumMismatches = new ArrayList<String>();
+    private final List<String> orphans = new ArrayList<String>();
+    private int declaredPackages;
+    private int checksumsVerified;
+    private int checksumsUnavailable;
+
+    /**
+     * Compare the declared packages with the listed objects, keyed by repo-relative path (metadata files excluded) and
+     * mapped to their sizes. Returns the packages that exist with the declared size, i.e., whose checksum is worth checking.
+     */
+    public synchronized List<PackageMetadata> compare(List<PackageMetadata> packages, Map<String, Long> objectSizes) {
+        final List<PackageMetadata> present = new ArrayList<PackageMetadata>();
+        final Set<String> declared = new HashSet<String>();
+        for (PackageMetadata packageMetadata : packages) {
+            final String location = packageMetadata.getLocation();
+            declared.add(location);
+            final Long size = objectSizes.get(location);
+            if (size == null) {
+                missing.add(location);
+            } else if (size != packageMetadata.getSize()) {
+                sizeMismatches.add(location + " (expected " + packageMetadata.getSize() + " bytes but found " + size + ")");
+            } else {
+                present.add(packageMetadata);
+            }
+        }
+        for (String repoRelativePath : objectSizes.keySet()) {
+            if (!declared.contains(repoRelativePath)) {
+                orphans.add(repoRelativePath);
+            }
+        }
+        declaredPackages += packages.size();
+        Collections.sort(orphans);
+        return present;
+    }
+
+    /**
+     * Record the sha256 found in an object's user metadata (null if the object was uploaded without one). Packages
+     * whose metadata declares another checksum type can't be checked this way.
+     */
+    public synchronized void checkRecordedChecksum(PackageMetadata packageMetadata, String recordedSha256) {
+        if (recordedSha256 == null || !"sha256".equals(packageMetadata.getChecksumType())) {
+            ++checksumsUnavailable;
+        } else if (recordedSha256.equalsIgnoreCase(packageMetadata.getChecksum())) {
+            ++checksumsVerified;
+        } else {
+            checksumMismatches.add(packageMetadata.getLocation() + " (expected " + packageMetadata.getChecksum()
+                + " but object records " + recordedSha256 + ")");
+        }
+    }
+
+    /** True if no package is missing or mismatched; orphans don't count (see {@link #getOrphans()}). */
+    public synchronized boolean isConsistent() {
+        return missing.isEmpty() && sizeMismatches.isEmpty() && checksumMismatches.isEmpty();
+    }
+
+    public synchronized List<String> getMissing() {
+        return new ArrayList<String>(missing);
+    }
+
+    public synchronized List<String> getSizeMismatches() {
+        return new ArrayList<String>(sizeMismatches);
+    }
+
+    public synchronized List<String> getChecksumMismatches() {
+        return new ArrayList<String>(checksumMismatches);
+    }
+
+    /** Objects that exist in the repository but are not declared by its metadata. */
+    public synchronized List<String> getOrphans() {
+        return new ArrayList<String>(orphans);
+    }
+
+    @Override
+    public synchronized String toString() {
+        return declaredPackages + " declared package(s): " + missing.size() + " missing, " + sizeMismatches.size()
+            + " size mismatch(es), " + checksumMismatches.size() + " checksum mismatch(es), " + checksumsVerified
+            + " checksum(s) verified, " + checksumsUnavailable + " without a recorded checksum; " + orphans.size()
+            + " orphaned object(s)";
+    }
+
+}
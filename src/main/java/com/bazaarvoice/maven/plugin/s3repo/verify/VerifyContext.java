@@ -0,0 +1,42 @@
+package com.bazaarvoice.maven.plugin.s3repo.verify;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.support.RemoteYumRepoFacade;
+
+final class VerifyContext {
+
+    private AmazonS3 s3Session;
+    private S3RepositoryPath s3RepositoryPath;
+    private RemoteYumRepoFacade remoteYumRepo;
+    private final RepositoryAudit audit = new RepositoryAudit();
+
+    public AmazonS3 getS3Session() {
+        return s3Session;
+    }
+
+    public void setS3Session(AmazonS3 s3Session) {
+        this.s3Session = s3Session;
+    }
+
+    public S3RepositoryPath getS3RepositoryPath() {
+        return s3RepositoryPath;
+    }
+
+    public void setS3RepositoryPath(S3RepositoryPath s3RepositoryPath) {
+        this.s3RepositoryPath = s3RepositoryPath;
+    }
+
+    public RemoteYumRepoFacade getRemoteYumRepo() {
+        return remoteYumRepo;
+    }
+
+    public void setRemoteYumRepo(RemoteYumRepoFacade remoteYumRepo) {
+        this.remoteYumRepo = remoteYumRepo;
+    }
+
+    public RepositoryAudit getAudit() {
+        return audit;
+    }
+
+}
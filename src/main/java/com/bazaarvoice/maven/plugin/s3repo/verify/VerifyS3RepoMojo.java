@@ -0,0 +1,192 @@
+package com.bazaarvoice.maven.plugin.s3repo.verify;
+
+import com.amazonaws.ClientConfiguration;
+import com.amazonaws.auth.AWSCredentialsProvider;
+import com.amazonaws.auth.BasicAWSCredentials;
+import com.amazonaws.auth.DefaultAWSCredentialsProviderChain;
+import com.amazonaws.internal.StaticCredentialsProvider;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.S3RepositoryPath;
+import com.bazaarvoice.maven.plugin.s3repo.WellKnowns;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageMetadata;
+import com.bazaarvoice.maven.plugin.s3repo.support.RemoteYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.util.ParallelTasks;
+import com.bazaarvoice.maven.plugin.s3repo.util.ProgressReporter;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
+import com.google.common.collect.Maps;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Audits an S3 YUM repository in place: the packages declared by its metadata are compared with the S3 listing (and,
+ * optionally, with the sha256 recorded on each object) without downloading any package.
+ */
+@Mojo(name = "verify-repo", requiresProject = false)
+public final class VerifyS3RepoMojo extends AbstractMojo {
+
+    /**
+     * The s3 path to the root of the repository.
+     * These are all valid values:
+     * "s3://Bucket1/Repo1"
+     * "/Bucket/Repo1"
+     */
+    @Parameter(property = "s3repo.repositoryPath", required = true)
+    private String s3RepositoryPath;
+
+    @Parameter(property = "s3repo.accessKey")
+    private String s3AccessKey;
+
+    @Parameter(property = "s3repo.secretKey")
+    private String s3SecretKey;
+
+    /** Issue a HEAD request per package to compare the sha256 recorded at upload time with the metadata checksum. */
+    @Parameter(property = "s3repo.checkChecksums", defaultValue = "true")
+    private boolean checkChecksums;
+
+    /** Maximum number of concurrent S3 requests. */
+    @Parameter(property = "s3repo.requestThreads", defaultValue = "16")
+    private int requestThreads;
+
+    /** Also fail if the repository contains objects that its metadata does not declare. */
+    @Parameter(property = "s3repo.failOnOrphans", defaultValue = "false")
+    private boolean failOnOrphans;
+
+    /** Optional file to which we write a timeline of this execution (every S3 request) in the Chrome trace event
+     * format; a summary, including S3 latency percentiles, is logged at the end. */
+    @Parameter(property = "s3repo.timeline")
+    private File timeline;
+
+    @Override
+    public void execute() throws MojoExecutionException, MojoFailureException {
+        Timeline.startIfConfigured(timeline);
+        try {
+            internalExecute();
+        } finally {
+            Timeline.stopIfConfigured(timeline, getLog());
+        }
+    }
+
+    private void internalExecute() throws MojoExecutionException, MojoFailureException {
+        VerifyContext context = new VerifyContext();
+
+        context.setS3Session(createS3Client());
+        context.setS3RepositoryPath(parseS3RepositoryPath());
+        context.setRemoteYumRepo(new RemoteYumRepoFacade(context.getS3Session(), context.getS3RepositoryPath(), getLog()));
+
+        List<PackageMetadata> present = compareWithListing(context);
+        maybeCheckRecordedChecksums(context, present);
+        report(context.getAudit());
+    }
+
+    /** Compare the declared packages with the repository listing; returns the packages that look intact. */
+    private List<PackageMetadata> compareWithListing(VerifyContext context) throws MojoExecutionException {
+        S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        ListObjectsRequest listObjectsRequest = new ListObjectsRequest()
+            .withBucketName(s3RepositoryPath.getBucketName());
+        if (s3RepositoryPath.hasBucketRelativeFolder()) {
+            listObjectsRequest.withPrefix(s3RepositoryPath.getBucketRelativeFolder() + "/");
+        }
+        Map<String, Long> objectSizes = Maps.newHashMap();
+        for (S3ObjectSummary summary : S3Utils.listAllObjects(context.getS3Session(), listObjectsRequest)) {
+            final String repoRelativePath = S3Utils.toRepoRelativePath(summary, s3RepositoryPath);
+            if (summary.getKey().endsWith("/") || repoRelativePath.startsWith(WellKnowns.YUM_REPODATA_FOLDERNAME + "/")) {
+                continue;
+            }
+            objectSizes.put(repoRelativePath, summary.getSize());
+        }
+        // streams repomd.xml and then the primary metadata straight from S3
+        List<PackageMetadata> packages = context.getRemoteYumRepo().parsePackagesFromRepoMetadata();
+        getLog().info("Comparing " + packages.size() + " declared package(s) with " + objectSizes.size() + " listed object(s)...");
+        return context.getAudit().compare(packages, objectSizes);
+    }
+
+    private void maybeCheckRecordedChecksums(final VerifyContext context, List<PackageMetadata> packages) throws MojoExecutionException {
+        if (!checkChecksums) {
+            getLog().info("Will not check recorded checksums.");
+            return;
+        }
+        final S3RepositoryPath s3RepositoryPath = context.getS3RepositoryPath();
+        final ProgressReporter progress = ProgressReporter.start(getLog(), "Checking recorded checksums", packages.size(), 0);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final PackageMetadata packageMetadata : packages) {
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    final String bucketKey = toBucketKey(s3RepositoryPath, packageMetadata.getLocation());
+                    ObjectMetadata objectMetadata =
+                        context.getS3Session().getObjectMetadata(s3RepositoryPath.getBucketName(), bucketKey);
+                    context.getAudit().checkRecordedChecksum(packageMetadata,
+                        objectMetadata.getUserMetaDataOf(WellKnowns.S3_SHA256_USER_METADATA_KEY));
+                    progress.completed(bucketKey, 0);
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(requestThreads, tasks);
+        progress.finish();
+    }
+
+    private void report(RepositoryAudit audit) throws MojoExecutionException {
+        for (String missing : audit.getMissing()) {
+            getLog().error("Missing: " + missing);
+        }
+        for (String mismatch : audit.getSizeMismatches()) {
+            getLog().error("Size mismatch: " + mismatch);
+        }
+        for (String mismatch : audit.getChecksumMismatches()) {
+            getLog().error("Checksum mismatch: " + mismatch);
+        }
+        for (String orphan : audit.getOrphans()) {
+            if (failOnOrphans) {
+                getLog().error("Orphan: " + orphan);
+            } else {
+                getLog().warn("Orphan: " + orphan);
+            }
+        }
+        getLog().info("[RESULT] " + audit);
+        if (!audit.isConsistent() || (failOnOrphans && !audit.getOrphans().isEmpty())) {
+            throw new MojoExecutionException("Repository verification failed: " + audit);
+        }
+    }
+
+    private static String toBucketKey(S3RepositoryPath s3RepositoryPath, String repoRelativePath) {
+        return s3RepositoryPath.hasBucketRelativeFolder()
+            ? s3RepositoryPath.getBucketRelativeFolder() + "/" + repoRelativePath
+            : repoRelativePath;
+    }
+
+    private AmazonS3Client createS3Client() {
+        final AWSCredentialsProvider credentials = s3AccessKey != null || s3SecretKey != null
+            ? new StaticCredentialsProvider(new BasicAWSCredentials(s3AccessKey, s3SecretKey))
+            : new DefaultAWSCredentialsProviderChain();
+        return new AmazonS3Client(credentials, new ClientConfiguration(), Timeline.s3MetricCollector());
+    }
+
+    private S3RepositoryPath parseS3RepositoryPath() throws MojoExecutionException {
+        try {
+            S3RepositoryPath parsed = S3RepositoryPath.parse(s3RepositoryPath);
+            if (parsed.hasBucketRelativeFolder()) {
+                getLog().info("Using bucket '" + parsed.getBucketName() + "' and folder '" + parsed.getBucketRelativeFolder() + "' as repository...");
+            } else {
+                getLog().info("Using bucket '" + parsed.getBucketName() + "' as repository...");
+            }
+            return parsed;
+        } catch (Exception e) {
+            throw new MojoExecutionException("Failed to parse S3 repository path: " + s3RepositoryPath, e);
+        }
+    }
+
+}
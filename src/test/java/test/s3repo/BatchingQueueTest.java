@@ -0,0 +1,59 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.BatchingQueue;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class BatchingQueueTest {
+
+    public void testCoalescesItemsArrivingWithinWindow() throws Exception {
+        final BatchingQueue<String> queue = new BatchingQueue<String>();
+        queue.offer("a");
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                queue.offer("b");
+            }
+        });
+        producer.start();
+        assertEquals(queue.takeBatch(2000, 2), Arrays.asList("a", "b")); // returns as soon as the batch is full
+        producer.join();
+        assertEquals(queue.size(), 0);
+    }
+
+    public void testBatchSizeIsCapped() throws Exception {
+        BatchingQueue<Integer> queue = new BatchingQueue<Integer>();
+        for (int i = 0; i < 5; ++i) {
+            queue.offer(i);
+        }
+        assertEquals(queue.takeBatch(0, 3), Arrays.asList(0, 1, 2));
+        assertEquals(queue.takeBatch(0, 3), Arrays.asList(3, 4));
+    }
+
+    public void testCloseDrainsThenEnds() throws Exception {
+        BatchingQueue<String> queue = new BatchingQueue<String>();
+        queue.offer("a");
+        queue.close();
+        assertTrue(queue.isClosed());
+        assertFalse(queue.offer("b"));
+        final long start = System.currentTimeMillis();
+        List<String> batch = queue.takeBatch(10000, 100); // a closed queue doesn't wait out the window
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        assertEquals(batch, Arrays.asList("a"));
+        assertNull(queue.takeBatch(10000, 100));
+    }
+
+}
@@ -0,0 +1,43 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraFileUtils;
+import com.bazaarvoice.maven.plugin.s3repo.util.ExtraIOUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class ExtraFileUtilsTest {
+
+    public void testLinkOrCopy() throws Exception {
+        final File dir = Files.createTempDir();
+        final File source = new File(dir, "source.rpm");
+        Files.write("package contents", source, Charsets.UTF_8);
+        final File target = new File(dir, "staged/target.rpm");
+        Files.createParentDirs(target);
+        final String how = ExtraFileUtils.linkOrCopy(source, target);
+        assertTrue(how.equals("hard link") || how.equals("symbolic link") || how.equals("copy"), how);
+        assertEquals(Files.toString(target, Charsets.UTF_8), "package contents");
+        // removing the staged file must leave the source intact
+        assertTrue(target.delete());
+        assertEquals(Files.toString(source, Charsets.UTF_8), "package contents");
+    }
+
+    public void testRelativizeSymbolicLink() throws Exception {
+        // e.g., an artifact staged from a local repository on another file system
+        final File source = new File(Files.createTempDir(), "source.rpm");
+        Files.write("package contents", source, Charsets.UTF_8);
+        final File staging = Files.createTempDir();
+        final File target = new File(staging, "sub/target.rpm");
+        Files.createParentDirs(target);
+        java.nio.file.Files.createSymbolicLink(target.toPath(), source.toPath());
+        assertEquals(ExtraIOUtils.relativize(staging, target), "sub" + File.separator + "target.rpm");
+        assertEquals(ExtraIOUtils.relativize(new File(staging, "sub/.."), target), "sub" + File.separator + "target.rpm");
+    }
+
+}
@@ -0,0 +1,105 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class KeyIndexTest {
+
+    public void testRoundTripsKeysAndAttributes() {
+        List<S3ObjectSummary> summaries = new ArrayList<S3ObjectSummary>();
+        for (int i = 0; i < 100; ++i) {
+            summaries.add(summary(String.format("repo/sub%d/pkg-%03d.noarch.rpm", i % 3, i), i, String.format("%032x", i), i * 1000L));
+        }
+        Collections.shuffle(summaries);
+        KeyIndex index = KeyIndex.of(summaries);
+        assertEquals(index.size(), 100);
+        String previous = "";
+        for (int i = 0; i < index.size(); ++i) {
+            final String key = index.getKey(i);
+            assertTrue(key.compareTo(previous) > 0, key);
+            final int number = Integer.parseInt(key.substring(key.length() - 14, key.length() - 11));
+            assertEquals(index.getSize(i), number);
+            assertEquals(index.getETag(i), String.format("%032x", number));
+            assertEquals(index.getLastModified(i), number * 1000L);
+            assertEquals(index.indexOf(key), i);
+            previous = key;
+        }
+        assertEquals(index.totalSize(), 99 * 100 / 2);
+    }
+
+    public void testKeepsUnusualETags() {
+        KeyIndex index = new KeyIndex.Builder()
+            .add("a", 1, "9b2cf535f27731c974343645a3985328-12", 0)
+            .add("b", 1, "9B2CF535F27731C974343645A3985328", 0)
+            .add("c", 1, "not-an-md5", 0)
+            .add("d", 1, null, 0)
+            .build();
+        assertEquals(index.getETag(0), "9b2cf535f27731c974343645a3985328-12");
+        assertEquals(index.getETag(1), "9B2CF535F27731C974343645A3985328");
+        assertEquals(index.getETag(2), "not-an-md5");
+        assertNull(index.getETag(3));
+    }
+
+    public void testMembershipAndPrefixRanges() {
+        KeyIndex.Builder builder = new KeyIndex.Builder();
+        for (String key : Arrays.asList("repo/a.rpm", "repo/b.rpm", "repo/repodata/primary.xml.gz",
+                "repo/repodata/repomd.xml", "repo/sub/c.rpm", "repoé/d.rpm")) {
+            builder.add(key, 0, null, 0);
+        }
+        KeyIndex index = builder.build();
+        assertTrue(index.contains("repo/b.rpm"));
+        assertFalse(index.contains("repo/b.rp"));
+        assertEquals(index.indexOf("repo/aa.rpm"), -2);
+        assertEquals(index.startOfPrefix("repo/repodata/"), 2);
+        assertEquals(index.endOfPrefix("repo/repodata/"), 4);
+        assertEquals(index.startOfPrefix("repo/"), 0);
+        assertEquals(index.endOfPrefix("repo/"), 5);
+        assertEquals(index.endOfPrefix(""), 6);
+        assertEquals(index.startOfPrefix("zzz"), index.endOfPrefix("zzz"));
+    }
+
+    public void testGroup() {
+        KeyIndex.Builder builder = new KeyIndex.Builder();
+        for (int i = 0; i < 40; ++i) {
+            builder.add(String.format("key-%02d", i), 0, null, 0);
+        }
+        Map<String, int[]> groups = builder.build().group(5, 35, new KeyIndex.Classifier() {
+            @Override
+            public String classify(int index, String key) {
+                return index % 10 == 0 ? null : key.substring(key.length() - 1);
+            }
+        });
+        assertEquals(new ArrayList<String>(groups.keySet()), Arrays.asList("5", "6", "7", "8", "9", "1", "2", "3", "4"));
+        assertTrue(Arrays.equals(groups.get("5"), new int[] {5, 15, 25}));
+        assertTrue(Arrays.equals(groups.get("1"), new int[] {11, 21, 31}));
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testRejectsUnsortedKeys() {
+        new KeyIndex.Builder().add("b", 0, null, 0).add("a", 0, null, 0);
+    }
+
+    private static S3ObjectSummary summary(String key, long size, String eTag, long lastModified) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setETag(eTag);
+        summary.setLastModified(new Date(lastModified));
+        return summary;
+    }
+
+}
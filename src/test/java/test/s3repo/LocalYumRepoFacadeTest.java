@@ -0,0 +1,226 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.support.LocalYumRepoFacade;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageVerificationReport;
+import com.bazaarvoice.maven.plugin.s3repo.support.RepositoryManifest;
+import com.bazaarvoice.maven.plugin.s3repo.util.DigestCache;
+import com.bazaarvoice.maven.plugin.s3repo.util.KeyIndex;
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataCompression;
+import com.bazaarvoice.maven.plugin.s3repo.util.MultiDigest;
+import com.bazaarvoice.maven.plugin.s3repo.util.S3Utils;
+import com.bazaarvoice.maven.plugin.s3repo.util.StagingArea;
+import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.Files;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class LocalYumRepoFacadeTest {
+
+    private File repositoryRoot;
+    private LocalYumRepoFacade repo;
+
+    @BeforeMethod
+    public void createRepository() throws Exception {
+        repositoryRoot = Files.createTempDir();
+        File repodata = new File(repositoryRoot, "repodata");
+        assertTrue(repodata.mkdirs());
+        StringBuilder primary = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<metadata xmlns=\"http://linux.duke.edu/metadata/common\" xmlns:rpm=\"http://linux.duke.edu/metadata/rpm\" packages=\"3\">\n");
+        StringBuilder filelists = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<filelists xmlns=\"http://linux.duke.edu/metadata/filelists\" packages=\"3\">\n");
+        StringBuilder other = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<otherdata xmlns=\"http://linux.duke.edu/metadata/other\" packages=\"3\">\n");
+        for (String name : Arrays.asList("a-1.0-SNAPSHOT1", "a-1.0-SNAPSHOT2", "b-2.0")) {
+            final String pkgId = DigestUtils.sha256Hex(name);
+            primary.append("<package type=\"rpm\"><name>").append(name).append("</name>")
+                .append("<checksum type=\"sha256\" pkgid=\"YES\">").append(pkgId).append("</checksum>")
+                .append("<location href=\"sub/").append(name).append(".noarch.rpm\"/>")
+                .append("<format><rpm:license>ASL</rpm:license></format></package>\n");
+            filelists.append("<package pkgid=\"").append(pkgId).append("\" name=\"").append(name)
+                .append("\" arch=\"noarch\"><file>/opt/").append(name).append("</file></package>\n");
+            other.append("<package pkgid=\"").append(pkgId).append("\" name=\"").append(name)
+                .append("\" arch=\"noarch\"><changelog>none</changelog></package>\n");
+        }
+        StringBuilder repomd = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+            + "<repomd xmlns=\"http://linux.duke.edu/metadata/repo\">\n");
+        appendData(repomd, repodata, "primary", primary.append("</metadata>\n").toString());
+        appendData(repomd, repodata, "filelists", filelists.append("</filelists>\n").toString());
+        appendData(repomd, repodata, "other", other.append("</otherdata>\n").toString());
+        Files.write(repomd.append("</repomd>\n").toString(), new File(repodata, "repomd.xml"), Charsets.UTF_8);
+        repo = new LocalYumRepoFacade(repositoryRoot, "createrepo", "", new SystemStreamLog());
+    }
+
+    public void testRewriteMetadata() throws Exception {
+        repo.rewriteMetadata(
+            ImmutableSet.of("sub/a-1.0-SNAPSHOT1.noarch.rpm"),
+            ImmutableMap.of("sub/a-1.0-SNAPSHOT2.noarch.rpm", "sub/a-1.0-SNAPSHOT.noarch.rpm"));
+        repo.verifyRepoDataFileChecksums();
+        assertEquals(repo.parseFileListFromRepoMetadata(), Arrays.asList("sub/a-1.0-SNAPSHOT.noarch.rpm", "sub/b-2.0.noarch.rpm"));
+        final String filelists = readMetadata("filelists");
+        assertTrue(filelists.contains("packages=\"2\""), filelists);
+        assertFalse(filelists.contains("a-1.0-SNAPSHOT1"), filelists);
+        assertTrue(filelists.contains("a-1.0-SNAPSHOT2"), filelists);
+        final String primary = readMetadata("primary");
+        assertTrue(primary.contains("packages=\"2\""), primary);
+        assertTrue(primary.contains("ASL"), primary);
+    }
+
+    public void testRewriteMetadataWithNoChanges() throws Exception {
+        repo.rewriteMetadata(Collections.<String>emptySet(), Collections.<String, String>emptyMap());
+        repo.verifyRepoDataFileChecksums();
+        assertEquals(repo.parseFileListFromRepoMetadata().size(), 3);
+    }
+
+    public void testRecompressMetadata() throws Exception {
+        repo.recompressMetadata(MetadataCompression.XZ, 1, 2);
+        repo.verifyRepoDataFileChecksums();
+        assertEquals(repo.parseFileListFromRepoMetadata().size(), 3);
+        assertTrue(new File(repositoryRoot, "repodata/primary.xml.xz").isFile());
+        assertFalse(new File(repositoryRoot, "repodata/primary.xml.gz").isFile());
+    }
+
+    public void testRewriteMetadataInMemory() throws Exception {
+        final StagingArea staging = StagingArea.inMemory();
+        for (File file : new File(repositoryRoot, "repodata").listFiles()) {
+            final OutputStream out = staging.openOutputStream("repodata/" + file.getName());
+            try {
+                Files.copy(file, out);
+            } finally {
+                out.close();
+            }
+        }
+        final LocalYumRepoFacade inMemory = new LocalYumRepoFacade(staging, "createrepo", "", new SystemStreamLog());
+        inMemory.verifyRepoDataFileChecksums();
+        inMemory.rewriteMetadata(ImmutableSet.of("sub/b-2.0.noarch.rpm"), Collections.<String, String>emptyMap());
+        inMemory.recompressMetadata(MetadataCompression.XZ, 1, 1);
+        inMemory.writePackageIndex();
+        inMemory.verifyRepoDataFileChecksums();
+        assertEquals(inMemory.parseFileListFromRepoMetadata(),
+            Arrays.asList("sub/a-1.0-SNAPSHOT1.noarch.rpm", "sub/a-1.0-SNAPSHOT2.noarch.rpm"));
+        assertTrue(inMemory.listRepoDataFiles().contains("repodata/s3repo-package-index.tsv.gz"), inMemory.listRepoDataFiles().toString());
+        // the on-disk copy is untouched
+        assertEquals(repo.parseFileListFromRepoMetadata().size(), 3);
+        assertFalse(new File(repositoryRoot, "repodata/primary.xml.xz").isFile());
+    }
+
+    public void testRepositoryManifest() throws Exception {
+        assertNull(repo.readRepositoryManifest());
+        S3ObjectSummary pkg = new S3ObjectSummary();
+        pkg.setKey("sub/b-2.0.noarch.rpm");
+        pkg.setSize(42);
+        pkg.setETag(DigestUtils.md5Hex("b-2.0"));
+        repo.writePackageIndex();
+        repo.writeRepositoryManifest(Collections.singletonList(pkg));
+        RepositoryManifest manifest = repo.readRepositoryManifest();
+        assertNotNull(manifest);
+        KeyIndex files = manifest.getFiles();
+        assertEquals(files.getKey(0), "repodata/filelists.xml.gz");
+        assertEquals(files.getETag(0), DigestUtils.md5Hex(Files.toByteArray(new File(repositoryRoot, "repodata/filelists.xml.gz"))));
+        assertTrue(files.contains("repodata/s3repo-package-index.tsv.gz"));
+        assertFalse(files.contains("repodata/repomd.xml"));
+        assertFalse(files.contains("repodata/s3repo-manifest.tsv.gz"));
+        assertEquals(files.getSize(files.indexOf("sub/b-2.0.noarch.rpm")), 42);
+        assertEquals(files.getETag(files.indexOf("sub/b-2.0.noarch.rpm")), DigestUtils.md5Hex("b-2.0"));
+        // once repomd.xml changes (e.g., another tool published), the manifest is stale
+        repo.rewriteMetadata(ImmutableSet.of("sub/b-2.0.noarch.rpm"), Collections.<String, String>emptyMap());
+        assertNull(repo.readRepositoryManifest());
+    }
+
+    public void testListRepoDataFilesInUse() throws Exception {
+        Files.write("stale", new File(repositoryRoot, "repodata/0123-primary.xml.gz"), Charsets.UTF_8);
+        assertEquals(repo.listRepoDataFilesInUse(), ImmutableSet.of("repodata/filelists.xml.gz", "repodata/other.xml.gz",
+            "repodata/primary.xml.gz", "repodata/repomd.xml", "repodata/s3repo-manifest.tsv.gz",
+            "repodata/s3repo-package-index.tsv.gz"));
+        assertTrue(new LocalYumRepoFacade(Files.createTempDir(), "createrepo", "", new SystemStreamLog()).listRepoDataFilesInUse().isEmpty());
+    }
+
+    public void testUploadDigestsOfRewrittenRepoMetadata() throws Exception {
+        // as rebuild-repo does, digest repomd.xml while "downloading" it, then rebuild over it
+        final File repoMetadata = new File(repositoryRoot, "repodata/repomd.xml");
+        final DigestCache digests = new DigestCache();
+        digests.put(repoMetadata, MultiDigest.ofFile(repoMetadata, MultiDigest.MD5, MultiDigest.SHA256));
+        digests.put(new File(repositoryRoot, "sub/b-2.0.noarch.rpm"), new MultiDigest(MultiDigest.MD5, MultiDigest.SHA256));
+        repo.rewriteMetadata(ImmutableSet.of("sub/b-2.0.noarch.rpm"), Collections.<String, String>emptyMap());
+        digests.invalidate(repo.repoDataDirectory());
+        assertNull(digests.get(repoMetadata));
+        assertNotNull(digests.get(new File(repositoryRoot, "sub/b-2.0.noarch.rpm")));
+        final PutObjectRequest request = S3Utils.newPutObjectRequest("bucket", "repodata/repomd.xml", repoMetadata, digests.get(repoMetadata));
+        assertEquals(request.getMetadata().getContentMD5(), Base64.encodeBase64String(DigestUtils.md5(Files.toByteArray(repoMetadata))));
+    }
+
+    public void testVerifyPackageChecksums() throws Exception {
+        // the test metadata declares the sha256 of each package's name as its checksum
+        final File sub = new File(repositoryRoot, "sub");
+        assertTrue(sub.mkdirs());
+        Files.write("a-1.0-SNAPSHOT1", new File(sub, "a-1.0-SNAPSHOT1.noarch.rpm"), Charsets.UTF_8);
+        Files.write("corrupt", new File(sub, "a-1.0-SNAPSHOT2.noarch.rpm"), Charsets.UTF_8);
+        PackageVerificationReport report =
+            repo.verifyPackageChecksums(Collections.<String>emptySet(), Collections.<String, String>emptyMap(), 2);
+        assertFalse(report.isClean());
+        assertEquals(report.getMismatches().size(), 1);
+        assertTrue(report.getMismatches().get(0).startsWith("sub/a-1.0-SNAPSHOT2.noarch.rpm"));
+        assertEquals(report.getMissing(), Arrays.asList("sub/b-2.0.noarch.rpm"));
+        report = repo.verifyPackageChecksums(
+            ImmutableSet.of("sub/a-1.0-SNAPSHOT2.noarch.rpm", "sub/b-2.0.noarch.rpm"), Collections.<String, String>emptyMap(), 2);
+        assertTrue(report.isClean(), report.toString());
+        // a known digest is trusted instead of reading the file
+        report = repo.verifyPackageChecksums(ImmutableSet.of("sub/b-2.0.noarch.rpm"),
+            ImmutableMap.of("sub/a-1.0-SNAPSHOT2.noarch.rpm", DigestUtils.sha256Hex("a-1.0-SNAPSHOT2")), 2);
+        assertTrue(report.isClean(), report.toString());
+    }
+
+    private String readMetadata(String type) throws Exception {
+        for (File file : new File(repositoryRoot, "repodata").listFiles()) {
+            if (file.getName().startsWith(type + ".xml")) {
+                InputStream in = XmlUtils.toInputStream(file);
+                try {
+                    return IOUtils.toString(in, "UTF-8");
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        throw new IllegalStateException("no " + type + " metadata");
+    }
+
+    private static void appendData(StringBuilder repomd, File repodata, String type, String xml) throws Exception {
+        final File file = new File(repodata, type + ".xml.gz");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            MetadataCompression.GZ.compress(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), out, -1, 1);
+        } finally {
+            out.close();
+        }
+        repomd.append("<data type=\"").append(type).append("\">")
+            .append("<checksum type=\"sha256\">").append(DigestUtils.sha256Hex(Files.toByteArray(file))).append("</checksum>")
+            .append("<open-checksum type=\"sha256\">").append(DigestUtils.sha256Hex(xml)).append("</open-checksum>")
+            .append("<location href=\"repodata/").append(file.getName()).append("\"/>")
+            .append("<timestamp>0</timestamp><size>").append(file.length()).append("</size>")
+            .append("<open-size>").append(xml.length()).append("</open-size></data>\n");
+    }
+
+}
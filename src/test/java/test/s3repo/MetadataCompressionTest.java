@@ -0,0 +1,107 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataCompression;
+import com.bazaarvoice.maven.plugin.s3repo.util.XmlUtils;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+import org.w3c.dom.Document;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.fail;
+
+@Test
+public class MetadataCompressionTest {
+
+    public void testForFileName() {
+        assertEquals(MetadataCompression.forFileName("primary.xml.gz"), MetadataCompression.GZ);
+        assertEquals(MetadataCompression.forFileName("primary.xml.bz2"), MetadataCompression.BZ2);
+        assertEquals(MetadataCompression.forFileName("primary.xml.xz"), MetadataCompression.XZ);
+        assertNull(MetadataCompression.forFileName("repomd.xml"));
+    }
+
+    public void testParse() {
+        assertEquals(MetadataCompression.parse("gzip"), MetadataCompression.GZ);
+        assertEquals(MetadataCompression.parse("BZIP2"), MetadataCompression.BZ2);
+        assertEquals(MetadataCompression.parse(" xz "), MetadataCompression.XZ);
+        try {
+            MetadataCompression.parse("zstd");
+            fail("expected failure");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    public void testRoundTripSingleThreaded() throws Exception {
+        final byte[] data = sampleData(1000);
+        for (MetadataCompression compression : MetadataCompression.values()) {
+            assertEquals(roundTrip(compression, data, 1), data, compression.name());
+        }
+    }
+
+    public void testRoundTripParallel() throws Exception {
+        // large enough to span several parallel blocks
+        final byte[] data = sampleData(400000);
+        for (MetadataCompression compression : MetadataCompression.values()) {
+            assertEquals(roundTrip(compression, data, 4), data, compression.name());
+        }
+    }
+
+    public void testNoConcatenatedStreamsExceptGzip() throws Exception {
+        // a reader that stops after the first stream (as libsolv does for xz) must still see all of the data; this is
+        // just over one parallel block
+        final byte[] data = sampleData(200000);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        MetadataCompression.XZ.compress(new ByteArrayInputStream(data), compressed, 1, 4);
+        assertEquals(IOUtils.toByteArray(new XZCompressorInputStream(new ByteArrayInputStream(compressed.toByteArray()), false)), data);
+        compressed = new ByteArrayOutputStream();
+        MetadataCompression.BZ2.compress(new ByteArrayInputStream(data), compressed, 1, 4);
+        assertEquals(IOUtils.toByteArray(new BZip2CompressorInputStream(new ByteArrayInputStream(compressed.toByteArray()), false)), data);
+    }
+
+    public void testRoundTripEmpty() throws Exception {
+        for (MetadataCompression compression : MetadataCompression.values()) {
+            assertEquals(roundTrip(compression, new byte[0], 4).length, 0, compression.name());
+        }
+    }
+
+    public void testParseCompressedXmlFile() throws Exception {
+        final File dir = Files.createTempDir();
+        for (MetadataCompression compression : MetadataCompression.values()) {
+            final File file = new File(dir, "primary.xml." + compression.getExtension());
+            final OutputStream out = new FileOutputStream(file);
+            try {
+                compression.compress(new ByteArrayInputStream("<metadata packages=\"0\"/>".getBytes(Charsets.UTF_8)), out, -1, 1);
+            } finally {
+                out.close();
+            }
+            final Document document = XmlUtils.parseXmlFile(file);
+            assertEquals(document.getDocumentElement().getAttribute("packages"), "0");
+        }
+    }
+
+    private static byte[] roundTrip(MetadataCompression compression, byte[] data, int threads) throws Exception {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        compression.compress(new ByteArrayInputStream(data), compressed, 1, threads);
+        return IOUtils.toByteArray(compression.decompress(new ByteArrayInputStream(compressed.toByteArray())));
+    }
+
+    private static byte[] sampleData(int lines) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < lines; ++i) {
+            sb.append("<file>/usr/share/doc/package-").append(i).append("/README</file>\n");
+        }
+        return sb.toString().getBytes(Charsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,148 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataCompression;
+import com.bazaarvoice.maven.plugin.s3repo.util.MetadataStreams;
+import com.google.common.base.Charsets;
+import org.apache.commons.io.IOUtils;
+import org.testng.Reporter;
+import org.testng.SkipException;
+import org.testng.annotations.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class MetadataStreamsTest {
+
+    /**
+     * Uncompressed size of the filelists for the throughput benchmark, which only runs when this is set (e.g.,
+     * "mvn test -Dtest=MetadataStreamsTest -Ds3repo.benchmark.megabytes=512"): timings are meaningless on a loaded machine.
+     */
+    private static final Integer BENCHMARK_MEGABYTES = Integer.getInteger("s3repo.benchmark.megabytes");
+
+    public void testOpenDecompressesByFileName() throws Exception {
+        final String xml = "<filelists packages=\"0\"/>";
+        for (MetadataCompression compression : MetadataCompression.values()) {
+            final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            compression.compress(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), compressed, -1, 1);
+            final InputStream in = MetadataStreams.open(new ByteArrayInputStream(compressed.toByteArray()),
+                "repodata/filelists.xml." + compression.getExtension());
+            try {
+                assertEquals(IOUtils.toString(in, "UTF-8"), xml, compression.getExtension());
+            } finally {
+                in.close();
+            }
+        }
+        final InputStream in = MetadataStreams.open(new ByteArrayInputStream(xml.getBytes(Charsets.UTF_8)), "repodata/repomd.xml");
+        try {
+            assertEquals(IOUtils.toString(in, "UTF-8"), xml);
+        } finally {
+            in.close();
+        }
+    }
+
+    public void testReadsConcatenatedGzipMembers() throws Exception {
+        // just over one parallel compression block, so the file has two gzip members
+        final File file = writeFilelists(9 * 1024 * 1024);
+        try {
+            final int packages = countPackages(rawOpen(file));
+            assertTrue(packages > 0);
+            assertEquals(countPackages(MetadataStreams.open(file)), packages);
+        } finally {
+            file.delete();
+        }
+    }
+
+    /**
+     * Compares reading a large filelists.xml.gz straight off a FileInputStream with reading it through the pool; the
+     * file is compressed block-parallel, so this also reads concatenated gzip members.
+     */
+    public void testFilelistsThroughput() throws Exception {
+        if (BENCHMARK_MEGABYTES == null) {
+            throw new SkipException("benchmark; set -Ds3repo.benchmark.megabytes to run it");
+        }
+        final File file = writeFilelists(BENCHMARK_MEGABYTES * 1024 * 1024);
+        try {
+            final long uncompressed = BENCHMARK_MEGABYTES * 1024L * 1024L;
+            countPackages(rawOpen(file)); // warm up
+            countPackages(MetadataStreams.open(file));
+            long start = System.nanoTime();
+            final int rawPackages = countPackages(rawOpen(file));
+            final long rawNanos = System.nanoTime() - start;
+            start = System.nanoTime();
+            final int pooledPackages = countPackages(MetadataStreams.open(file));
+            final long pooledNanos = System.nanoTime() - start;
+            assertEquals(pooledPackages, rawPackages);
+            Reporter.log("filelists.xml.gz (" + file.length() / 1024 + " KB, " + BENCHMARK_MEGABYTES + " MB uncompressed, "
+                + rawPackages + " packages): unbuffered " + megabytesPerSecond(uncompressed, rawNanos) + " MB/s, pooled "
+                + megabytesPerSecond(uncompressed, pooledNanos) + " MB/s", true);
+        } finally {
+            file.delete();
+        }
+    }
+
+    private static InputStream rawOpen(File file) throws Exception {
+        return MetadataCompression.GZ.decompress(new FileInputStream(file));
+    }
+
+    /** Parse with StAX (as list-repo and the rewriter do), counting packages; closes the stream. */
+    private static int countPackages(InputStream in) throws Exception {
+        try {
+            final XMLStreamReader reader = XMLInputFactory.newInstance().createXMLStreamReader(in);
+            int packages = 0;
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && "package".equals(reader.getLocalName())) {
+                    ++packages;
+                }
+            }
+            reader.close();
+            return packages;
+        } finally {
+            in.close();
+        }
+    }
+
+    /** A synthetic filelists.xml.gz of about the provided uncompressed size, compressed block-parallel like ours. */
+    private static File writeFilelists(int uncompressedBytes) throws Exception {
+        final ByteArrayOutputStream xml = new ByteArrayOutputStream(uncompressedBytes + 4096);
+        final Writer writer = new OutputStreamWriter(xml, Charsets.UTF_8);
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<filelists xmlns=\"http://linux.duke.edu/metadata/filelists\">\n");
+        for (int i = 0; xml.size() < uncompressedBytes; ++i) {
+            writer.write("<package pkgid=\"" + String.format("%064x", i) + "\" name=\"pkg" + i + "\" arch=\"noarch\">"
+                + "<version epoch=\"0\" ver=\"1." + i + "\" rel=\"1\"/>");
+            for (int f = 0; f < 20; ++f) {
+                writer.write("<file>/opt/pkg" + i + "/lib/file-" + f + ".jar</file>");
+            }
+            writer.write("</package>\n");
+            writer.flush();
+        }
+        writer.write("</filelists>\n");
+        writer.close();
+        final File file = File.createTempFile("filelists", ".xml.gz");
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            MetadataCompression.GZ.compress(new ByteArrayInputStream(xml.toByteArray()), out, 1, 2);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static long megabytesPerSecond(long bytes, long nanos) {
+        return bytes * 1000L * 1000L * 1000L / 1024 / 1024 / Math.max(1, nanos);
+    }
+
+}
@@ -0,0 +1,81 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.util.MultiDigest;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.IOUtils;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.testng.Assert.assertEquals;
+
+@Test
+public class MultiDigestTest {
+
+    private static final String DATA = "some package contents";
+
+    public void testFile() throws Exception {
+        final File file = File.createTempFile("multidigest", ".rpm");
+        Files.write(DATA, file, Charsets.UTF_8);
+        MultiDigest digests = MultiDigest.ofFile(file, MultiDigest.MD5, MultiDigest.SHA256);
+        assertEquals(digests.hex(MultiDigest.MD5), DigestUtils.md5Hex(DATA));
+        assertEquals(digests.hex(MultiDigest.SHA256), DigestUtils.sha256Hex(DATA));
+        assertEquals(digests.base64(MultiDigest.MD5), Base64.encodeBase64String(DigestUtils.md5(DATA)));
+    }
+
+    public void testWrappedStream() throws Exception {
+        MultiDigest digests = new MultiDigest(MultiDigest.MD5, MultiDigest.SHA256);
+        assertEquals(IOUtils.toString(digests.wrap(new ByteArrayInputStream(DATA.getBytes(Charsets.UTF_8))), "UTF-8"), DATA);
+        assertEquals(digests.hex(MultiDigest.MD5), DigestUtils.md5Hex(DATA));
+        assertEquals(digests.hex(MultiDigest.SHA256), DigestUtils.sha256Hex(DATA));
+    }
+
+    public void testBuffer() {
+        MultiDigest digests = new MultiDigest(MultiDigest.SHA256);
+        ByteBuffer buffer = ByteBuffer.wrap(DATA.getBytes(Charsets.UTF_8));
+        digests.update(buffer);
+        assertEquals(buffer.remaining(), 0);
+        assertEquals(digests.hex(MultiDigest.SHA256), DigestUtils.sha256Hex(DATA));
+    }
+
+    public void testSharedBetweenThreads() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int round = 0; round < 200; round++) {
+                // like one artifact published to two repositories at once
+                final MultiDigest digests = new MultiDigest(MultiDigest.MD5, MultiDigest.SHA256);
+                digests.update(ByteBuffer.wrap(DATA.getBytes(Charsets.UTF_8)));
+                final CountDownLatch start = new CountDownLatch(1);
+                final List<Future<String>> results = new ArrayList<Future<String>>();
+                for (int i = 0; i < 2; i++) {
+                    results.add(executor.submit(new Callable<String>() {
+                        @Override
+                        public String call() throws Exception {
+                            start.await();
+                            return digests.base64(MultiDigest.MD5) + "/" + digests.hex(MultiDigest.SHA256);
+                        }
+                    }));
+                }
+                start.countDown();
+                for (Future<String> result : results) {
+                    assertEquals(result.get(), Base64.encodeBase64String(DigestUtils.md5(DATA)) + "/" + DigestUtils.sha256Hex(DATA));
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
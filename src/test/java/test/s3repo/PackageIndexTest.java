@@ -0,0 +1,73 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.list.ListFilter;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageIndex;
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageMetadata;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class PackageIndexTest {
+
+    public void testRoundTripAndFindByName() throws Exception {
+        List<PackageMetadata> packages = Arrays.asList(
+            pkg("zeta", "1.0", "sub/zeta-1.0-1.noarch.rpm"),
+            pkg("alpha", "2.0", "sub/alpha-2.0-1.noarch.rpm"),
+            pkg("alpha", "1.0", "sub/alpha-1.0-1.noarch.rpm"),
+            pkg("beta", "1.0", "other/beta-1.0-1.noarch.rpm"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PackageIndex.write("abc123", packages, out);
+        PackageIndex index = PackageIndex.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(index.getRepoMetadataSha256(), "abc123");
+        assertEquals(index.getPackages().size(), 4);
+        assertEquals(index.getPackages().get(0).getName(), "alpha");
+        assertEquals(index.getPackages().get(3).getName(), "zeta");
+        assertEquals(locations(index.findByName("alpha")),
+            Arrays.asList("sub/alpha-1.0-1.noarch.rpm", "sub/alpha-2.0-1.noarch.rpm"));
+        assertEquals(locations(index.findByName("beta")), Arrays.asList("other/beta-1.0-1.noarch.rpm"));
+        assertTrue(index.findByName("gamma").isEmpty());
+        assertTrue(index.findByName("zzz").isEmpty());
+    }
+
+    public void testFilterPrefixes() {
+        assertEquals(new ListFilter(null, null, null, null, null).toRepoRelativePrefix(), "");
+        assertEquals(new ListFilter("/sub/", "alpha-", null, null, null).toRepoRelativePrefix(), "sub/alpha-");
+        assertEquals(new ListFilter("sub", null, "sub/alpha-*.rpm", null, null).toRepoRelativePrefix(), "sub/alpha-");
+        assertNull(new ListFilter("other", null, "sub/*.rpm", null, null).toRepoRelativePrefix());
+        assertEquals(ListFilter.commonPrefix(Arrays.asList("sub/alpha-1.0-1.noarch.rpm", "sub/alpha-2.0-1.noarch.rpm")), "sub/alpha-");
+    }
+
+    public void testFilterMatches() {
+        ListFilter filter = new ListFilter(null, null, "sub/*.rpm", "alpha", "1.0");
+        assertTrue(filter.hasPackageFilters());
+        assertTrue(filter.matchesPath("sub/alpha-1.0-1.noarch.rpm"));
+        assertFalse(filter.matchesPath("sub/deeper/alpha-1.0-1.noarch.rpm"));
+        assertTrue(new ListFilter(null, null, "**.rpm", null, null).matchesPath("sub/deeper/alpha-1.0-1.noarch.rpm"));
+        assertTrue(filter.matchesPackage(pkg("alpha", "1.0", "sub/alpha-1.0-1.noarch.rpm")));
+        assertFalse(filter.matchesPackage(pkg("alpha", "2.0", "sub/alpha-2.0-1.noarch.rpm")));
+        assertTrue(new ListFilter(null, null, null, null, "1.0-1").matchesPackage(pkg("beta", "1.0", "beta-1.0-1.noarch.rpm")));
+    }
+
+    private static PackageMetadata pkg(String name, String version, String location) {
+        return new PackageMetadata(name, "noarch", "0", version, "1", location, 100, "sha256", "ff" + location.hashCode(), 1400000000L);
+    }
+
+    private static List<String> locations(List<PackageMetadata> packages) {
+        List<String> locations = new ArrayList<String>();
+        for (PackageMetadata packageMetadata : packages) {
+            locations.add(packageMetadata.getLocation());
+        }
+        return locations;
+    }
+
+}
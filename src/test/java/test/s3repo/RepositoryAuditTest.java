@@ -0,0 +1,51 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.PackageMetadata;
+import com.bazaarvoice.maven.plugin.s3repo.verify.RepositoryAudit;
+import com.google.common.collect.ImmutableMap;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class RepositoryAuditTest {
+
+    public void testCompareWithListing() {
+        RepositoryAudit audit = new RepositoryAudit();
+        List<PackageMetadata> present = audit.compare(
+            Arrays.asList(pkg("a/ok.rpm", 10, "sha256"), pkg("a/short.rpm", 10, "sha256"), pkg("a/gone.rpm", 10, "sha256")),
+            ImmutableMap.of("a/ok.rpm", 10L, "a/short.rpm", 9L, "a/stray.rpm", 1L));
+        assertEquals(present.size(), 1);
+        assertEquals(present.get(0).getLocation(), "a/ok.rpm");
+        assertEquals(audit.getMissing(), Arrays.asList("a/gone.rpm"));
+        assertEquals(audit.getSizeMismatches().size(), 1);
+        assertTrue(audit.getSizeMismatches().get(0).startsWith("a/short.rpm"));
+        assertEquals(audit.getOrphans(), Arrays.asList("a/stray.rpm"));
+        assertFalse(audit.isConsistent());
+    }
+
+    public void testRecordedChecksums() {
+        RepositoryAudit audit = new RepositoryAudit();
+        audit.compare(Collections.<PackageMetadata>emptyList(), Collections.<String, Long>emptyMap());
+        audit.checkRecordedChecksum(pkg("ok.rpm", 1, "sha256"), "CHECKSUM-OF-OK.RPM");
+        audit.checkRecordedChecksum(pkg("unrecorded.rpm", 1, "sha256"), null);
+        audit.checkRecordedChecksum(pkg("sha1.rpm", 1, "sha"), "anything");
+        assertTrue(audit.isConsistent(), audit.toString());
+        audit.checkRecordedChecksum(pkg("bad.rpm", 1, "sha256"), "something-else");
+        assertFalse(audit.isConsistent());
+        assertEquals(audit.getChecksumMismatches().size(), 1);
+        assertTrue(audit.getChecksumMismatches().get(0).startsWith("bad.rpm"));
+    }
+
+    private static PackageMetadata pkg(String location, long size, String checksumType) {
+        return new PackageMetadata("name", "noarch", "0", "1.0", "1", location, size, checksumType,
+            "checksum-of-" + location, 0);
+    }
+
+}
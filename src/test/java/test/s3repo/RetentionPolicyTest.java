@@ -0,0 +1,81 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.rebuild.RetentionPolicy;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+
+@Test
+public class RetentionPolicyTest {
+
+    private static final long NOW = TimeUnit.DAYS.toMillis(1000);
+
+    private final List<S3ObjectSummary> listing = Arrays.asList(
+        summary("repo/a/foo-1.0-SNAPSHOT1.noarch.rpm", 10, 1),
+        summary("repo/a/foo-1.0-SNAPSHOT2.noarch.rpm", 10, 2),
+        summary("repo/a/foo-1.0-SNAPSHOT3.noarch.rpm", 10, 3),
+        summary("repo/a/bar-2.0.noarch.rpm", 100, 4),
+        summary("repo/b/foo-1.0.noarch.rpm", 1000, 5));
+
+    public void testDisabled() {
+        RetentionPolicy policy = new RetentionPolicy(0, 0, 0, 0);
+        assertFalse(policy.isEnabled());
+        assertEquals(policy.evaluate(listing, NOW).getBucketKeysToDelete(), Collections.emptyList());
+    }
+
+    public void testKeepNewestPerPackage() {
+        RetentionPolicy.Result result = new RetentionPolicy(2, 0, 0, 0).evaluate(listing, NOW);
+        assertEquals(result.getBucketKeysToDelete(), Arrays.asList("repo/a/foo-1.0-SNAPSHOT1.noarch.rpm"));
+        assertEquals(result.getBytesToDelete(), 10);
+    }
+
+    public void testMaxAgeNeverDeletesNewest() {
+        // everything is older than a day, but the newest of each package must survive
+        RetentionPolicy.Result result = new RetentionPolicy(0, TimeUnit.DAYS.toMillis(1), 0, 0).evaluate(listing, NOW);
+        assertEquals(result.getBucketKeysToDelete(),
+            Arrays.asList("repo/a/foo-1.0-SNAPSHOT2.noarch.rpm", "repo/a/foo-1.0-SNAPSHOT1.noarch.rpm"));
+    }
+
+    public void testMaxPerSubfolder() {
+        RetentionPolicy.Result result = new RetentionPolicy(0, 0, 2, 0).evaluate(listing, NOW);
+        assertEquals(result.getBucketKeysToDelete(),
+            Arrays.asList("repo/a/foo-1.0-SNAPSHOT2.noarch.rpm", "repo/a/foo-1.0-SNAPSHOT1.noarch.rpm"));
+        assertEquals(result.getBytesToDelete(), 20);
+    }
+
+    public void testMaxTotalBytesDeletesOldestFirst() {
+        RetentionPolicy.Result result = new RetentionPolicy(0, 0, 0, 1120).evaluate(listing, NOW);
+        assertEquals(result.getBucketKeysToDelete(), Arrays.asList("repo/a/foo-1.0-SNAPSHOT1.noarch.rpm"));
+    }
+
+    public void testPackageNamesWithDigits() {
+        // "python-2to3" is its own package, not an older "python"
+        List<S3ObjectSummary> packages = Arrays.asList(
+            summary("repo/python-2to3-1.0-1.noarch.rpm", 10, 1),
+            summary("repo/python-2.7.5-1.el7.x86_64.rpm", 10, 2),
+            summary("repo/python-2.7.5-2.el7.x86_64.rpm", 10, 3),
+            summary("repo/awesome-artifact-1.4-SNAPSHOT-1.noarch.rpm", 10, 4),
+            summary("repo/awesome-artifact-1.4.noarch.rpm", 10, 5));
+        RetentionPolicy.Result result = new RetentionPolicy(1, 0, 0, 0).evaluate(packages, NOW);
+        assertEquals(result.getBucketKeysToDelete(),
+            Arrays.asList("repo/awesome-artifact-1.4-SNAPSHOT-1.noarch.rpm", "repo/python-2.7.5-1.el7.x86_64.rpm"));
+    }
+
+    private static S3ObjectSummary summary(String key, long size, int ageOrder) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setBucketName("bucket");
+        summary.setKey(key);
+        summary.setSize(size);
+        summary.setLastModified(new Date(TimeUnit.DAYS.toMillis(ageOrder)));
+        return summary;
+    }
+
+}
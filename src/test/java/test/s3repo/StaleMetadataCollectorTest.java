@@ -0,0 +1,33 @@
+package test.s3repo;
+
+import com.bazaarvoice.maven.plugin.s3repo.support.StaleMetadataCollector;
+import org.apache.commons.codec.digest.DigestUtils;
+import org.testng.annotations.Test;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class StaleMetadataCollectorTest {
+
+    private static final String SHA256 = DigestUtils.sha256Hex("metadata");
+
+    public void testMetadataFiles() {
+        assertTrue(StaleMetadataCollector.isMetadataFile("repodata/" + SHA256 + "-primary.xml.gz"));
+        assertTrue(StaleMetadataCollector.isMetadataFile("repodata/" + SHA256 + "-filelists.xml.xz"));
+        assertTrue(StaleMetadataCollector.isMetadataFile("repodata/" + SHA256 + "-other.xml.zck"));
+        assertTrue(StaleMetadataCollector.isMetadataFile("repodata/" + SHA256 + "-primary_db.sqlite.bz2"));
+        assertTrue(StaleMetadataCollector.isMetadataFile("repodata/" + DigestUtils.md5Hex("metadata") + "-comps.xml"));
+    }
+
+    public void testOtherFilesAreNeverCollected() {
+        assertFalse(StaleMetadataCollector.isMetadataFile("repodata/repomd.xml"));
+        assertFalse(StaleMetadataCollector.isMetadataFile("repodata/repomd.xml.asc"));
+        assertFalse(StaleMetadataCollector.isMetadataFile("repodata/repomd.xml.key"));
+        assertFalse(StaleMetadataCollector.isMetadataFile("repodata/primary.xml.gz"));
+        assertFalse(StaleMetadataCollector.isMetadataFile("repodata/s3repo-package-index.tsv.gz"));
+        assertFalse(StaleMetadataCollector.isMetadataFile("repodata/keys/" + SHA256 + "-primary.xml.gz"));
+        assertFalse(StaleMetadataCollector.isMetadataFile(SHA256 + "-primary.xml.gz"));
+    }
+
+}
@@ -0,0 +1,62 @@
+package test.s3repo;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.bazaarvoice.maven.plugin.s3repo.sync.SyncPlan;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class SyncPlanTest {
+
+    public void testCopiesOnlyNewOrChangedObjects() {
+        Map<String, S3ObjectSummary> source = new HashMap<String, S3ObjectSummary>();
+        put(source, "a-1.0.noarch.rpm", 100, "etag-a");
+        put(source, "sub/b-1.0.noarch.rpm", 200, "etag-b");
+        put(source, "sub/c-1.0.noarch.rpm", 300, "etag-c2");
+        put(source, "repodata/primary.xml.gz", 10, "etag-p2");
+        put(source, "repodata/repomd.xml", 1, "etag-r2");
+        put(source, "sub/", 0, "etag-folder");
+        Map<String, S3ObjectSummary> target = new HashMap<String, S3ObjectSummary>();
+        put(target, "a-1.0.noarch.rpm", 100, "etag-a");
+        put(target, "sub/c-1.0.noarch.rpm", 300, "etag-c1");
+        put(target, "old-0.9.noarch.rpm", 50, "etag-old");
+        put(target, "repodata/primary.xml.gz", 10, "etag-p1");
+        put(target, "repodata/repomd.xml", 1, "etag-r1");
+        SyncPlan plan = SyncPlan.compute(source, target);
+        assertEquals(plan.getPackagesToCopy(), Arrays.asList("sub/b-1.0.noarch.rpm", "sub/c-1.0.noarch.rpm"));
+        assertEquals(plan.getMetadataToCopy(), Arrays.asList("repodata/primary.xml.gz"));
+        assertTrue(plan.isRepoMetadataToCopy());
+        assertEquals(plan.getTargetOnly(), Arrays.asList("old-0.9.noarch.rpm"));
+        assertEquals(plan.getObjectsToCopy(), 4);
+        assertEquals(plan.getBytesToCopy(), 511);
+        assertEquals(plan.getUnchanged(), 1);
+        assertFalse(plan.isInSync());
+    }
+
+    public void testInSync() {
+        Map<String, S3ObjectSummary> source = new HashMap<String, S3ObjectSummary>();
+        put(source, "a-1.0.noarch.rpm", 100, "etag-a");
+        put(source, "repodata/repomd.xml", 1, "etag-r");
+        SyncPlan plan = SyncPlan.compute(source, new HashMap<String, S3ObjectSummary>(source));
+        assertTrue(plan.isInSync());
+        assertEquals(plan.getUnchanged(), 2);
+        assertEquals(plan.getPackagesToCopy(), Collections.emptyList());
+    }
+
+    private static void put(Map<String, S3ObjectSummary> objects, String path, long size, String eTag) {
+        S3ObjectSummary summary = new S3ObjectSummary();
+        summary.setKey("repo/" + path);
+        summary.setSize(size);
+        summary.setETag(eTag);
+        objects.put(path, summary);
+    }
+
+}
@@ -0,0 +1,84 @@
+package test.s3repo;
+
+import com.amazonaws.DefaultRequest;
+import com.amazonaws.Response;
+import com.amazonaws.http.HttpResponse;
+import com.amazonaws.metrics.RequestMetricCollector;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.util.AWSRequestMetrics;
+import com.amazonaws.util.AWSRequestMetricsFullSupport;
+import com.bazaarvoice.maven.plugin.s3repo.util.Timeline;
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.testng.annotations.Test;
+
+import java.io.File;
+
+import static org.testng.Assert.assertFalse;
+import static org.testng.Assert.assertNotNull;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertTrue;
+
+@Test
+public class TimelineTest {
+
+    public void testRecordsPhasesProcessesAndS3Requests() throws Exception {
+        final File file = File.createTempFile("timeline", ".json");
+        try {
+            Timeline.startIfConfigured(file);
+            final Timeline.Phases phases = Timeline.phases("s3://bucket/repo");
+            phases.begin("downloadRepositories");
+            final RequestMetricCollector collector = Timeline.s3MetricCollector();
+            assertNotNull(collector);
+            collector.collectMetrics(getObjectRequest("repo/repodata/repomd.xml", 2), response(1234));
+            phases.begin("rebuildRepo");
+            Timeline.begin(Timeline.PROCESS, "createrepo", "createrepo \"quoted\"").detail("createrepo (exit 0)").end();
+            phases.end();
+            Timeline.stopIfConfigured(file, new SystemStreamLog());
+
+            assertFalse(Timeline.isRecording());
+            final String trace = Files.toString(file, Charsets.UTF_8);
+            assertTrue(trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["), trace);
+            assertTrue(trace.contains("\"cat\":\"s3\",\"name\":\"GetObject\""), trace);
+            assertTrue(trace.contains("\"detail\":\"repo/repodata/repomd.xml\",\"bytes\":1234,\"retries\":1"), trace);
+            assertTrue(trace.contains("\"cat\":\"phase\",\"name\":\"downloadRepositories\""), trace);
+            assertTrue(trace.contains("\"cat\":\"phase\",\"name\":\"rebuildRepo\""), trace);
+            assertTrue(trace.contains("\"cat\":\"process\",\"name\":\"createrepo\""), trace);
+            assertTrue(trace.contains("\"name\":\"thread_name\""), trace);
+        } finally {
+            file.delete();
+        }
+    }
+
+    public void testDoesNothingUnlessConfigured() throws Exception {
+        Timeline.startIfConfigured(null);
+        assertFalse(Timeline.isRecording());
+        assertNull(Timeline.s3MetricCollector());
+        final Timeline.Phases phases = Timeline.phases("s3://bucket/repo");
+        phases.begin("downloadRepositories");
+        phases.end();
+        Timeline.begin(Timeline.PROCESS, "createrepo", null).detail("createrepo (exit 0)").end();
+        final File file = new File(Files.createTempDir(), "timeline.json");
+        Timeline.stopIfConfigured(file, new SystemStreamLog());
+        assertFalse(file.exists());
+        file.getParentFile().delete();
+    }
+
+    private static DefaultRequest<GetObjectRequest> getObjectRequest(String key, int attempts) {
+        final DefaultRequest<GetObjectRequest> request = new DefaultRequest<GetObjectRequest>(new GetObjectRequest("bucket", key), "Amazon S3");
+        request.setResourcePath(key);
+        final AWSRequestMetrics metrics = new AWSRequestMetricsFullSupport();
+        metrics.setCounter(AWSRequestMetrics.Field.RequestCount, attempts);
+        metrics.getTimingInfo().endTiming();
+        request.setAWSRequestMetrics(metrics);
+        return request;
+    }
+
+    private static Response<Object> response(long contentLength) {
+        final HttpResponse httpResponse = new HttpResponse(null, null);
+        httpResponse.addHeader("content-length", String.valueOf(contentLength));
+        return new Response<Object>(null, httpResponse);
+    }
+
+}